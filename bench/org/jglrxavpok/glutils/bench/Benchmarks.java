@@ -0,0 +1,480 @@
+package org.jglrxavpok.glutils.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.jglrxavpok.glutils.IndexedModel;
+import org.jglrxavpok.glutils.Mesh;
+import org.jglrxavpok.glutils.MtlMaterialLib;
+import org.jglrxavpok.glutils.OBJLoader;
+import org.jglrxavpok.glutils.ObjObject;
+import org.jglrxavpok.glutils.TriangleBVH;
+import org.jglrxavpok.glutils.TriangleBVH.RayHit;
+import org.jglrxavpok.glutils.mc.TessellatorModel;
+
+/**
+ * Measures the time and the allocations of the loading and rendering paths on synthetic models.
+ * <br/>
+ * Every benchmark is warmed up, then run in timed iterations; the report gives the average time per operation and the
+ * bytes allocated per operation by the benchmark thread (work done on other threads, e.g. parallel parsing, is not
+ * counted). Loading benchmarks also report their input throughput, with {@link RegexOBJReader} as the reference. Run
+ * with the names (or parts of names) of the benchmarks to run as arguments, all of them by default. The model is set
+ * with the <code>vertices</code>, <code>faces</code>, <code>groups</code> and <code>materials</code> system properties.
+ * The ray queries run on all groups merged in one mesh, so <code>faces</code> is their triangle count; the synthetic
+ * grid repeats once it runs out of vertices, use about half as many vertices as faces for large counts.
+ */
+public class Benchmarks
+{
+
+    /**
+     * One operation to measure. The returned value is kept so that the work cannot be optimized away.
+     */
+    public static abstract class Benchmark
+    {
+
+        private final String name;
+        private final long inputBytes;
+
+        public Benchmark(String name)
+        {
+            this(name, 0);
+        }
+
+        /**
+         * @param inputBytes size of the input read by one operation, to report a throughput
+         */
+        public Benchmark(String name, long inputBytes)
+        {
+            this.name = name;
+            this.inputBytes = inputBytes;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getInputBytes()
+        {
+            return inputBytes;
+        }
+
+        public abstract Object run() throws Exception;
+    }
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 200000000L;
+
+    private static final int RAYS = 1024;
+    private static final float EPSILON = 1e-7f;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception
+    {
+        SyntheticOBJ generator = new SyntheticOBJ().setVertices(Integer.getInteger("vertices", 50000)).setFaces(Integer.getInteger("faces", 100000)).setGroups(Integer.getInteger("groups", 16)).setMaterials(Integer.getInteger("materials", 8));
+        System.out.println("Model: " + Integer.getInteger("vertices", 50000) + " vertices, " + Integer.getInteger("faces", 100000) + " faces");
+        List<Benchmark> benchmarks = createBenchmarks(generator);
+        System.out.println(String.format(Locale.ROOT, "%-32s %14s %14s %12s %12s", "Benchmark", "ns/op", "B/op", "MB/s alloc", "MB/s input"));
+        for(Benchmark benchmark : benchmarks)
+        {
+            if(!selected(benchmark.getName(), args))
+                continue;
+            double[] result = measure(benchmark);
+            String input = benchmark.getInputBytes() > 0 ? String.format(Locale.ROOT, "%12.1f", benchmark.getInputBytes() / result[0] * 1e9 / (1024 * 1024)) : "";
+            System.out.println(String.format(Locale.ROOT, "%-32s %14.0f %14.0f %12.1f %s", benchmark.getName(), result[0], result[1], result[1] / result[0] * 1e9 / (1024 * 1024), input));
+        }
+    }
+
+    static boolean selected(String name, String[] filters)
+    {
+        if(filters.length == 0)
+            return true;
+        for(String filter : filters)
+        {
+            if(name.contains(filter))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return average nanoseconds and bytes allocated per operation
+     */
+    public static double[] measure(Benchmark benchmark) throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for(int i = 0; i < WARMUP_ITERATIONS; i++ )
+            iterate(benchmark);
+        long operations = 0;
+        long nanos = 0;
+        long bytes = 0;
+        for(int i = 0; i < ITERATIONS; i++ )
+        {
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            operations += iterate(benchmark);
+            nanos += System.nanoTime() - start;
+            bytes += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        }
+        return new double[] { nanos / (double)operations, bytes / (double)operations };
+    }
+
+    /**
+     * Runs the benchmark for at least {@link #ITERATION_NANOS}
+     * @return the number of operations run
+     */
+    private static long iterate(Benchmark benchmark) throws Exception
+    {
+        long start = System.nanoTime();
+        long operations = 0;
+        do
+        {
+            sink = benchmark.run();
+            operations++;
+        }
+        while(System.nanoTime() - start < ITERATION_NANOS);
+        return operations;
+    }
+
+    /**
+     * Builds one mesh holding the triangles of all the given models
+     */
+    static Mesh merge(Collection<IndexedModel> models)
+    {
+        Mesh merged = new Mesh();
+        Mesh part = new Mesh();
+        for(IndexedModel model : models)
+        {
+            model.toMesh(part);
+            int vertexOffset = merged.getVertexCount();
+            int indexOffset = merged.indices.length;
+            merged.layout = part.layout;
+            merged.data = Arrays.copyOf(merged.data, merged.data.length + part.data.length);
+            System.arraycopy(part.data, 0, merged.data, merged.data.length - part.data.length, part.data.length);
+            merged.indices = Arrays.copyOf(merged.indices, indexOffset + part.indices.length);
+            for(int i = 0; i < part.indices.length; i++ )
+                merged.indices[indexOffset + i] = part.indices[i] + vertexOffset;
+        }
+        return merged;
+    }
+
+    /**
+     * Rays starting above the unit square the synthetic models cover, 6 floats each: origin then direction. Most of them
+     * point down at a random point of the square, the rest point up and away and miss everything.
+     */
+    static float[] createRays(int count, long seed)
+    {
+        Random random = new Random(seed);
+        float[] rays = new float[count * 6];
+        for(int i = 0; i < count; i++ )
+        {
+            int r = i * 6;
+            rays[r] = random.nextFloat() * 2 - 0.5f;
+            rays[r + 1] = 0.5f + random.nextFloat() * 0.5f;
+            rays[r + 2] = random.nextFloat() * 2 - 0.5f;
+            float targetY = i % 4 == 0 ? 2 : 0;
+            rays[r + 3] = random.nextFloat() - rays[r];
+            rays[r + 4] = targetY - rays[r + 1];
+            rays[r + 5] = random.nextFloat() - rays[r + 2];
+        }
+        return rays;
+    }
+
+    /**
+     * Reference for {@link TriangleBVH}: tests the ray against every triangle of the mesh with Moller-Trumbore, in mesh
+     * order
+     * @param hit receives the nearest hit, or null to stop at the first triangle hit
+     * @return true if a triangle was hit
+     */
+    static boolean bruteForceHit(Mesh mesh, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, RayHit hit)
+    {
+        int stride = mesh.layout.stride;
+        int position = mesh.layout.positionOffset;
+        float[] data = mesh.data;
+        int[] indices = mesh.indices;
+        float nearest = maxDistance;
+        boolean found = false;
+        for(int t = 0; t < indices.length; t += 3)
+        {
+            int a = indices[t] * stride + position;
+            int b = indices[t + 1] * stride + position;
+            int c = indices[t + 2] * stride + position;
+            float ax = data[a], ay = data[a + 1], az = data[a + 2];
+            float e1x = data[b] - ax, e1y = data[b + 1] - ay, e1z = data[b + 2] - az;
+            float e2x = data[c] - ax, e2y = data[c + 1] - ay, e2z = data[c + 2] - az;
+            float px = dy * e2z - dz * e2y;
+            float py = dz * e2x - dx * e2z;
+            float pz = dx * e2y - dy * e2x;
+            float determinant = e1x * px + e1y * py + e1z * pz;
+            if(determinant > -EPSILON && determinant < EPSILON)
+                continue;
+            float inverse = 1f / determinant;
+            float tx = ox - ax, ty = oy - ay, tz = oz - az;
+            float u = (tx * px + ty * py + tz * pz) * inverse;
+            if(u < 0 || u > 1)
+                continue;
+            float qx = ty * e1z - tz * e1y;
+            float qy = tz * e1x - tx * e1z;
+            float qz = tx * e1y - ty * e1x;
+            float v = (dx * qx + dy * qy + dz * qz) * inverse;
+            if(v < 0 || u + v > 1)
+                continue;
+            float distance = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+            if(distance < 0 || distance > nearest)
+                continue;
+            if(hit == null)
+                return true;
+            found = true;
+            nearest = distance;
+            hit.triangle = t / 3;
+            hit.distance = distance;
+            hit.u = u;
+            hit.v = v;
+        }
+        return found;
+    }
+
+    public static List<Benchmark> createBenchmarks(SyntheticOBJ generator) throws Exception
+    {
+        final byte[] obj = generator.generateOBJ(null).getBytes(StandardCharsets.UTF_8);
+        final String mtl = generator.generateMTL(null);
+        HashMap<ObjObject, IndexedModel> loaded = new OBJLoader().loadModel("/", ByteBuffer.wrap(obj));
+        IndexedModel largest = null;
+        for(IndexedModel model : loaded.values())
+        {
+            if(largest == null || model.getIndexCount() > largest.getIndexCount())
+                largest = model;
+        }
+        final IndexedModel model = largest;
+        final Mesh merged = merge(loaded.values());
+        final TriangleBVH bvh = new TriangleBVH(merged);
+        final float[] rays = createRays(RAYS, 19);
+        final RayHit hit = new RayHit();
+        final BufferedImage argb = generator.generateTexture(512, 512, BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage bgr = generator.generateTexture(512, 512, BufferedImage.TYPE_3BYTE_BGR);
+        final BufferedImage abgr = generator.generateTexture(512, 512, BufferedImage.TYPE_4BYTE_ABGR);
+        // at PixelConverter.PARALLEL_THRESHOLD, so converted in bands
+        final BufferedImage largeArgb = generator.generateTexture(1024, 1024, BufferedImage.TYPE_INT_ARGB);
+        final BufferedImage largeAbgr = generator.generateTexture(1024, 1024, BufferedImage.TYPE_4BYTE_ABGR);
+        final TessellatorModel baked = TessellatorModel.fromObjects("synthetic.obj", OBJLoader.toObjects(loaded));
+        baked.setBakedRendering(true);
+        final TessellatorModel unbaked = TessellatorModel.fromObjects("synthetic.obj", OBJLoader.toObjects(new OBJLoader().loadModel("/", ByteBuffer.wrap(obj))));
+        final NullVertexBuffer buffer = new NullVertexBuffer();
+        final int instances = 100;
+        final float[] transforms = new float[instances * TessellatorModel.MATRIX_4X3];
+        for(int i = 0; i < instances; i++ )
+        {
+            // a row of copies, each turned a bit more around y
+            int m = i * TessellatorModel.MATRIX_4X3;
+            float angle = i * 0.1f;
+            transforms[m] = (float)Math.cos(angle);
+            transforms[m + 2] = (float)-Math.sin(angle);
+            transforms[m + 4] = 1;
+            transforms[m + 6] = (float)Math.sin(angle);
+            transforms[m + 8] = (float)Math.cos(angle);
+            transforms[m + 9] = i * 2;
+        }
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new Benchmark("RegexOBJReader.read", obj.length)
+        {
+            @Override
+            public Object run() throws Exception
+            {
+                return new RegexOBJReader().read(obj);
+            }
+        });
+        benchmarks.add(new Benchmark("OBJLoader.loadModel(buffer)", obj.length)
+        {
+            @Override
+            public Object run() throws Exception
+            {
+                return new OBJLoader().setParallelThreshold(Integer.MAX_VALUE).loadModel("/", ByteBuffer.wrap(obj));
+            }
+        });
+        benchmarks.add(new Benchmark("OBJLoader.loadModel(parallel)", obj.length)
+        {
+            @Override
+            public Object run() throws Exception
+            {
+                return new OBJLoader().setParallelThreshold(0).loadModel("/", ByteBuffer.wrap(obj));
+            }
+        });
+        benchmarks.add(new Benchmark("OBJLoader.loadModel(stream)", obj.length)
+        {
+            @Override
+            public Object run() throws Exception
+            {
+                return new OBJLoader().loadModel("/", new ByteArrayInputStream(obj));
+            }
+        });
+        benchmarks.add(new Benchmark("IndexedModel.toMesh")
+        {
+            @Override
+            public Object run()
+            {
+                Mesh mesh = new Mesh();
+                model.toMesh(mesh);
+                return mesh;
+            }
+        });
+        benchmarks.add(new Benchmark("IndexedModel.computeNormals")
+        {
+            @Override
+            public Object run()
+            {
+                model.computeNormals();
+                return model;
+            }
+        });
+        benchmarks.add(new Benchmark("IndexedModel.computeTangents")
+        {
+            @Override
+            public Object run()
+            {
+                model.computeTangents();
+                return model;
+            }
+        });
+        benchmarks.add(new Benchmark("MtlMaterialLib.parse")
+        {
+            @Override
+            public Object run()
+            {
+                MtlMaterialLib lib = new MtlMaterialLib("/synthetic.mtl");
+                lib.parse(mtl);
+                return lib;
+            }
+        });
+        benchmarks.add(new Benchmark("imageToByteBuffer(INT_ARGB)")
+        {
+            @Override
+            public Object run()
+            {
+                return MtlMaterialLib.imageToByteBuffer(argb);
+            }
+        });
+        benchmarks.add(new Benchmark("imageToByteBuffer(3BYTE_BGR)")
+        {
+            @Override
+            public Object run()
+            {
+                return MtlMaterialLib.imageToByteBuffer(bgr);
+            }
+        });
+        benchmarks.add(new Benchmark("imageToByteBuffer(4BYTE_ABGR)")
+        {
+            @Override
+            public Object run()
+            {
+                return MtlMaterialLib.imageToByteBuffer(abgr);
+            }
+        });
+        benchmarks.add(new Benchmark("imageToByteBuffer(INT_ARGB, 1M)")
+        {
+            @Override
+            public Object run()
+            {
+                return MtlMaterialLib.imageToByteBuffer(largeArgb);
+            }
+        });
+        benchmarks.add(new Benchmark("imageToByteBuffer(4BYTE_ABGR, 1M)")
+        {
+            @Override
+            public Object run()
+            {
+                return MtlMaterialLib.imageToByteBuffer(largeAbgr);
+            }
+        });
+        // renderGroupImpl itself needs the Tessellator and a GL context, emitGroup is everything it does in between
+        benchmarks.add(new Benchmark("TessellatorModel.emit(baked)")
+        {
+            @Override
+            public Object run()
+            {
+                for(ObjObject object : baked.objObjects)
+                    baked.emitGroup(buffer, object);
+                return buffer;
+            }
+        });
+        benchmarks.add(new Benchmark("TessellatorModel.emit(vertices)")
+        {
+            @Override
+            public Object run()
+            {
+                for(ObjObject object : unbaked.objObjects)
+                    unbaked.emitGroup(buffer, object);
+                return buffer;
+            }
+        });
+        benchmarks.add(new Benchmark("TessellatorModel.emitInstances")
+        {
+            @Override
+            public Object run()
+            {
+                for(ObjObject object : baked.objObjects)
+                    baked.emitInstances(buffer, object, transforms, instances, TessellatorModel.MATRIX_4X3, null);
+                return buffer;
+            }
+        });
+        // one ray per operation, going through the same rays for the tree and the loop
+        benchmarks.add(new Benchmark("TriangleBVH.closestHit")
+        {
+            int ray;
+
+            @Override
+            public Object run()
+            {
+                int r = (ray++ % RAYS) * 6;
+                return bvh.closestHit(rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], Float.MAX_VALUE, hit);
+            }
+        });
+        benchmarks.add(new Benchmark("bruteForce.closestHit")
+        {
+            int ray;
+
+            @Override
+            public Object run()
+            {
+                int r = (ray++ % RAYS) * 6;
+                return bruteForceHit(merged, rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], Float.MAX_VALUE, hit);
+            }
+        });
+        benchmarks.add(new Benchmark("TriangleBVH.anyHit")
+        {
+            int ray;
+
+            @Override
+            public Object run()
+            {
+                int r = (ray++ % RAYS) * 6;
+                return bvh.anyHit(rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], Float.MAX_VALUE);
+            }
+        });
+        benchmarks.add(new Benchmark("bruteForce.anyHit")
+        {
+            int ray;
+
+            @Override
+            public Object run()
+            {
+                int r = (ray++ % RAYS) * 6;
+                return bruteForceHit(merged, rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], Float.MAX_VALUE, null);
+            }
+        });
+        return benchmarks;
+    }
+}
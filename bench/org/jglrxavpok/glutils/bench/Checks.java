@@ -0,0 +1,1331 @@
+package org.jglrxavpok.glutils.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.vecmath.Vector3f;
+
+import org.jglrxavpok.glutils.BakedModelCache;
+import org.jglrxavpok.glutils.BakedModelFormat;
+import org.jglrxavpok.glutils.DecodedTexture;
+import org.jglrxavpok.glutils.GroupHandle;
+import org.jglrxavpok.glutils.IndexedModel;
+import org.jglrxavpok.glutils.IntList;
+import org.jglrxavpok.glutils.LoadMetrics;
+import org.jglrxavpok.glutils.Material;
+import org.jglrxavpok.glutils.Mesh;
+import org.jglrxavpok.glutils.ModelMetrics;
+import org.jglrxavpok.glutils.OBJLoader;
+import org.jglrxavpok.glutils.PixelConverter;
+import org.jglrxavpok.glutils.RectanglePacker;
+import org.jglrxavpok.glutils.ObjEvent;
+import org.jglrxavpok.glutils.ObjEvent.EventType;
+import org.jglrxavpok.glutils.ObjEventListener;
+import org.jglrxavpok.glutils.ObjObject;
+import org.jglrxavpok.glutils.TessellatorModelEvent;
+import org.jglrxavpok.glutils.TextureAtlas;
+import org.jglrxavpok.glutils.TextureCache;
+import org.jglrxavpok.glutils.TriangleBVH;
+import org.jglrxavpok.glutils.TriangleBVH.RayHit;
+import org.jglrxavpok.glutils.Vertex;
+import org.jglrxavpok.glutils.VertexCacheOptimizer;
+import org.jglrxavpok.glutils.mc.CameraSource;
+import org.jglrxavpok.glutils.mc.ModelRegistry;
+import org.jglrxavpok.glutils.mc.ModelviewCameraSource;
+import org.jglrxavpok.glutils.mc.PackedVertexData;
+import org.jglrxavpok.glutils.mc.TessellatorModel;
+
+import net.minecraft.client.renderer.VertexBuffer;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Behaviour checks that need no GL context, run like {@link Benchmarks}: with the names (or parts of names) of the
+ * checks to run as arguments, all of them by default. Exits with status 1 if any check fails.
+ */
+public class Checks
+{
+
+    /**
+     * One check, failing by throwing
+     */
+    public static abstract class Check
+    {
+
+        private final String name;
+
+        public Check(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public abstract void run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception
+    {
+        int failures = 0;
+        for(Check check : createChecks())
+        {
+            if(!Benchmarks.selected(check.getName(), args))
+                continue;
+            try
+            {
+                check.run();
+                System.out.println("PASS " + check.getName());
+            }
+            catch(Throwable t)
+            {
+                failures++;
+                System.out.println("FAIL " + check.getName() + ": " + t);
+            }
+        }
+        if(failures > 0)
+        {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+    }
+
+    static void check(boolean condition, String message)
+    {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread
+     */
+    static long allocatedBytes()
+    {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs the task until it is compiled, then checks that a round of 1000 runs does not allocate. Rounds are repeated
+     * a few times, since compilation finishing in the middle of one can still leave a few bytes.
+     */
+    static void checkNoAllocation(String name, Runnable task)
+    {
+        for(int i = 0; i < 20000; i++ )
+            task.run();
+        long least = Long.MAX_VALUE;
+        for(int round = 0; round < 10 && least > 0; round++ )
+        {
+            long before = allocatedBytes();
+            for(int i = 0; i < 1000; i++ )
+                task.run();
+            least = Math.min(least, allocatedBytes() - before);
+        }
+        check(least == 0, name + " allocated at least " + least + " B in 1000 frames");
+    }
+
+    /**
+     * Texture backend decoding every path to a small gradient and counting uploads and deletions, so that textures can
+     * be checked without a GL context. Paths starting with "missing" cannot be decoded.
+     */
+    static class StubBackend implements TextureCache.Backend
+    {
+        int decodes;
+        int uploads;
+        final List<Integer> deleted = new ArrayList<Integer>();
+        private int nextId = 1;
+
+        @Override
+        public DecodedTexture decode(String path)
+        {
+            decodes++;
+            return path.startsWith("missing") ? null : gradient(4 + path.length(), 6, path.hashCode());
+        }
+
+        @Override
+        public int upload(DecodedTexture texture)
+        {
+            uploads++;
+            return nextId++;
+        }
+
+        @Override
+        public void delete(int id)
+        {
+            deleted.add(id);
+        }
+    }
+
+    /**
+     * @return a texture whose every pixel is different
+     */
+    static DecodedTexture gradient(int width, int height, int seed)
+    {
+        ByteBuffer pixels = ByteBuffer.allocate(width * height * 4).order(ByteOrder.nativeOrder());
+        for(int i = 0; i < width * height; i++ )
+            pixels.putInt(i * 4, seed * 31 + i);
+        return new DecodedTexture(pixels, width, height);
+    }
+
+    /**
+     * @return two triangles covering the given texture coordinates
+     */
+    static Mesh quad(float u0, float v0, float u1, float v1)
+    {
+        Mesh mesh = new Mesh();
+        mesh.data = new float[] { 0, 0, 0, u0, v0, 0, 0, 1, 1, 0, 0, u1, v0, 0, 0, 1, 1, 1, 0, u1, v1, 0, 0, 1, 0, 1, 0, u0, v1, 0, 0, 1 };
+        mesh.indices = new int[] { 0, 1, 2, 0, 2, 3 };
+        return mesh;
+    }
+
+    /**
+     * @return true if both loads have the same groups with the same vertices and indices
+     */
+    static boolean sameModels(HashMap<ObjObject, IndexedModel> expected, HashMap<ObjObject, IndexedModel> actual)
+    {
+        if(expected.size() != actual.size())
+            return false;
+        Map<String, IndexedModel> byName = new HashMap<String, IndexedModel>();
+        for(Map.Entry<ObjObject, IndexedModel> entry : actual.entrySet())
+            byName.put(entry.getKey().getName(), entry.getValue());
+        for(Map.Entry<ObjObject, IndexedModel> entry : expected.entrySet())
+        {
+            IndexedModel a = entry.getValue();
+            IndexedModel b = byName.get(entry.getKey().getName());
+            if(b == null || a.getVertexCount() != b.getVertexCount() || a.getIndexCount() != b.getIndexCount())
+                return false;
+            if(!Arrays.equals(Arrays.copyOf(a.getPositionData(), a.getVertexCount() * 3), Arrays.copyOf(b.getPositionData(), b.getVertexCount() * 3))
+                    || !Arrays.equals(Arrays.copyOf(a.getNormalData(), a.getVertexCount() * 3), Arrays.copyOf(b.getNormalData(), b.getVertexCount() * 3))
+                    || !Arrays.equals(Arrays.copyOf(a.getIndexData(), a.getIndexCount()), Arrays.copyOf(b.getIndexData(), b.getIndexCount())))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a model with its own diffuse texture and an ambient texture shared with the other models, uploaded with
+     *         the current {@link TextureCache}
+     */
+    static TessellatorModel texturedModel(String name, int seed) throws Exception
+    {
+        SyntheticOBJ generator = new SyntheticOBJ().setVertices(100).setFaces(150).setGroups(2).setMaterials(0).setSeed(seed);
+        List<ObjObject> objects = OBJLoader.toObjects(load(generator.generateOBJ(null)));
+        Material material = new Material(name);
+        material.diffuseTexturePath = "/" + name + ".png";
+        material.ambientTexturePath = "/shared.png";
+        material.loadTextures(false);
+        for(ObjObject object : objects)
+            object.material = material;
+        return TessellatorModel.fromObjects(name, objects);
+    }
+
+    /**
+     * Renders the model once {@link System#nanoTime()} moved past the last render time of any model
+     */
+    static void renderAfterClockTick(TessellatorModel model)
+    {
+        long start = System.nanoTime();
+        while(System.nanoTime() == start)
+            Thread.yield();
+        model.render();
+    }
+
+    /**
+     * Checks that both lists hold the same objects, with the same meshes and equivalent materials. Objects are matched
+     * by name, as {@link OBJLoader#toObjects(HashMap)} does not keep the order of the file.
+     */
+    static void sameObjects(List<ObjObject> expected, List<ObjObject> actual)
+    {
+        check(expected.size() == actual.size(), actual.size() + " objects instead of " + expected.size());
+        Map<String, ObjObject> byName = new HashMap<String, ObjObject>();
+        for(ObjObject object : actual)
+            byName.put(object.getName(), object);
+        for(ObjObject e : expected)
+        {
+            ObjObject a = byName.get(e.getName());
+            check(a != null, e.getName() + " missing");
+            check(e.mesh.layout.stride == a.mesh.layout.stride, "layout of " + e.getName() + " changed");
+            check(Arrays.equals(e.mesh.data, a.mesh.data), "vertices of " + e.getName() + " changed");
+            check(Arrays.equals(e.mesh.indices, a.mesh.indices), "indices of " + e.getName() + " changed");
+            // NaN for objects without vertices
+            check(Float.compare(e.center.x, a.center.x) == 0 && Float.compare(e.center.y, a.center.y) == 0 && Float.compare(e.center.z, a.center.z) == 0, "center of " + e.getName() + " changed");
+            if(e.material == null)
+            {
+                check(a.material == null, e.getName() + " gained a material");
+                continue;
+            }
+            check(a.material != null && e.material.getName().equals(a.material.getName()), "material of " + e.getName() + " changed");
+            check(sameColor(e.material.diffuseColor, a.material.diffuseColor) && sameColor(e.material.ambientColor, a.material.ambientColor), "colors of " + e.material.getName() + " changed");
+            check(e.material.transparency == a.material.transparency, "transparency of " + e.material.getName() + " changed");
+            check(same(e.material.diffuseTexturePath, a.material.diffuseTexturePath) && same(e.material.ambientTexturePath, a.material.ambientTexturePath), "textures of " + e.material.getName() + " changed");
+        }
+    }
+
+    static boolean sameColor(org.lwjgl.util.vector.Vector3f expected, org.lwjgl.util.vector.Vector3f actual)
+    {
+        if(expected == null || actual == null)
+            return expected == actual;
+        return expected.x == actual.x && expected.y == actual.y && expected.z == actual.z;
+    }
+
+    static boolean same(Object expected, Object actual)
+    {
+        return expected == null ? actual == null : expected.equals(actual);
+    }
+
+    static void releaseMaterials(List<ObjObject> objects)
+    {
+        for(ObjObject object : objects)
+        {
+            if(object.material != null)
+                object.material.releaseTextures();
+        }
+    }
+
+    static IndexedModel copy(IndexedModel model)
+    {
+        IndexedModel copy = new IndexedModel();
+        float[] positions = model.getPositionData();
+        float[] texCoords = model.getTexCoordData();
+        float[] normals = model.getNormalData();
+        for(int i = 0; i < model.getVertexCount(); i++ )
+            copy.addVertex(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2], texCoords[i * 2], texCoords[i * 2 + 1], normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]);
+        for(int i = 0; i < model.getIndexCount(); i++ )
+            copy.addIndex(model.getIndexData()[i]);
+        return copy;
+    }
+
+    /**
+     * @return the triangles of the model as sorted strings of their corner positions, each starting from its smallest
+     *         corner so that the winding is kept
+     */
+    static List<String> triangles(IndexedModel model)
+    {
+        float[] positions = model.getPositionData();
+        int[] indices = model.getIndexData();
+        List<String> triangles = new ArrayList<String>();
+        for(int i = 0; i + 2 < model.getIndexCount(); i += 3)
+        {
+            String[] corners = new String[3];
+            for(int c = 0; c < 3; c++ )
+            {
+                int p = indices[i + c] * 3;
+                corners[c] = positions[p] + "," + positions[p + 1] + "," + positions[p + 2];
+            }
+            int smallest = 0;
+            for(int c = 1; c < 3; c++ )
+            {
+                if(corners[c].compareTo(corners[smallest]) < 0)
+                    smallest = c;
+            }
+            triangles.add(corners[smallest] + " " + corners[(smallest + 1) % 3] + " " + corners[(smallest + 2) % 3]);
+        }
+        Collections.sort(triangles);
+        return triangles;
+    }
+
+    public static class RenderGroupHandler
+    {
+        @SubscribeEvent
+        public void onRenderGroup(TessellatorModelEvent.RenderGroupEvent.Pre event)
+        {
+        }
+    }
+
+    static HashMap<ObjObject, IndexedModel> load(String obj) throws Exception
+    {
+        return new OBJLoader().loadModel("/", ByteBuffer.wrap(obj.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static List<Check> createChecks()
+    {
+        List<Check> checks = new ArrayList<Check>();
+        checks.add(new Check("OBJLoader generates missing normals")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                String[] faces = { "f 1/1 2/2 3/3\nf 1/1 3/3 4/4\n", "f 1 2 3\nf 1 3 4\n", "f 1//1 2//1 3//1\nf 1//1 3//1 4//1\n" };
+                String vertices = "v 0 0 0\nv 1 0 0\nv 1 0 1\nv 0 0 1\nvt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\n";
+                for(int f = 0; f < faces.length; f++ )
+                {
+                    // the last file has normals, pointing down where generated ones would point up or down consistently
+                    String obj = vertices + (f == 2 ? "vn 0 -1 0\n" : "") + faces[f];
+                    int withNormal = 0;
+                    for(IndexedModel model : load(obj).values())
+                    {
+                        float[] normals = model.getNormalData();
+                        for(int i = 0; i < model.getVertexCount(); i++ )
+                        {
+                            float y = normals[i * 3 + 1];
+                            check(normals[i * 3] == 0 && normals[i * 3 + 2] == 0, "normal not along y in file " + f);
+                            check(Math.abs(Math.abs(y) - 1) < 1e-5f, "normal of vertex " + i + " is " + y + " in file " + f);
+                            if(f == 2)
+                                check(y < 0, "file normals were replaced");
+                            withNormal++;
+                        }
+                    }
+                    check(withNormal == 4, withNormal + " vertices in file " + f);
+                }
+
+                // groups sharing positions get normals from their own faces only: a floor facing up and a wall facing x
+                String shared = "v 0 0 0\nv 1 0 0\nv 1 0 1\nv 0 0 1\nv 0 1 0\nv 0 1 1\n"
+                        + "g floor\nf 1 4 3\nf 1 3 2\ng wall\nf 1 5 6\nf 1 6 4\ng floor2\nf 1 4 3\n";
+                for(Map.Entry<ObjObject, IndexedModel> entry : load(shared).entrySet())
+                {
+                    IndexedModel model = entry.getValue();
+                    if(model.getVertexCount() == 0)
+                        continue;
+                    int axis = entry.getKey().getName().equals("wall") ? 0 : 1;
+                    float[] normals = model.getNormalData();
+                    for(int i = 0; i < model.getVertexCount(); i++ )
+                        check(Math.abs(Math.abs(normals[i * 3 + axis]) - 1) < 1e-5f, "normal of vertex " + i + " of " + entry.getKey().getName() + " mixes other groups");
+                }
+            }
+        });
+        checks.add(new Check("OBJLoader parses large resources in parallel")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                byte[] obj = new SyntheticOBJ().setVertices(50000).setFaces(100000).setGroups(8).setMaterials(0).generateOBJ(null).getBytes(StandardCharsets.UTF_8);
+                File directory = File.createTempFile("objloader", "");
+                directory.delete();
+                directory.mkdirs();
+                File file = new File(directory, "large.obj");
+                File jar = new File(directory, "models.jar");
+                ForkJoinPool pool = new ForkJoinPool(4);
+                try
+                {
+                    FileOutputStream out = new FileOutputStream(file);
+                    out.write(obj);
+                    out.close();
+                    JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(jar));
+                    jarOut.putNextEntry(new JarEntry("models/large.obj"));
+                    jarOut.write(obj);
+                    jarOut.close();
+                    HashMap<ObjObject, IndexedModel> expected = new OBJLoader().setParallelThreshold(Integer.MAX_VALUE).loadModel("/", ByteBuffer.wrap(obj));
+                    URLClassLoader classLoader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+                    try
+                    {
+                        // a file on disk and a classpath resource in a jar, as models are found with getResource
+                        URL[] resources = { file.toURI().toURL(), classLoader.getResource("models/large.obj") };
+                        for(URL resource : resources)
+                        {
+                            LoadMetrics metrics = new LoadMetrics(resource.toString());
+                            HashMap<ObjObject, IndexedModel> loaded = new OBJLoader().setPool(pool).setParallelThreshold(obj.length / 2).setLoadMetrics(metrics).loadModel("/", resource);
+                            check(metrics.parseChunks > 1, resource + " parsed in " + metrics.parseChunks + " chunk(s)");
+                            check(metrics.inputBytes == obj.length, resource + " read " + metrics.inputBytes + " bytes");
+                            check(sameModels(expected, loaded), resource + " does not match a sequential parse");
+                        }
+                        // below the threshold resources are streamed
+                        LoadMetrics metrics = new LoadMetrics("streamed");
+                        HashMap<ObjObject, IndexedModel> loaded = new OBJLoader().setPool(pool).setParallelThreshold(obj.length + 1).setLoadMetrics(metrics).loadModel("/", file.toURI().toURL());
+                        check(metrics.parseChunks == 1 && sameModels(expected, loaded), "small resource not streamed");
+                    }
+                    finally
+                    {
+                        classLoader.close();
+                    }
+                }
+                finally
+                {
+                    pool.shutdown();
+                    file.delete();
+                    jar.delete();
+                    directory.delete();
+                }
+            }
+        });
+        checks.add(new Check("VertexCacheOptimizer is deterministic and lowers ACMR")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                String obj = new SyntheticOBJ().setVertices(3000).setFaces(6000).setGroups(3).setMaterials(0).generateOBJ(null);
+                for(IndexedModel original : load(obj).values())
+                {
+                    if(original.getIndexCount() == 0)
+                        continue;
+                    List<String> triangles = triangles(original);
+                    IndexedModel first = copy(original);
+                    IndexedModel second = copy(original);
+                    VertexCacheOptimizer.Result result = VertexCacheOptimizer.optimize(first, VertexCacheOptimizer.DEFAULT_CACHE_SIZE);
+                    VertexCacheOptimizer.optimize(second, VertexCacheOptimizer.DEFAULT_CACHE_SIZE);
+                    check(Arrays.equals(Arrays.copyOf(first.getIndexData(), first.getIndexCount()), Arrays.copyOf(second.getIndexData(), second.getIndexCount())), "two runs ordered the triangles differently");
+                    check(Arrays.equals(Arrays.copyOf(first.getPositionData(), first.getVertexCount() * 3), Arrays.copyOf(second.getPositionData(), second.getVertexCount() * 3)), "two runs numbered the vertices differently");
+                    check(result.acmrAfter <= result.acmrBefore, "ACMR went from " + result.acmrBefore + " to " + result.acmrAfter);
+                    check(triangles.equals(triangles(first)), "triangles changed");
+                }
+
+                // the loader reports the ratios through its metrics
+                LoadMetrics metrics = new LoadMetrics("optimized");
+                new OBJLoader().setOptimizeVertexCache(true).setLoadMetrics(metrics).loadModel("/", ByteBuffer.wrap(obj.getBytes(StandardCharsets.UTF_8)));
+                check(metrics.acmrAfter <= metrics.acmrBefore, "metrics report ACMR going from " + metrics.acmrBefore + " to " + metrics.acmrAfter);
+                check(metrics.acmrAfter > 0, "no ACMR in the metrics");
+                LoadMetrics plain = new LoadMetrics("plain");
+                new OBJLoader().setLoadMetrics(plain).loadModel("/", ByteBuffer.wrap(obj.getBytes(StandardCharsets.UTF_8)));
+                check(Float.isNaN(plain.acmrBefore) && Float.isNaN(plain.acmrAfter), "ACMR reported without optimization");
+            }
+        });
+        checks.add(new Check("IndexedModel list getters return copies")
+        {
+            @Override
+            @SuppressWarnings("deprecation")
+            public void run() throws Exception
+            {
+                // callers compiled against the former getters link against ArrayList return types
+                for(String getter : new String[] { "getPositions", "getTexCoords", "getNormals", "getIndices", "getTangents" })
+                    check(IndexedModel.class.getMethod(getter).getReturnType() == ArrayList.class, getter + " does not return an ArrayList");
+                IndexedModel model = new IndexedModel();
+                model.addVertex(1, 2, 3, 0.5f, 0.25f, 0, 1, 0);
+                model.addIndex(0);
+                check(model.getPositions().get(0).y == 2 && model.getTexCoords().get(0).y == 0.25f && model.getIndices().get(0) == 0, "wrong copy");
+                model.getPositions().add(new Vector3f());
+                model.getPositions().get(0).y = 7;
+                model.getIndices().clear();
+                check(model.getVertexCount() == 1 && model.getPositionData()[1] == 2 && model.getIndexCount() == 1, "changing a copy changed the model");
+                check(model.getTangents().size() == 1, "wrong tangents copy");
+            }
+        });
+        checks.add(new Check("IndexedModel only keeps tangents once computed")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(400).setFaces(600).setGroups(1).setMaterials(0);
+                for(IndexedModel model : load(generator.generateOBJ(null)).values())
+                {
+                    int vertices = model.getVertexCount();
+                    if(vertices == 0)
+                        continue;
+                    // positions, texture coordinates and normals, then indices
+                    long expected = (long)Math.max(vertices, 1) * 8 * 4 + (long)Math.max(model.getIndexCount(), 1) * 4;
+                    check(model.retainedBytes() == expected, "loaded model holds " + model.retainedBytes() + " B instead of " + expected);
+                    model.computeTangents();
+                    model.compact();
+                    check(model.retainedBytes() == expected + vertices * 4 * 4, "tangents not kept after compact");
+                    float[] tangents = model.getTangentData();
+                    check(tangents[0] != 0 || tangents[1] != 0 || tangents[2] != 0, "zero tangent");
+                }
+            }
+        });
+        checks.add(new Check("Mesh vertex views and meshChanged follow the data")
+        {
+            @Override
+            @SuppressWarnings("deprecation")
+            public void run() throws Exception
+            {
+                check(Mesh.isUsingVertexViews(), "vertex views are not built by default");
+                boolean vertexViews = Mesh.isUsingVertexViews();
+                try
+                {
+                    ObjObject quad = null;
+                    for(ObjObject object : OBJLoader.toObjects(load("g quad\nv 0 0 0\nv 1 0 0\nv 1 0 1\nv 0 0 1\nf 1 2 3\nf 1 3 4\n")))
+                    {
+                        if(object.getName().equals("quad"))
+                            quad = object;
+                    }
+                    Mesh mesh = quad.mesh;
+                    check(mesh.vertices != null && mesh.vertices.length == 4, "no vertex views");
+                    int p = mesh.layout.positionOffset;
+                    check(mesh.vertices[2].getPos().x == mesh.data[2 * mesh.layout.stride + p], "view does not match the data");
+                    mesh.data[2 * mesh.layout.stride + p + 1] = 5;
+                    check(mesh.vertices[2].getPos().y == 5, "view does not follow the data");
+                    mesh.data[2 * mesh.layout.stride + p + 1] = 0;
+
+                    // move the quad up by 10 and check that everything derived from it follows after meshChanged
+                    check(quad.getBVH().anyHit(0.5f, 1, 0.5f, 0, -1, 0, 2), "quad not hit");
+                    Vertex[] moved = mesh.getVertices();
+                    for(Vertex vertex : moved)
+                        vertex.getPos().y += 10;
+                    mesh.setVertices(moved);
+                    quad.meshChanged();
+                    check(quad.vertexData == null, "baked data kept");
+                    check(!quad.getBVH().anyHit(0.5f, 1, 0.5f, 0, -1, 0, 2), "BVH still has the old positions");
+                    check(quad.getBVH().anyHit(0.5f, 11, 0.5f, 0, -1, 0, 2), "moved quad not hit");
+                    quad.computeBounds();
+                    check(quad.boundsMin.y == 10, "bounds start at " + quad.boundsMin.y);
+                    check(mesh.vertices.length == 4 && mesh.vertices[0].getPos().y == 10, "views lost after setVertices");
+
+                    // the opt-out leaves new meshes without views
+                    Mesh.setVertexViews(false);
+                    for(ObjObject object : OBJLoader.toObjects(load("g quad\nv 0 0 0\nv 1 0 0\nv 1 0 1\nf 1 2 3\n")))
+                        check(object.mesh.vertices == null, "vertex views built after turning them off");
+                }
+                finally
+                {
+                    Mesh.setVertexViews(vertexViews);
+                }
+            }
+        });
+        checks.add(new Check("PixelConverter matches getRGB")
+        {
+            @Override
+            public void run()
+            {
+                int[] types = { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_USHORT_565_RGB };
+                // the larger size goes through the parallel bands
+                int[] sizes = { 300, 1024 };
+                for(int type : types)
+                {
+                    for(int size : sizes)
+                    {
+                        BufferedImage image = new SyntheticOBJ().generateTexture(size, size + 1, type);
+                        ByteBuffer rgba = PixelConverter.toRGBA(image).order(ByteOrder.BIG_ENDIAN);
+                        check(rgba.remaining() == size * (size + 1) * 4, "wrong size for type " + type);
+                        for(int y = 0; y <= size; y++ )
+                        {
+                            for(int x = 0; x < size; x++ )
+                            {
+                                int argb = image.getRGB(x, y);
+                                int expected = argb << 8 | argb >>> 24;
+                                int actual = rgba.getInt((y * size + x) * 4);
+                                check(actual == expected, "type " + type + " pixel " + x + "," + y + ": " + Integer.toHexString(actual) + " instead of " + Integer.toHexString(expected));
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        checks.add(new Check("PackedVertexData transforms ranges like whole arrays")
+        {
+            @Override
+            public void run()
+            {
+                Random random = new Random(31);
+                int[] source = new int[1000 * PackedVertexData.INTS_PER_VERTEX];
+                for(int i = 0; i < source.length; i += PackedVertexData.INTS_PER_VERTEX)
+                {
+                    for(int j = 0; j < 5; j++ )
+                        source[i + j] = Float.floatToRawIntBits(random.nextFloat() * 10 - 5);
+                    source[i + 5] = PackedVertexData.packNormal(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+                }
+                float[] matrices = { 2, 0, 0, 1, 0, 2, 0, 2, 0, 0, 2, 3, 1, 0.5f, 0, 0, 0, 1, 0, 0, 0, 0, 3, -1 };
+                for(int offset = 0; offset < matrices.length; offset += TessellatorModel.MATRIX_4X3)
+                {
+                    int[] whole = new int[source.length];
+                    PackedVertexData.transform(source, whole, matrices, offset, TessellatorModel.MATRIX_4X3);
+                    int chunk = 256 * PackedVertexData.INTS_PER_VERTEX;
+                    for(int start = 0; start < source.length; start += chunk)
+                    {
+                        int length = Math.min(chunk, source.length - start);
+                        int[] part = new int[length];
+                        PackedVertexData.transform(source, start, length, part, matrices, offset, TessellatorModel.MATRIX_4X3);
+                        for(int i = 0; i < length; i++ )
+                            check(part[i] == whole[start + i], "matrix " + offset / TessellatorModel.MATRIX_4X3 + " differs at int " + (start + i));
+                    }
+                }
+            }
+        });
+        checks.add(new Check("TextureCache shares textures until their last release")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                StubBackend backend = new StubBackend();
+                TextureCache cache = new TextureCache(backend);
+
+                TextureCache.Texture first = cache.acquire("/textures/stone.png");
+                TextureCache.Texture second = cache.acquire("/textures/stone.png");
+                check(first == second, "the same path gave two textures");
+                check(backend.decodes == 1, "decoded " + backend.decodes + " times");
+                check(cache.getRefCount("/textures/stone.png") == 2, "ref count " + cache.getRefCount("/textures/stone.png"));
+                int id = first.upload();
+                check(second.upload() == id && id != 0, "uploaded as " + id + " and " + second.getId());
+                check(backend.uploads == 1, "uploaded " + backend.uploads + " times");
+
+                cache.release(first);
+                check(backend.deleted.isEmpty(), "deleted while still used");
+                check(second.getId() == id, "the remaining user lost the texture");
+                cache.release(second);
+                check(backend.deleted.equals(Arrays.asList(id)), "deleted " + backend.deleted);
+                check(cache.size() == 0 && cache.getRefCount("/textures/stone.png") == 0, "released texture still cached");
+
+                // a new user after the last release decodes it again
+                TextureCache.Texture again = cache.acquire("/textures/stone.png");
+                check(again != first && backend.decodes == 2, "reused a deleted texture");
+                cache.release(again);
+                check(backend.deleted.equals(Arrays.asList(id)), "deleted a texture that was never uploaded");
+
+                TextureCache.Texture missing = cache.acquire("missing.png");
+                check(missing.upload() == 0 && backend.uploads == 1, "uploaded a texture that could not be read");
+                cache.release(missing);
+
+                // atlas keys come with their pixels and are never decoded
+                DecodedTexture pixels = gradient(8, 8, 1);
+                TextureCache.Texture atlas = cache.acquire("model#atlas", pixels);
+                TextureCache.Texture sameAtlas = cache.acquire("model#atlas", gradient(8, 8, 2));
+                check(atlas == sameAtlas && atlas.getPixels() == pixels, "the atlas key was not shared");
+                check(backend.decodes == 3, "decoded an atlas key");
+                check(atlas.getBytes() == 8 * 8 * 4, "atlas size " + atlas.getBytes());
+                int atlasId = atlas.upload();
+                check(sameAtlas.upload() == atlasId && backend.uploads == 2, "atlas uploaded " + (backend.uploads - 1) + " times");
+                cache.release(atlas);
+                check(backend.deleted.size() == 1 && cache.getRefCount("model#atlas") == 1, "atlas deleted while still used");
+                cache.release(sameAtlas);
+                check(backend.deleted.equals(Arrays.asList(id, atlasId)), "deleted " + backend.deleted);
+                check(cache.size() == 0, cache.size() + " textures left");
+            }
+        });
+        checks.add(new Check("ModelRegistry evicts the least recently rendered models")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                TextureCache previous = TextureCache.getInstance();
+                StubBackend backend = new StubBackend();
+                TextureCache cache = new TextureCache(backend);
+                TextureCache.setInstance(cache);
+                try
+                {
+                    ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE);
+                    TessellatorModel first = texturedModel("first", 1);
+                    TessellatorModel second = texturedModel("second", 2);
+                    TessellatorModel third = texturedModel("third", 3);
+                    registry.put("/first.obj", first);
+                    registry.put("/second.obj", second);
+                    registry.put("/third.obj", third);
+                    // never started, so it stays loading and is older than every other model
+                    final List<Runnable> queued = new ArrayList<Runnable>();
+                    Executor executor = new Executor()
+                    {
+                        @Override
+                        public void execute(Runnable command)
+                        {
+                            queued.add(command);
+                        }
+                    };
+                    TessellatorModel loading = registry.getAsync("/loading.obj", executor);
+                    check(registry.getAsync("/loading.obj", executor) == loading, "loading model not shared");
+                    check(registry.get("/second.obj") == second, "registered model not shared");
+                    check(registry.getMisses() == 1 && registry.getHits() == 2, registry.getMisses() + " misses and " + registry.getHits() + " hits");
+                    check(!loading.isReady() && loading.getLastRenderTime() < first.getLastRenderTime(), "the loading model is not the oldest");
+
+                    // rendered from least to most recent: second, first, third
+                    renderAfterClockTick(second);
+                    renderAfterClockTick(first);
+                    renderAfterClockTick(third);
+                    check(second.getLastRenderTime() < first.getLastRenderTime() && first.getLastRenderTime() < third.getLastRenderTime(), "render times not ordered");
+                    check(cache.getRefCount("/shared.png") == 3, "shared texture used " + cache.getRefCount("/shared.png") + " times");
+
+                    registry.setMemoryBudget(registry.getRetainedBytes() - 1);
+                    check(registry.getEvictions() == 1 && registry.size() == 3, registry.getEvictions() + " evictions, " + registry.size() + " models left");
+                    check(!second.isReady() && first.isReady() && third.isReady(), "evicted another model than the least recently rendered");
+                    check(cache.getRefCount("/second.png") == 0 && backend.deleted.size() == 1, "textures of the evicted model not released: " + backend.deleted);
+                    check(cache.getRefCount("/shared.png") == 2, "shared texture released " + (3 - cache.getRefCount("/shared.png")) + " times");
+
+                    registry.setMemoryBudget(third.retainedBytes());
+                    check(registry.getEvictions() == 2 && !first.isReady() && third.isReady(), "evicted " + registry.getEvictions() + " models instead of the second least recently rendered");
+
+                    registry.setMemoryBudget(0);
+                    check(registry.getEvictions() == 3 && !third.isReady(), "last ready model not evicted");
+                    check(registry.size() == 1 && registry.getAsync("/loading.obj", executor) == loading, "evicted the loading model");
+                    check(backend.deleted.size() == 4 && cache.size() == 0, "textures left after evicting every model: " + backend.deleted);
+                    check(registry.getHits() == 3 && registry.getMisses() == 1, registry.getMisses() + " misses and " + registry.getHits() + " hits");
+                    check(queued.size() == 1, queued.size() + " loads queued");
+                }
+                finally
+                {
+                    TextureCache.setInstance(previous);
+                }
+            }
+        });
+        checks.add(new Check("BakedModelFormat round-trips models and corrupt cache entries are rebuilt")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                TextureCache previous = TextureCache.getInstance();
+                StubBackend backend = new StubBackend();
+                TextureCache cache = new TextureCache(backend);
+                TextureCache.setInstance(cache);
+                File directory = new File(System.getProperty("java.io.tmpdir"), "baked-check-" + System.nanoTime());
+                try
+                {
+                    SyntheticOBJ generator = new SyntheticOBJ().setVertices(300).setFaces(500).setGroups(4).setMaterials(0);
+                    String obj = generator.generateOBJ(null);
+                    List<ObjObject> objects = OBJLoader.toObjects(load(obj));
+                    Material stone = new Material("stone");
+                    stone.diffuseColor = new org.lwjgl.util.vector.Vector3f(0.5f, 0.25f, 1f);
+                    stone.transparency = 0.75f;
+                    stone.diffuseTexturePath = "/stone.png";
+                    Material glass = new Material("glass");
+                    glass.ambientColor = new org.lwjgl.util.vector.Vector3f(0.1f, 0.2f, 0.3f);
+                    glass.ambientTexturePath = "/glass.png";
+                    for(int i = 0; i < objects.size(); i++ )
+                        objects.get(i).material = i == 0 ? null : i % 2 == 0 ? stone : glass;
+
+                    // round trip
+                    check(directory.mkdirs(), "could not create " + directory);
+                    File file = new File(directory, "model.bmdl");
+                    BakedModelFormat.write(objects, file);
+                    List<ObjObject> read = BakedModelFormat.read(file, true);
+                    sameObjects(objects, read);
+                    Material sharedStone = null;
+                    for(ObjObject object : read)
+                    {
+                        if(object.material != null && object.material.getName().equals("stone"))
+                        {
+                            check(sharedStone == null || sharedStone == object.material, "shared material read twice");
+                            sharedStone = object.material;
+                        }
+                    }
+                    check(cache.getRefCount("/stone.png") == 1 && cache.getRefCount("/glass.png") == 1, "textures not acquired once per material");
+                    check(backend.uploads == 0, "uploaded textures while deferring");
+                    releaseMaterials(read);
+
+                    // corrupt files throw without keeping textures and can be deleted right away
+                    byte[] bytes = Files.readAllBytes(file.toPath());
+                    for(int length : new int[] { 0, 7, bytes.length / 3, bytes.length - 1 })
+                    {
+                        Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+                        try
+                        {
+                            BakedModelFormat.read(file, true);
+                            check(false, "read a file truncated to " + length + " bytes");
+                        }
+                        catch(IOException e)
+                        {
+                            // expected
+                        }
+                        check(cache.size() == 0, "textures kept after failing to read " + length + " bytes");
+                        check(file.delete(), "could not delete a file truncated to " + length + " bytes");
+                    }
+                    byte[] huge = bytes.clone();
+                    ByteBuffer.wrap(huge).putInt(8, Integer.MAX_VALUE);
+                    Files.write(file.toPath(), huge);
+                    try
+                    {
+                        BakedModelFormat.read(file, true);
+                        check(false, "read a file with an impossible material count");
+                    }
+                    catch(IOException e)
+                    {
+                        // expected
+                    }
+                    check(file.delete(), "could not delete the corrupt file");
+
+                    // the cache reads its entries, and parses again when one is corrupt
+                    BakedModelCache bakedCache = new BakedModelCache(directory);
+                    ByteBuffer data = ByteBuffer.wrap(obj.getBytes(StandardCharsets.UTF_8));
+                    List<ObjObject> parsed = bakedCache.load("/models/model.obj", data.duplicate(), true, false);
+                    File[] entries = directory.listFiles();
+                    check(entries.length == 1 && entries[0].getName().endsWith(".bmdl"), "entries: " + Arrays.toString(entries));
+                    File entry = entries[0];
+                    long entryLength = entry.length();
+                    List<ObjObject> other = OBJLoader.toObjects(load(generator.setSeed(5).generateOBJ(null)));
+                    BakedModelFormat.write(other, entry);
+                    sameObjects(other, bakedCache.load("/models/model.obj", data.duplicate(), true, false));
+
+                    Files.write(entry.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+                    sameObjects(parsed, bakedCache.load("/models/model.obj", data.duplicate(), true, false));
+                    check(entry.length() == entryLength, "corrupt entry not rewritten");
+                    sameObjects(parsed, BakedModelFormat.read(entry, true));
+                }
+                finally
+                {
+                    TextureCache.setInstance(previous);
+                    File[] files = directory.listFiles();
+                    if(files != null)
+                    {
+                        for(File file : files)
+                            file.delete();
+                    }
+                    directory.delete();
+                }
+            }
+        });
+        checks.add(new Check("TextureAtlas packs textures and remaps texture coordinates")
+        {
+            @Override
+            public void run()
+            {
+                // random rectangles neither overlap nor leave the area
+                RectanglePacker packer = new RectanglePacker(128, 128);
+                Random random = new Random(5);
+                boolean[] used = new boolean[128 * 128];
+                int[] position = new int[2];
+                int placed = 0;
+                for(int i = 0; i < 200; i++ )
+                {
+                    int width = 1 + random.nextInt(24);
+                    int height = 1 + random.nextInt(24);
+                    if(!packer.insert(width, height, position))
+                        continue;
+                    placed++;
+                    check(position[0] >= 0 && position[1] >= 0 && position[0] + width <= 128 && position[1] + height <= 128, "rectangle " + i + " is out of the area");
+                    for(int y = position[1]; y < position[1] + height; y++ )
+                    {
+                        for(int x = position[0]; x < position[0] + width; x++ )
+                        {
+                            check(!used[y * 128 + x], "rectangle " + i + " overlaps another one");
+                            used[y * 128 + x] = true;
+                        }
+                    }
+                }
+                check(placed >= 30, "only " + placed + " rectangles placed");
+
+                // every texture is copied to its region, its edges repeated in the padding
+                Map<String, DecodedTexture> textures = new HashMap<String, DecodedTexture>();
+                textures.put("a", gradient(16, 16, 1));
+                textures.put("b", gradient(7, 30, 2));
+                textures.put("c", gradient(20, 5, 3));
+                int padding = 2;
+                TextureAtlas atlas = TextureAtlas.pack(textures, padding, 4096);
+                check(atlas != null, "textures not packed");
+                DecodedTexture packed = atlas.getTexture();
+                ByteBuffer atlasPixels = packed.pixels.duplicate().order(ByteOrder.nativeOrder());
+                for(Map.Entry<String, DecodedTexture> entry : textures.entrySet())
+                {
+                    DecodedTexture texture = entry.getValue();
+                    TextureAtlas.Region region = atlas.getRegion(entry.getKey());
+                    check(region.width == texture.width && region.height == texture.height, "wrong region size for " + entry.getKey());
+                    for(int y = -padding; y < texture.height + padding; y++ )
+                    {
+                        for(int x = -padding; x < texture.width + padding; x++ )
+                        {
+                            int sourceX = Math.min(Math.max(x, 0), texture.width - 1);
+                            int sourceY = Math.min(Math.max(y, 0), texture.height - 1);
+                            int expected = texture.pixels.getInt((sourceY * texture.width + sourceX) * 4);
+                            int actual = atlasPixels.getInt(((region.y + y) * packed.width + region.x + x) * 4);
+                            check(actual == expected, entry.getKey() + " pixel " + x + "," + y + " not copied");
+                        }
+                    }
+                }
+
+                // coordinates in another repetition are moved back, v going up while rows go down
+                Mesh mesh = quad(2, 2, 3, 3);
+                check(TextureAtlas.fitsSingleTile(mesh), "[2;3] does not fit a single tile");
+                check(!TextureAtlas.fitsSingleTile(quad(0, 0, 1.5f, 1)), "[0;1.5] fits a single tile");
+                TextureAtlas.Region region = atlas.getRegion("b");
+                atlas.remap(mesh, region);
+                float[] expected = { region.x, region.y + region.height, region.x + region.width, region.y + region.height, region.x + region.width, region.y, region.x, region.y };
+                for(int i = 0; i < 4; i++ )
+                {
+                    float u = mesh.data[i * 8 + 3] * packed.width;
+                    float v = (1 - mesh.data[i * 8 + 4]) * packed.height;
+                    check(Math.abs(u - expected[i * 2]) < 1e-3f && Math.abs(v - expected[i * 2 + 1]) < 1e-3f, "corner " + i + " remapped to " + u + "," + v);
+                }
+
+                // building: materials of wrapping objects keep their texture, the others share the atlas
+                TextureCache previous = TextureCache.getInstance();
+                StubBackend backend = new StubBackend();
+                TextureCache cache = new TextureCache(backend);
+                TextureCache.setInstance(cache);
+                try
+                {
+                    List<ObjObject> objects = new ArrayList<ObjObject>();
+                    String[] paths = { "first.png", "second.png", "wrapping.png", "first.png" };
+                    Mesh[] meshes = { quad(0, 0, 1, 1), quad(1, 1, 2, 2), quad(0, 0, 3, 1), quad(0.5f, 0, 1, 0.5f) };
+                    Material shared = null;
+                    for(int i = 0; i < paths.length; i++ )
+                    {
+                        ObjObject object = new ObjObject("group" + i);
+                        object.mesh = meshes[i];
+                        if(i == 3)
+                        {
+                            object.material = shared;
+                        }
+                        else
+                        {
+                            object.material = new Material("material" + i);
+                            object.material.diffuseTexturePath = paths[i];
+                            object.material.loadTextures(true);
+                        }
+                        if(i == 0)
+                            shared = object.material;
+                        objects.add(object);
+                    }
+                    float[] wrapping = objects.get(2).mesh.data.clone();
+                    check(TextureAtlas.build(objects, "model#atlas", padding, 4096) != null, "no atlas built");
+                    check(objects.get(0).material.getDiffuseTextureEntry().getPath().equals("model#atlas"), "first material not moved to the atlas");
+                    check(objects.get(1).material.getDiffuseTextureEntry().getPath().equals("model#atlas"), "second material not moved to the atlas");
+                    check(objects.get(2).material.getDiffuseTextureEntry().getPath().equals("wrapping.png"), "wrapping material moved to the atlas");
+                    check(Arrays.equals(objects.get(2).mesh.data, wrapping), "wrapping texture coordinates changed");
+                    check(cache.getRefCount("model#atlas") == 2, "atlas has " + cache.getRefCount("model#atlas") + " users");
+                    check(cache.getRefCount("first.png") == 0 && cache.getRefCount("second.png") == 0, "packed textures still in the cache");
+                    for(ObjObject object : objects)
+                        object.material.uploadPendingTextures();
+                    check(backend.uploads == 2, backend.uploads + " uploads instead of the atlas and the wrapping texture");
+                    for(int i = 0; i < 3; i++ )
+                        objects.get(i).material.releaseTextures();
+                    check(cache.size() == 0 && backend.deleted.size() == 2, "textures left after releasing every material");
+                }
+                finally
+                {
+                    TextureCache.setInstance(previous);
+                }
+            }
+        });
+        checks.add(new Check("TessellatorModel draws groups sharing a texture together")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(200).setFaces(300).setGroups(5).setMaterials(0);
+                List<ObjObject> objects = OBJLoader.toObjects(load(generator.generateOBJ(null)));
+                Material material = new Material("atlas");
+                material.diffuseTexture = 7;
+                for(ObjObject object : objects)
+                    object.material = material;
+                TessellatorModel model = TessellatorModel.fromObjects("batches", objects);
+                // default configuration, Forge events posted but nothing subscribed
+                model.render();
+                check(model.getDrawnGroups() == objects.size(), model.getDrawnGroups() + " groups drawn out of " + objects.size());
+                check(model.getDrawCalls() == 1, model.getDrawCalls() + " draws instead of a single batch");
+                // group events need each group drawn on its own
+                Object handler = new RenderGroupHandler();
+                TessellatorModel.MODEL_RENDERING_BUS.register(handler);
+                try
+                {
+                    model.render();
+                    check(model.getDrawCalls() == objects.size(), model.getDrawCalls() + " draws for " + objects.size() + " groups with a group handler");
+                }
+                finally
+                {
+                    TessellatorModel.MODEL_RENDERING_BUS.unregister(handler);
+                }
+                model.render();
+                check(model.getDrawCalls() == 1, "groups not batched again once the handler is gone");
+            }
+        });
+        checks.add(new Check("TessellatorModel emits vertex by vertex unless baked")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(300).setFaces(500).setGroups(3).setMaterials(0);
+                TessellatorModel model = TessellatorModel.fromObjects("emit", OBJLoader.toObjects(load(generator.generateOBJ(null))));
+                // the buffer translation only applies to vertices emitted one by one, so that stays the default
+                check(!model.isBakedRendering(), "baked rendering is on by default");
+                final IntList emitted = new IntList();
+                VertexBuffer recorder = new NullVertexBuffer()
+                {
+                    @Override
+                    public VertexBuffer pos(double x, double y, double z)
+                    {
+                        emitted.add(Float.floatToRawIntBits((float)x));
+                        emitted.add(Float.floatToRawIntBits((float)y));
+                        emitted.add(Float.floatToRawIntBits((float)z));
+                        return this;
+                    }
+
+                    @Override
+                    public VertexBuffer tex(double u, double v)
+                    {
+                        emitted.add(Float.floatToRawIntBits((float)u));
+                        emitted.add(Float.floatToRawIntBits((float)v));
+                        return this;
+                    }
+
+                    @Override
+                    public VertexBuffer normal(float x, float y, float z)
+                    {
+                        emitted.add(PackedVertexData.packNormal(x, y, z));
+                        return this;
+                    }
+
+                    @Override
+                    public void addVertexData(int[] vertexData)
+                    {
+                        for(int value : vertexData)
+                            emitted.add(value);
+                    }
+                };
+                for(ObjObject object : model.objObjects)
+                {
+                    emitted.clear();
+                    model.setBakedRendering(false);
+                    int vertices = model.emitGroup(recorder, object);
+                    check(object.vertexData == null, "group baked without baked rendering");
+                    int[] oneByOne = emitted.toArray();
+                    emitted.clear();
+                    model.setBakedRendering(true);
+                    check(model.emitGroup(recorder, object) == vertices, "baked group has another vertex count");
+                    check(Arrays.equals(emitted.toArray(), oneByOne), "baked data differs from the emitted vertices of " + object.getName());
+                }
+            }
+        });
+        checks.add(new Check("TessellatorModel draw order follows group and material changes")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(200).setFaces(300).setGroups(4).setMaterials(0);
+                List<ObjObject> objects = OBJLoader.toObjects(load(generator.generateOBJ(null)));
+                List<ObjObject> extra = OBJLoader.toObjects(load(generator.setSeed(3).generateOBJ(null)));
+                for(ObjObject object : objects)
+                    object.material = new Material(object.getName());
+                TessellatorModel model = TessellatorModel.fromObjects("order", objects);
+                final List<ObjObject> order = new ArrayList<ObjObject>();
+                model.addListener(EventType.PRE_RENDER_GROUP, new ObjEventListener()
+                {
+                    @Override
+                    public boolean handle(ObjEvent event)
+                    {
+                        order.add((ObjObject)event.data[1]);
+                        return true;
+                    }
+                });
+                model.render();
+                check(order.equals(model.objObjects), "opaque groups not drawn in load order");
+
+                // a material turned transparent moves its group to the end without indexGroups
+                ObjObject first = model.objObjects.get(0);
+                first.material.transparency = 0.5f;
+                order.clear();
+                model.render();
+                check(order.size() == model.objObjects.size() && order.get(order.size() - 1) == first, "group not drawn last once transparent");
+                first.material.transparency = 1f;
+                order.clear();
+                model.render();
+                check(order.equals(model.objObjects), "group not drawn in load order once opaque again");
+
+                // added and removed groups are picked up as well
+                model.objObjects.add(extra.get(0));
+                ObjObject removed = model.objObjects.remove(1);
+                order.clear();
+                model.render();
+                check(order.equals(model.objObjects) && !order.contains(removed), "draw order missed added or removed groups");
+            }
+        });
+        checks.add(new Check("TriangleBVH agrees with a brute-force loop")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(5000).setFaces(12000).setGroups(3).setMaterials(0);
+                Mesh mesh = Benchmarks.merge(load(generator.generateOBJ(null)).values());
+                TriangleBVH bvh = new TriangleBVH(mesh);
+                float[] rays = Benchmarks.createRays(2000, 23);
+                RayHit expected = new RayHit();
+                RayHit actual = new RayHit();
+                int hits = 0;
+                for(int r = 0; r < rays.length; r += 6)
+                {
+                    // rays ending right around the surface too, so that maxDistance is checked
+                    float maxDistance = r % 12 == 0 ? Float.MAX_VALUE : 1f;
+                    boolean reference = Benchmarks.bruteForceHit(mesh, rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], maxDistance, expected);
+                    boolean closest = bvh.closestHit(rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], maxDistance, actual);
+                    boolean any = bvh.anyHit(rays[r], rays[r + 1], rays[r + 2], rays[r + 3], rays[r + 4], rays[r + 5], maxDistance);
+                    check(closest == reference, "closestHit returned " + closest + " for ray " + r / 6);
+                    check(any == reference, "anyHit returned " + any + " for ray " + r / 6);
+                    if(reference)
+                    {
+                        // triangles sharing the hit point may be reported either way, only the distance has to match
+                        check(actual.distance == expected.distance, "ray " + r / 6 + " hit at " + actual.distance + " instead of " + expected.distance);
+                        hits++;
+                    }
+                }
+                check(hits > 500, "only " + hits + " rays hit");
+            }
+        });
+        checks.add(new Check("ModelviewCameraSource finds the eye in model space")
+        {
+            @Override
+            public void run()
+            {
+                Random random = new Random(17);
+                double[] eye = new double[3];
+                for(int i = 0; i < 1000; i++ )
+                {
+                    float[] m = new float[16];
+                    for(int k = 0; k < 15; k++ )
+                        m[k] = (random.nextFloat() - 0.5f) * (k >= 12 ? 2000 : 4);
+                    m[3] = m[7] = m[11] = 0;
+                    m[15] = 1;
+                    if(!ModelviewCameraSource.eyePosition(m, eye))
+                        continue;
+                    // the modelview moves the eye to the origin
+                    for(int r = 0; r < 3; r++ )
+                    {
+                        double v = m[r] * eye[0] + m[4 + r] * eye[1] + m[8 + r] * eye[2] + m[12 + r];
+                        check(Math.abs(v) < 1e-3 * (1 + Math.abs(m[12 + r])), "eye maps to " + v);
+                    }
+                }
+                check(!ModelviewCameraSource.eyePosition(new float[16], eye), "singular matrix accepted");
+            }
+        });
+        checks.add(new Check("TessellatorModel picks levels of detail in model space")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(2500).setFaces(4000).setGroups(1).setMaterials(0);
+                List<ObjObject> objects = OBJLoader.toObjects(load(generator.generateOBJ(null)));
+                for(ObjObject object : objects)
+                    object.generateLods(0.5f, 0.25f);
+                TessellatorModel model = TessellatorModel.fromObjects("lod", objects);
+                // the model is drawn at x = 1000 and the camera is right next to it, at (1000.5, 0, 1.5)
+                float modelX = 1000;
+                final float[] modelview = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, modelX - 1000.5f, 0, -1.5f, 1 };
+                model.setCameraSource(new CameraSource()
+                {
+                    @Override
+                    public boolean getPosition(double[] dest)
+                    {
+                        return ModelviewCameraSource.eyePosition(modelview, dest);
+                    }
+                });
+                ObjObject group = model.getGroups("group0")[0];
+                check(group.lods != null && group.lods.length == 2, "no simplified group");
+                check(model.selectLod(group) == 0, "close model rendered at level " + model.selectLod(group));
+                // moving the model away in view space picks the coarsest level
+                modelview[14] = -10000;
+                check(model.selectLod(group) == group.lods.length, "far model rendered at level " + model.selectLod(group));
+            }
+        });
+        checks.add(new Check("ModelMetrics emits JFR events")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                check(ModelMetrics.getInstance().getJfrSink() != null, "no JFR sink registered");
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(400).setFaces(600).setGroups(2).setMaterials(0);
+                TessellatorModel model = TessellatorModel.fromObjects("jfr", OBJLoader.toObjects(load(generator.generateOBJ(null))));
+                boolean postForgeEvents = TessellatorModel.isPostingForgeEvents();
+                TessellatorModel.setPostForgeEvents(false);
+                File file = File.createTempFile("metrics", ".jfr");
+                Recording recording = new Recording();
+                try
+                {
+                    // a render before recording starts must not show up
+                    model.render();
+                    recording.enable("org.jglrxavpok.glutils.GroupRender");
+                    recording.start();
+                    LoadMetrics load = new LoadMetrics("jfr");
+                    load.inputBytes = 1234;
+                    ModelMetrics.getInstance().recordLoad(load);
+                    model.render();
+                    recording.stop();
+                    recording.dump(file.toPath());
+                    int loads = 0, renders = 0, groups = 0;
+                    for(RecordedEvent event : RecordingFile.readAllEvents(file.toPath()))
+                    {
+                        String type = event.getEventType().getName();
+                        if(!type.startsWith("org.jglrxavpok.glutils.") || !"jfr".equals(event.getString("model")))
+                            continue;
+                        if(type.endsWith(".ModelLoad"))
+                        {
+                            loads++;
+                            check(event.getLong("inputBytes") == 1234, "load recorded " + event.getLong("inputBytes") + " input bytes");
+                        }
+                        else if(type.endsWith(".ModelRender"))
+                        {
+                            renders++;
+                            check(event.getLong("vertices") > 0, "render recorded no vertices");
+                        }
+                        else if(type.endsWith(".GroupRender"))
+                        {
+                            groups++;
+                        }
+                    }
+                    // the loader also creates an empty main group
+                    check(loads == 1 && renders == 1 && groups == model.objObjects.size(), loads + " loads, " + renders + " renders, " + groups + " group renders recorded");
+                }
+                finally
+                {
+                    recording.close();
+                    file.delete();
+                    TessellatorModel.setPostForgeEvents(postForgeEvents);
+                }
+            }
+        });
+        checks.add(new Check("TessellatorModel renders without allocating")
+        {
+            @Override
+            public void run() throws Exception
+            {
+                SyntheticOBJ generator = new SyntheticOBJ().setVertices(400).setFaces(600).setGroups(4).setMaterials(0);
+                final TessellatorModel model = TessellatorModel.fromObjects("allocation", OBJLoader.toObjects(load(generator.generateOBJ(null))));
+                final GroupHandle handle = model.compileGroups("group1", "group3");
+                // default configuration: Forge events posted, nothing registered on the bus
+                check(TessellatorModel.isPostingForgeEvents(), "Forge events are not posted by default");
+                try
+                {
+                    checkNoAllocation("render()", new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            model.render();
+                        }
+                    });
+                    checkNoAllocation("renderGroups(String)", new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            model.renderGroups("group2");
+                        }
+                    });
+                    checkNoAllocation("renderGroups(GroupHandle)", new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            model.renderGroups(handle);
+                        }
+                    });
+                    // the frustum is then read from the GL matrices on each render
+                    model.setFrustumCulling(true);
+                    checkNoAllocation("render() with frustum culling", new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            model.render();
+                        }
+                    });
+                    // a handler gets its events built, they go away with it
+                    Object handler = new RenderGroupHandler();
+                    TessellatorModel.MODEL_RENDERING_BUS.register(handler);
+                    long before = allocatedBytes();
+                    model.render();
+                    check(allocatedBytes() > before, "no event built for a registered handler");
+                    TessellatorModel.MODEL_RENDERING_BUS.unregister(handler);
+                    checkNoAllocation("render() once the handler is unregistered", new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            model.render();
+                        }
+                    });
+                }
+                finally
+                {
+                    model.setFrustumCulling(false);
+                }
+            }
+        });
+        return checks;
+    }
+}
@@ -0,0 +1,65 @@
+package org.jglrxavpok.glutils.bench;
+
+import net.minecraft.client.renderer.VertexBuffer;
+
+/**
+ * Stand-in for the Minecraft vertex buffer that only counts what is emitted into it, so that emitting can be measured
+ * without a GL context
+ */
+public class NullVertexBuffer extends VertexBuffer
+{
+
+    private long vertices;
+    private long ints;
+
+    public NullVertexBuffer()
+    {
+        super(16);
+    }
+
+    @Override
+    public VertexBuffer pos(double x, double y, double z)
+    {
+        return this;
+    }
+
+    @Override
+    public VertexBuffer tex(double u, double v)
+    {
+        return this;
+    }
+
+    @Override
+    public VertexBuffer normal(float x, float y, float z)
+    {
+        return this;
+    }
+
+    @Override
+    public void endVertex()
+    {
+        vertices++;
+    }
+
+    @Override
+    public void addVertexData(int[] vertexData)
+    {
+        ints += vertexData.length;
+    }
+
+    /**
+     * @return number of vertices emitted one by one
+     */
+    public long getEmittedVertices()
+    {
+        return vertices;
+    }
+
+    /**
+     * @return number of ints of baked vertex data added
+     */
+    public long getAddedInts()
+    {
+        return ints;
+    }
+}
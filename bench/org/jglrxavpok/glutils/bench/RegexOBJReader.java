@@ -0,0 +1,108 @@
+package org.jglrxavpok.glutils.bench;
+
+import java.util.ArrayList;
+
+import javax.vecmath.Vector2f;
+import javax.vecmath.Vector3f;
+
+/**
+ * Reference for the throughput of {@link org.jglrxavpok.glutils.OBJLoader}: the String based tokenizing the loader used
+ * before it parsed raw bytes, kept as it was. The text is decoded, split in lines with a regex, each line split on
+ * spaces and every value parsed into its own object. It stops there: no model is built, materials are not loaded, so
+ * comparing it with a full load understates the gain.
+ */
+public class RegexOBJReader
+{
+
+    public static class Index
+    {
+        int positionIndex;
+        int texCoordsIndex;
+        int normalIndex;
+    }
+
+    public final ArrayList<Vector3f> positions = new ArrayList<Vector3f>();
+    public final ArrayList<Vector2f> texCoords = new ArrayList<Vector2f>();
+    public final ArrayList<Vector3f> normals = new ArrayList<Vector3f>();
+    public final ArrayList<Index> indices = new ArrayList<Index>();
+    public final ArrayList<String> groups = new ArrayList<String>();
+    public final ArrayList<String> materials = new ArrayList<String>();
+
+    public RegexOBJReader read(byte[] obj) throws Exception
+    {
+        String res = new String(obj, "UTF-8");
+        String lines[] = res.split("\n|\r");
+        for(String line : lines)
+        {
+            if(line != null && !line.trim().equals(""))
+            {
+                String[] parts = trim(line.split(" "));
+                if(parts.length == 0)
+                    continue;
+                if(parts[0].equals("#"))
+                {
+                    continue;
+                }
+                else if(parts[0].equals("v"))
+                {
+                    positions.add(new Vector3f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
+                }
+                else if(parts[0].equals("f"))
+                {
+                    for(int i = 0; i < parts.length - 3; i++)
+                    {
+                        indices.add(parseIndex(parts[1]));
+                        indices.add(parseIndex(parts[2 + i]));
+                        indices.add(parseIndex(parts[3 + i]));
+                    }
+                }
+                else if(parts[0].equals("vn"))
+                {
+                    normals.add(new Vector3f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
+                }
+                else if(parts[0].equals("vt"))
+                {
+                    texCoords.add(new Vector2f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2])));
+                }
+                else if(parts[0].equals("usemtl") || parts[0].equals("mtllib"))
+                {
+                    materials.add(parts[1]);
+                }
+                else if(parts[0].equals("o") || parts[0].equals("g"))
+                {
+                    groups.add(parts[1]);
+                }
+            }
+        }
+        return this;
+    }
+
+    private static Index parseIndex(String token)
+    {
+        Index index = new Index();
+        String[] values = token.split("/");
+
+        index.positionIndex = Integer.parseInt(values[0]) - 1;
+        if(values.length > 1)
+        {
+            if(values[1] != null && !values[1].equals(""))
+            {
+                index.texCoordsIndex = Integer.parseInt(values[1]) - 1;
+            }
+            if(values.length > 2)
+            {
+                index.normalIndex = Integer.parseInt(values[2]) - 1;
+            }
+        }
+        return index;
+    }
+
+    private static String[] trim(String[] split)
+    {
+        ArrayList<String> strings = new ArrayList<String>();
+        for(String s : split)
+            if(s != null && !s.trim().equals(""))
+                strings.add(s);
+        return strings.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,173 @@
+package org.jglrxavpok.glutils.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates OBJ and MTL files of a chosen size, always the same for the same settings.
+ * <br/>
+ * Vertices lie on a bumpy square grid; faces are the triangles of that grid, reused from the start when more faces than
+ * the grid holds are asked for. Faces are split evenly between groups, each group using one of the materials in turn.
+ */
+public class SyntheticOBJ
+{
+
+    private int vertices = 10000;
+    private int faces = 20000;
+    private int groups = 8;
+    private int materials = 4;
+    private boolean texCoords = true;
+    private boolean normals = true;
+    private long seed = 42;
+
+    public SyntheticOBJ setVertices(int vertices)
+    {
+        this.vertices = Math.max(vertices, 4);
+        return this;
+    }
+
+    public SyntheticOBJ setFaces(int faces)
+    {
+        this.faces = Math.max(faces, 1);
+        return this;
+    }
+
+    public SyntheticOBJ setGroups(int groups)
+    {
+        this.groups = Math.max(groups, 1);
+        return this;
+    }
+
+    public SyntheticOBJ setMaterials(int materials)
+    {
+        this.materials = Math.max(materials, 0);
+        return this;
+    }
+
+    public SyntheticOBJ setTexCoords(boolean texCoords)
+    {
+        this.texCoords = texCoords;
+        return this;
+    }
+
+    public SyntheticOBJ setNormals(boolean normals)
+    {
+        this.normals = normals;
+        return this;
+    }
+
+    public SyntheticOBJ setSeed(long seed)
+    {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param materialLib name written in the <code>mtllib</code> statement, or null for none
+     */
+    public String generateOBJ(String materialLib)
+    {
+        Random random = new Random(seed);
+        int side = (int)Math.ceil(Math.sqrt(vertices));
+        StringBuilder out = new StringBuilder(faces * 48 + vertices * 80);
+        out.append("# synthetic model: ").append(vertices).append(" vertices, ").append(faces).append(" faces\n");
+        if(materialLib != null)
+            out.append("mtllib ").append(materialLib).append('\n');
+        for(int i = 0; i < vertices; i++ )
+        {
+            float x = (i % side) / (float)side;
+            float z = (i / side) / (float)side;
+            float y = (float)(Math.sin(x * 17) * Math.cos(z * 11) * 0.05 + random.nextFloat() * 0.001);
+            out.append(String.format(Locale.ROOT, "v %.6f %.6f %.6f\n", x, y, z));
+            if(texCoords)
+                out.append(String.format(Locale.ROOT, "vt %.6f %.6f\n", x, z));
+            if(normals)
+            {
+                float nx = random.nextFloat() * 0.1f;
+                float nz = random.nextFloat() * 0.1f;
+                float length = (float)Math.sqrt(nx * nx + 1 + nz * nz);
+                out.append(String.format(Locale.ROOT, "vn %.6f %.6f %.6f\n", nx / length, 1 / length, nz / length));
+            }
+        }
+
+        // rows of quads whose four corners all exist
+        int rows = vertices / side - 1;
+        int gridTriangles = Math.max(1, (side - 1) * rows * 2);
+        int perGroup = (faces + groups - 1) / groups;
+        for(int f = 0; f < faces; f++ )
+        {
+            if(f % perGroup == 0)
+            {
+                int group = f / perGroup;
+                out.append("g group").append(group).append('\n');
+                if(materials > 0)
+                    out.append("usemtl material").append(group % materials).append('\n');
+            }
+            int triangle = f % gridTriangles;
+            int quad = triangle / 2;
+            int a = (quad / (side - 1)) * side + quad % (side - 1);
+            int b = a + 1;
+            int c = a + side;
+            int d = c + 1;
+            out.append('f');
+            if(triangle % 2 == 0)
+                corners(out, a, c, b);
+            else
+                corners(out, b, c, d);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private void corners(StringBuilder out, int... vertices)
+    {
+        for(int vertex : vertices)
+        {
+            int index = vertex + 1;
+            out.append(' ').append(index);
+            if(texCoords || normals)
+                out.append('/');
+            if(texCoords)
+                out.append(index);
+            if(normals)
+                out.append('/').append(index);
+        }
+    }
+
+    /**
+     * @param texture name of the diffuse texture of every material, or null for none
+     */
+    public String generateMTL(String texture)
+    {
+        Random random = new Random(seed);
+        StringBuilder out = new StringBuilder(materials * 128);
+        for(int i = 0; i < materials; i++ )
+        {
+            out.append("newmtl material").append(i).append('\n');
+            out.append(String.format(Locale.ROOT, "Ka %.4f %.4f %.4f\n", random.nextFloat(), random.nextFloat(), random.nextFloat()));
+            out.append(String.format(Locale.ROOT, "Kd %.4f %.4f %.4f\n", random.nextFloat(), random.nextFloat(), random.nextFloat()));
+            out.append("Ks 0.5 0.5 0.5\n");
+            out.append("d 1.0\n");
+            out.append("illum 2\n");
+            if(texture != null)
+                out.append("map_Kd ").append(texture).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return a noisy image of the given type, e.g. {@link BufferedImage#TYPE_INT_ARGB}
+     */
+    public BufferedImage generateTexture(int width, int height, int type)
+    {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for(int y = 0; y < height; y++ )
+        {
+            for(int x = 0; x < width; x++ )
+                image.setRGB(x, y, random.nextInt());
+        }
+        return image;
+    }
+}
@@ -0,0 +1,136 @@
+package org.jglrxavpok.glutils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits every measurement as a JDK Flight Recorder event, so that loads and renders show up in recordings next to GC
+ * and allocation events. {@link ModelMetrics} registers one on its own when the runtime has JFR (Java 8u272 and later),
+ * see {@link ModelMetrics#getJfrSink()}; this class must not be loaded otherwise.
+ * <br/>
+ * <code>jdk.jfr</code> is not part of the Java 8 API, so this class lives in its own source folder: it is compiled
+ * against a JDK that has it, with the library on the classpath, and shipped next to the library as an optional part.
+ * <br/>
+ * Nothing is built while no recording enables the events. Group renders happen for every group of every frame, so their
+ * event is disabled by default and has to be turned on in the recording settings.
+ */
+public class JfrMetricsSink implements MetricsSink
+{
+
+    @Name("org.jglrxavpok.glutils.ModelLoad")
+    @Label("Model Load")
+    @Category("OBJ Models")
+    public static class LoadEvent extends Event
+    {
+        @Label("Model")
+        String model;
+        @Label("Input Size")
+        @DataAmount
+        long inputBytes;
+        @Label("Parse Time")
+        @Timespan
+        long parseNanos;
+        @Label("Dedup Time")
+        @Timespan
+        long dedupNanos;
+        @Label("Mesh Build Time")
+        @Timespan
+        long meshBuildNanos;
+        @Label("Texture Decode Time")
+        @Timespan
+        long textureDecodeNanos;
+        @Label("Corners")
+        long corners;
+        @Label("Unique Vertices")
+        long uniqueVertices;
+        @Label("Retained Size")
+        @DataAmount
+        long retainedBytes;
+    }
+
+    @Name("org.jglrxavpok.glutils.ModelRender")
+    @Label("Model Render")
+    @Category("OBJ Models")
+    public static class RenderEvent extends Event
+    {
+        @Label("Model")
+        String model;
+        @Label("Vertices")
+        long vertices;
+        @Label("Render Time")
+        @Timespan
+        long nanos;
+    }
+
+    @Name("org.jglrxavpok.glutils.GroupRender")
+    @Label("Group Render")
+    @Category("OBJ Models")
+    @Description("Render of a single group, either on its own or as part of a whole model render")
+    @Enabled(false)
+    public static class GroupRenderEvent extends Event
+    {
+        @Label("Model")
+        String model;
+        @Label("Group")
+        String group;
+        @Label("Vertices")
+        long vertices;
+        @Label("Render Time")
+        @Timespan
+        long nanos;
+    }
+
+    private final EventType loadType = EventType.getEventType(LoadEvent.class);
+    private final EventType renderType = EventType.getEventType(RenderEvent.class);
+    private final EventType groupRenderType = EventType.getEventType(GroupRenderEvent.class);
+
+    @Override
+    public void loadCompleted(LoadMetrics load)
+    {
+        if(!loadType.isEnabled())
+            return;
+        LoadEvent event = new LoadEvent();
+        event.model = load.name;
+        event.inputBytes = load.inputBytes;
+        event.parseNanos = load.parseNanos;
+        event.dedupNanos = load.dedupNanos;
+        event.meshBuildNanos = load.meshBuildNanos;
+        event.textureDecodeNanos = load.textureDecodeNanos;
+        event.corners = load.corners;
+        event.uniqueVertices = load.uniqueVertices;
+        event.retainedBytes = load.retainedBytes;
+        event.commit();
+    }
+
+    @Override
+    public void modelRendered(ObjModel model, long vertices, long nanos)
+    {
+        if(!renderType.isEnabled())
+            return;
+        RenderEvent event = new RenderEvent();
+        event.model = model.getID();
+        event.vertices = vertices;
+        event.nanos = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void groupRendered(ObjModel model, ObjObject group, long vertices, long nanos)
+    {
+        if(!groupRenderType.isEnabled())
+            return;
+        GroupRenderEvent event = new GroupRenderEvent();
+        event.model = model.getID();
+        event.group = group.getName();
+        event.vertices = vertices;
+        event.nanos = nanos;
+        event.commit();
+    }
+}
@@ -0,0 +1,150 @@
+package org.jglrxavpok.glutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * On-disk cache of baked models, see {@link BakedModelFormat}.
+ * <br/>
+ * Entries are keyed by a hash of the OBJ file and of every material library it references, so editing either
+ * one makes the old entry unreachable and the model is parsed and baked again.
+ */
+public class BakedModelCache
+{
+
+    private static final String EXTENSION = ".bmdl";
+
+    private final File directory;
+
+    public BakedModelCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the model at the given classpath location, from the cache when possible
+     */
+    public List<ObjObject> load(String path) throws Exception
+    {
+        return load(path, false);
+    }
+
+    /**
+     * Loads the model at the given classpath location, from the cache when possible
+     * @param deferTextureUpload true to only decode textures, see {@link Material#uploadPendingTextures()}
+     */
+    public List<ObjObject> load(String path, boolean deferTextureUpload) throws Exception
+    {
+        return load(path, deferTextureUpload, false);
+    }
+
+    /**
+     * Loads the model at the given classpath location, from the cache when possible
+     * @param deferTextureUpload true to only decode textures, see {@link Material#uploadPendingTextures()}
+     * @param optimizeVertexCache true to reorder the meshes for the vertex cache, see
+     * {@link OBJLoader#setOptimizeVertexCache(boolean)}. Optimized and plain copies are cached separately.
+     */
+    public List<ObjObject> load(String path, boolean deferTextureUpload, boolean optimizeVertexCache) throws Exception
+    {
+        InputStream resource = BakedModelCache.class.getResourceAsStream(path);
+        if(resource == null)
+            throw new IOException("Model not found: " + path);
+        return load(path, OBJLoader.readBuffer(resource), deferTextureUpload, optimizeVertexCache);
+    }
+
+    /**
+     * Loads the model whose OBJ file holds the given data, from the cache when possible. Material libraries are still
+     * looked up on the classpath, relative to <code>path</code>.
+     * @param deferTextureUpload true to only decode textures, see {@link Material#uploadPendingTextures()}
+     * @param optimizeVertexCache true to reorder the meshes for the vertex cache, see
+     * {@link OBJLoader#setOptimizeVertexCache(boolean)}
+     */
+    public List<ObjObject> load(String path, ByteBuffer data, boolean deferTextureUpload, boolean optimizeVertexCache) throws Exception
+    {
+        String startPath = path.substring(0, path.lastIndexOf('/') + 1);
+        String key = computeKey(startPath, data);
+        if(optimizeVertexCache)
+            key += "-vco";
+        File entry = new File(directory, key + EXTENSION);
+        if(entry.isFile())
+        {
+            try
+            {
+                return BakedModelFormat.read(entry, deferTextureUpload);
+            }
+            catch(IOException e)
+            {
+                // the entry was read to the heap, nothing keeps the file open
+                e.printStackTrace();
+                entry.delete();
+            }
+        }
+
+        List<ObjObject> objects = OBJLoader.toObjects(new OBJLoader().setDeferTextureUpload(deferTextureUpload).setOptimizeVertexCache(optimizeVertexCache).loadModel(startPath, data.duplicate()));
+        store(objects, entry);
+        return objects;
+    }
+
+    private void store(List<ObjObject> objects, File entry)
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            return;
+        File temp = new File(directory, entry.getName() + ".tmp");
+        try
+        {
+            BakedModelFormat.write(objects, temp);
+            if(!temp.renameTo(entry))
+                temp.delete();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * Hashes the OBJ data and the content of every material library it references
+     */
+    public static String computeKey(String startPath, ByteBuffer objData) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(0, BakedModelFormat.VERSION));
+        digest.update(objData.duplicate());
+
+        OBJTokenizer tokenizer = new OBJTokenizer(objData.duplicate());
+        while(tokenizer.nextLine())
+        {
+            if(tokenizer.keyword("mtllib"))
+            {
+                String path = startPath + tokenizer.nextString();
+                digest.update(path.getBytes(StandardCharsets.UTF_8));
+                InputStream mtl = BakedModelCache.class.getResourceAsStream(path);
+                if(mtl != null)
+                    digest.update(OBJLoader.readBuffer(mtl));
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest.digest())
+        {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16));
+            key.append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,305 @@
+package org.jglrxavpok.glutils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary form of a fully loaded model: every {@link ObjObject} with its name, mesh, center and material.
+ * <br/>
+ * Layout (big-endian):
+ * <pre>
+ * int magic, int version
+ * int materialCount, then per material:
+ *     string name, byte flags (1: diffuse color, 2: ambient color), [float r, g, b], [float r, g, b],
+ *     float transparency, string diffuseTexturePath, string ambientTexturePath
+ * int objectCount, then per object:
+ *     string name, int materialIndex (-1 if none), float centerX, centerY, centerZ,
+ *     int vertexCount, int floatsPerVertex, float[vertexCount * floatsPerVertex] (interleaved as in {@link VertexLayout}),
+ *     int indexCount, int[indexCount]
+ * </pre>
+ * Strings are an int byte length (-1 for null) followed by UTF-8 bytes.
+ */
+public class BakedModelFormat
+{
+
+    public static final int MAGIC = 0x4F424A42; // "OBJB"
+    /**
+     * 2: object centers are computed from the vertices, version 1 files hold NaN centers
+     */
+    public static final int VERSION = 2;
+
+    private static final int HAS_DIFFUSE_COLOR = 1;
+    private static final int HAS_AMBIENT_COLOR = 2;
+
+    public static void write(List<ObjObject> objects, File file) throws IOException
+    {
+        List<Material> materials = new ArrayList<Material>();
+        for(ObjObject object : objects)
+        {
+            if(object.material != null && indexOf(materials, object.material) < 0)
+                materials.add(object.material);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(computeSize(objects, materials));
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(materials.size());
+        for(Material material : materials)
+        {
+            putString(buffer, material.getName());
+            int flags = (material.diffuseColor != null ? HAS_DIFFUSE_COLOR : 0) | (material.ambientColor != null ? HAS_AMBIENT_COLOR : 0);
+            buffer.put((byte)flags);
+            if(material.diffuseColor != null)
+                buffer.putFloat(material.diffuseColor.x).putFloat(material.diffuseColor.y).putFloat(material.diffuseColor.z);
+            if(material.ambientColor != null)
+                buffer.putFloat(material.ambientColor.x).putFloat(material.ambientColor.y).putFloat(material.ambientColor.z);
+            buffer.putFloat(material.transparency);
+            putString(buffer, material.diffuseTexturePath);
+            putString(buffer, material.ambientTexturePath);
+        }
+
+        buffer.putInt(objects.size());
+        for(ObjObject object : objects)
+        {
+            putString(buffer, object.getName());
+            buffer.putInt(object.material == null ? -1 : indexOf(materials, object.material));
+            if(object.center != null)
+                buffer.putFloat(object.center.x).putFloat(object.center.y).putFloat(object.center.z);
+            else
+                buffer.putFloat(0f).putFloat(0f).putFloat(0f);
+
+            float[] data = object.mesh == null ? new float[0] : object.mesh.data;
+            int[] indices = object.mesh == null ? new int[0] : object.mesh.indices;
+            int stride = object.mesh == null ? VertexLayout.POSITION_TEX_NORMAL.stride : object.mesh.layout.stride;
+            buffer.putInt(data.length / stride);
+            buffer.putInt(stride);
+            buffer.asFloatBuffer().put(data);
+            buffer.position(buffer.position() + data.length * 4);
+            buffer.putInt(indices.length);
+            buffer.asIntBuffer().put(indices);
+            buffer.position(buffer.position() + indices.length * 4);
+        }
+        buffer.flip();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            FileChannel channel = out.getChannel();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a baked model. Textures referenced by materials are decoded and uploaded, so this has to be called on a
+     * thread that owns a GL context.
+     */
+    public static List<ObjObject> read(File file) throws IOException
+    {
+        return read(file, false);
+    }
+
+    /**
+     * Reads a baked model. The file is read to the heap rather than memory-mapped, so it can be deleted as soon as this
+     * returns, even when it turned out to be malformed: a mapped file cannot be deleted on Windows until the mapping is
+     * garbage collected.
+     * @param deferTextureUpload true to only decode textures, see {@link Material#uploadPendingTextures()}
+     */
+    public static List<ObjObject> read(File file, boolean deferTextureUpload) throws IOException
+    {
+        ByteBuffer buffer;
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("Baked model too large: " + file);
+            buffer = ByteBuffer.allocate((int)size);
+            while(buffer.hasRemaining())
+            {
+                if(channel.read(buffer) < 0)
+                    throw new IOException("Baked model truncated while reading: " + file);
+            }
+            buffer.flip();
+        }
+        finally
+        {
+            in.close();
+        }
+        return read(buffer, deferTextureUpload);
+    }
+
+    /**
+     * Reads a baked model from the given data. If it is malformed, the textures acquired for its materials are released
+     * before throwing.
+     * @param deferTextureUpload true to only decode textures, see {@link Material#uploadPendingTextures()}
+     */
+    public static List<ObjObject> read(ByteBuffer buffer, boolean deferTextureUpload) throws IOException
+    {
+        List<Material> loaded = new ArrayList<Material>();
+        try
+        {
+            if(buffer.getInt() != MAGIC)
+                throw new IOException("Not a baked model");
+            int version = buffer.getInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported baked model version: " + version);
+
+            Material[] materials = new Material[getCount(buffer, 1)];
+            for(int i = 0; i < materials.length; i++)
+            {
+                Material material = new Material(getString(buffer));
+                int flags = buffer.get();
+                if((flags & HAS_DIFFUSE_COLOR) != 0)
+                    material.diffuseColor = new org.lwjgl.util.vector.Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                if((flags & HAS_AMBIENT_COLOR) != 0)
+                    material.ambientColor = new org.lwjgl.util.vector.Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+                material.transparency = buffer.getFloat();
+                material.diffuseTexturePath = getString(buffer);
+                material.ambientTexturePath = getString(buffer);
+                material.loadTextures(deferTextureUpload);
+                loaded.add(material);
+                materials[i] = material;
+            }
+
+            int objectCount = getCount(buffer, 1);
+            List<ObjObject> objects = new ArrayList<ObjObject>(objectCount);
+            for(int i = 0; i < objectCount; i++)
+            {
+                ObjObject object = new ObjObject(getString(buffer));
+                int materialIndex = buffer.getInt();
+                if(materialIndex >= materials.length)
+                    throw new IOException("Invalid material index");
+                if(materialIndex >= 0)
+                    object.material = materials[materialIndex];
+                object.center = new org.lwjgl.util.vector.Vector3f(buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+
+                int vertexCount = buffer.getInt();
+                VertexLayout layout = VertexLayout.forStride(buffer.getInt());
+                if(layout == null)
+                    throw new IOException("Invalid vertex layout");
+                if(vertexCount < 0 || vertexCount * (long)layout.stride * 4 > buffer.remaining())
+                    throw new IOException("Malformed baked model");
+                float[] data = new float[vertexCount * layout.stride];
+                buffer.asFloatBuffer().get(data);
+                buffer.position(buffer.position() + data.length * 4);
+
+                int[] indices = new int[getCount(buffer, 4)];
+                buffer.asIntBuffer().get(indices);
+                buffer.position(buffer.position() + indices.length * 4);
+
+                Mesh mesh = new Mesh();
+                mesh.layout = layout;
+                mesh.data = data;
+                mesh.indices = indices;
+                mesh.updateVertexViews();
+                object.mesh = mesh;
+                object.computeBounds();
+                objects.add(object);
+            }
+            return objects;
+        }
+        catch(IOException e)
+        {
+            releaseTextures(loaded);
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            // truncated or corrupted data
+            releaseTextures(loaded);
+            throw new IOException("Malformed baked model", e);
+        }
+    }
+
+    private static void releaseTextures(List<Material> materials)
+    {
+        for(Material material : materials)
+            material.releaseTextures();
+    }
+
+    /**
+     * Reads a count of elements of the given size, checking that they fit in the rest of the buffer so that corrupted
+     * data does not lead to huge allocations
+     */
+    private static int getCount(ByteBuffer buffer, int elementBytes) throws IOException
+    {
+        int count = buffer.getInt();
+        if(count < 0 || count * (long)elementBytes > buffer.remaining())
+            throw new IOException("Malformed baked model");
+        return count;
+    }
+
+    private static int computeSize(List<ObjObject> objects, List<Material> materials)
+    {
+        int size = 4 + 4 + 4;
+        for(Material material : materials)
+        {
+            size += stringSize(material.getName()) + 1 + 4;
+            if(material.diffuseColor != null)
+                size += 3 * 4;
+            if(material.ambientColor != null)
+                size += 3 * 4;
+            size += stringSize(material.diffuseTexturePath) + stringSize(material.ambientTexturePath);
+        }
+        size += 4;
+        for(ObjObject object : objects)
+        {
+            size += stringSize(object.getName()) + 4 + 3 * 4 + 4 + 4 + 4;
+            if(object.mesh != null)
+                size += object.mesh.data.length * 4 + object.mesh.indices.length * 4;
+        }
+        return size;
+    }
+
+    private static int indexOf(List<Material> materials, Material material)
+    {
+        for(int i = 0; i < materials.size(); i++)
+        {
+            if(materials.get(i) == material)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int stringSize(String s)
+    {
+        return 4 + (s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String s)
+    {
+        if(s == null)
+        {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.getInt();
+        if(length < 0)
+            return null;
+        if(length > buffer.remaining())
+            throw new IOException("Malformed baked model");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
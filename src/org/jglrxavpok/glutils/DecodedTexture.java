@@ -0,0 +1,21 @@
+package org.jglrxavpok.glutils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RGBA pixels of a texture that has been decoded but not uploaded yet, see {@link MtlMaterialLib#decodeTexture(String)}
+ */
+public class DecodedTexture
+{
+
+    public final ByteBuffer pixels;
+    public final int width;
+    public final int height;
+
+    public DecodedTexture(ByteBuffer pixels, int width, int height)
+    {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+    }
+}
@@ -0,0 +1,101 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive floats, backed by a single <code>float[]</code>
+ */
+public class FloatList
+{
+
+    private float[] data;
+    private int size;
+
+    public FloatList()
+    {
+        this(16);
+    }
+
+    public FloatList(int initialCapacity)
+    {
+        data = new float[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(float value)
+    {
+        if(size == data.length)
+            data = Arrays.copyOf(data, data.length * 2);
+        data[size++] = value;
+    }
+
+    public void add(float a, float b)
+    {
+        ensureCapacity(size + 2);
+        data[size++] = a;
+        data[size++] = b;
+    }
+
+    public void add(float a, float b, float c)
+    {
+        ensureCapacity(size + 3);
+        data[size++] = a;
+        data[size++] = b;
+        data[size++] = c;
+    }
+
+    public void addAll(FloatList other)
+    {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+    }
+
+    public float get(int index)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return data[index];
+    }
+
+    public void set(int index, float value)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        data[index] = value;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity)
+    {
+        if(capacity > data.length)
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+    }
+
+    public void trimToSize()
+    {
+        if(data.length != size)
+            data = Arrays.copyOf(data, Math.max(size, 1));
+    }
+
+    /**
+     * @return the backing array, only the first {@link #size()} values are meaningful
+     */
+    public float[] array()
+    {
+        return data;
+    }
+
+    public float[] toArray()
+    {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,119 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * View frustum as six planes (left, right, bottom, top, near, far) whose normals point inwards
+ */
+public class Frustum
+{
+
+    /**
+     * a, b, c, d of each plane, normalized so that a*x + b*y + c*z + d is the signed distance to the plane
+     */
+    private final float[] planes = new float[24];
+    /**
+     * Combined matrix computed by {@link #set(float[], float[])}, kept so that per-frame updates do not allocate
+     */
+    private final float[] clip = new float[16];
+
+    /**
+     * Extracts the planes of a combined projection and modelview matrix (Gribb, Hartmann). The frustum is then in the
+     * space the modelview matrix transforms from.
+     * @param projection column-major 4x4 matrix, as returned by <code>glGetFloat</code>
+     * @param modelview column-major 4x4 matrix
+     */
+    public Frustum set(float[] projection, float[] modelview)
+    {
+        for(int column = 0; column < 4; column++ )
+        {
+            for(int row = 0; row < 4; row++ )
+            {
+                float sum = 0;
+                for(int k = 0; k < 4; k++ )
+                    sum += projection[k * 4 + row] * modelview[column * 4 + k];
+                clip[column * 4 + row] = sum;
+            }
+        }
+        return set(clip);
+    }
+
+    /**
+     * Extracts the planes of a combined projection * modelview matrix
+     * @param clip column-major 4x4 matrix
+     */
+    public Frustum set(float[] clip)
+    {
+        for(int i = 0; i < 6; i++ )
+        {
+            // left, right, bottom, top, near, far: row 3 plus or minus row 0, 1 or 2
+            int row = i / 2;
+            float sign = i % 2 == 0 ? 1 : -1;
+            float a = clip[3] + sign * clip[row];
+            float b = clip[7] + sign * clip[4 + row];
+            float c = clip[11] + sign * clip[8 + row];
+            float d = clip[15] + sign * clip[12 + row];
+            setPlane(i, a, b, c, d);
+        }
+        return this;
+    }
+
+    /**
+     * Sets one plane, <code>a*x + b*y + c*z + d >= 0</code> being the inside. The plane is normalized.
+     * @param index 0 to 5
+     */
+    public Frustum setPlane(int index, float a, float b, float c, float d)
+    {
+        float length = (float)Math.sqrt(a * a + b * b + c * c);
+        if(length == 0)
+            length = 1;
+        planes[index * 4] = a / length;
+        planes[index * 4 + 1] = b / length;
+        planes[index * 4 + 2] = c / length;
+        planes[index * 4 + 3] = d / length;
+        return this;
+    }
+
+    /**
+     * @return false if the box is entirely outside of the frustum. Boxes near corners may be reported as intersecting.
+     */
+    public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+    {
+        for(int i = 0; i < 24; i += 4)
+        {
+            float a = planes[i];
+            float b = planes[i + 1];
+            float c = planes[i + 2];
+            // corner farthest along the plane normal
+            float x = a >= 0 ? maxX : minX;
+            float y = b >= 0 ? maxY : minY;
+            float z = c >= 0 ? maxZ : minZ;
+            if(a * x + b * y + c * z + planes[i + 3] < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the sphere is entirely outside of the frustum
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius)
+    {
+        for(int i = 0; i < 24; i += 4)
+        {
+            if(planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < -radius)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the bounds of the object are entirely outside of the frustum
+     */
+    public boolean intersects(ObjObject object)
+    {
+        if(object.boundsMin == null)
+            object.computeBounds();
+        if(!intersectsSphere(object.sphereCenter.x, object.sphereCenter.y, object.sphereCenter.z, object.sphereRadius))
+            return false;
+        return intersectsBox(object.boundsMin.x, object.boundsMin.y, object.boundsMin.z, object.boundsMax.x, object.boundsMax.y, object.boundsMax.z);
+    }
+}
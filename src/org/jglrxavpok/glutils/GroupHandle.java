@@ -0,0 +1,35 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * One or more group names of a model, resolved once to the objects they designate. Obtained from
+ * {@link ObjModel#compileGroups(String...)} and rendered with {@link ObjModel#renderGroups(GroupHandle)}.
+ * <br/>
+ * If the groups of the model change (e.g. it finishes loading or is released), the handle resolves the names again
+ * on its next use.
+ */
+public class GroupHandle
+{
+
+    final ObjModel model;
+    final String[] names;
+    ObjObject[][] groups;
+    int generation;
+
+    GroupHandle(ObjModel model, String[] names)
+    {
+        this.model = model;
+        this.names = names.clone();
+        this.groups = new ObjObject[names.length][];
+        this.generation = -1;
+    }
+
+    public ObjModel getModel()
+    {
+        return model;
+    }
+
+    public String[] getNames()
+    {
+        return names.clone();
+    }
+}
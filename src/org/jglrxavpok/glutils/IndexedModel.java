@@ -1,159 +1,384 @@
 package org.jglrxavpok.glutils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import javax.vecmath.Vector2f;
 import javax.vecmath.Vector3f;
 
 import org.jglrxavpok.glutils.OBJLoader.OBJIndex;
 
-
+/**
+ * Geometry of a single object, stored as structure-of-arrays: positions, texture coordinates, normals
+ * and tangents each live in one growable <code>float[]</code> and indices in one <code>int[]</code>.
+ * <br/>
+ * The <code>get*Data()</code> accessors return the backing arrays, which may be longer than needed:
+ * only the first {@link #getVertexCount()} vertices and {@link #getIndexCount()} indices are meaningful.
+ * Tangent arrays are only allocated by {@link #computeTangents()} or when asked for.
+ */
 public class IndexedModel
 {
 
-	private ArrayList<Vector3f> vertices;
-	private ArrayList<Vector2f> texCoords;
-	private ArrayList<Vector3f> normals;
-	private ArrayList<Vector3f> tangents;
-	private ArrayList<Integer> indices;
+	private float[] positions;
+	private float[] texCoords;
+	private float[] normals;
+	/**
+	 * Null until tangents are computed or asked for
+	 */
+	private float[] tangents;
+	private float[] handedness;
+	private boolean tangentsComputed;
+	private int[] indices;
+	private int vertexCount;
+	private int indexCount;
     private ArrayList<OBJIndex> objindices;
 
 	public IndexedModel()
 	{
-		vertices = new ArrayList<Vector3f>();
-		texCoords = new ArrayList<Vector2f>();
-		normals = new ArrayList<Vector3f>();
-		tangents = new ArrayList<Vector3f>();
-		indices = new ArrayList<Integer>();
-		objindices = new ArrayList<OBJIndex>();
+		this(16, 16);
+	}
+
+	public IndexedModel(int vertexCapacity, int indexCapacity)
+	{
+		vertexCapacity = Math.max(vertexCapacity, 1);
+		positions = new float[vertexCapacity * 3];
+		texCoords = new float[vertexCapacity * 2];
+		normals = new float[vertexCapacity * 3];
+		indices = new int[Math.max(indexCapacity, 1)];
+	}
+
+	/**
+	 * Appends a vertex with a zero tangent
+	 * @return the index of the new vertex
+	 */
+	public int addVertex(float x, float y, float z, float u, float v, float nx, float ny, float nz)
+	{
+		ensureVertexCapacity(vertexCount + 1);
+		int p = vertexCount * 3;
+		positions[p] = x;
+		positions[p + 1] = y;
+		positions[p + 2] = z;
+		normals[p] = nx;
+		normals[p + 1] = ny;
+		normals[p + 2] = nz;
+		if(tangents != null)
+		{
+			tangents[p] = 0;
+			tangents[p + 1] = 0;
+			tangents[p + 2] = 0;
+			handedness[vertexCount] = 1;
+		}
+		int t = vertexCount * 2;
+		texCoords[t] = u;
+		texCoords[t + 1] = v;
+		return vertexCount++;
+	}
+
+	public void addIndex(int index)
+	{
+		if(indexCount == indices.length)
+			indices = Arrays.copyOf(indices, indices.length * 2);
+		indices[indexCount++] = index;
+	}
+
+	public void setNormal(int vertex, float x, float y, float z)
+	{
+		int p = vertex * 3;
+		normals[p] = x;
+		normals[p + 1] = y;
+		normals[p + 2] = z;
+	}
+
+	/**
+	 * Moves each vertex <code>i</code> to <code>newIndices[i]</code>. Indices are left untouched.
+	 */
+	public void permuteVertices(int[] newIndices)
+	{
+		positions = permute(positions, newIndices, 3);
+		texCoords = permute(texCoords, newIndices, 2);
+		normals = permute(normals, newIndices, 3);
+		if(tangents != null)
+		{
+			tangents = permute(tangents, newIndices, 3);
+			handedness = permute(handedness, newIndices, 1);
+		}
+	}
+
+	private float[] permute(float[] data, int[] newIndices, int size)
+	{
+		float[] result = new float[data.length];
+		for(int i = 0; i < vertexCount; i++ )
+			System.arraycopy(data, i * size, result, newIndices[i] * size, size);
+		return result;
+	}
+
+	public void ensureVertexCapacity(int capacity)
+	{
+		if(capacity * 3 > positions.length)
+		{
+			int newCapacity = Math.max(capacity, positions.length / 3 * 2);
+			positions = Arrays.copyOf(positions, newCapacity * 3);
+			texCoords = Arrays.copyOf(texCoords, newCapacity * 2);
+			normals = Arrays.copyOf(normals, newCapacity * 3);
+			if(tangents != null)
+			{
+				tangents = Arrays.copyOf(tangents, newCapacity * 3);
+				handedness = Arrays.copyOf(handedness, newCapacity);
+			}
+		}
+	}
+
+	/**
+	 * Allocates the tangent arrays if needed, with zero tangents and a handedness of 1
+	 */
+	private void ensureTangents()
+	{
+		if(tangents != null)
+			return;
+		int capacity = positions.length / 3;
+		tangents = new float[capacity * 3];
+		handedness = new float[capacity];
+		Arrays.fill(handedness, 1);
+	}
+
+	/**
+	 * Trims the backing arrays to the current vertex and index counts, to be called once the model is built. Adding
+	 * vertices or indices afterwards grows them again. Tangent arrays are dropped unless tangents were computed.
+	 */
+	public void compact()
+	{
+		int capacity = Math.max(vertexCount, 1);
+		if(!tangentsComputed)
+		{
+			tangents = null;
+			handedness = null;
+		}
+		if(positions.length > capacity * 3)
+		{
+			positions = Arrays.copyOf(positions, capacity * 3);
+			texCoords = Arrays.copyOf(texCoords, capacity * 2);
+			normals = Arrays.copyOf(normals, capacity * 3);
+			if(tangents != null)
+			{
+				tangents = Arrays.copyOf(tangents, capacity * 3);
+				handedness = Arrays.copyOf(handedness, capacity);
+			}
+		}
+		if(indices.length > Math.max(indexCount, 1))
+			indices = Arrays.copyOf(indices, Math.max(indexCount, 1));
+	}
+
+	/**
+	 * @return approximate number of bytes held by the backing arrays
+	 */
+	public long retainedBytes()
+	{
+		long bytes = (long)(positions.length + texCoords.length + normals.length + indices.length) * 4;
+		if(tangents != null)
+			bytes += (long)(tangents.length + handedness.length) * 4;
+		return bytes;
+	}
+
+	public void ensureIndexCapacity(int capacity)
+	{
+		if(capacity > indices.length)
+			indices = Arrays.copyOf(indices, Math.max(capacity, indices.length * 2));
+	}
+
+	public int getVertexCount()
+	{
+		return vertexCount;
+	}
+
+	public int getIndexCount()
+	{
+		return indexCount;
+	}
+
+	/**
+	 * @return x, y, z for each vertex
+	 */
+	public float[] getPositionData()
+	{
+		return positions;
+	}
+
+	/**
+	 * @return u, v for each vertex
+	 */
+	public float[] getTexCoordData()
+	{
+		return texCoords;
+	}
+
+	/**
+	 * @return x, y, z for each vertex
+	 */
+	public float[] getNormalData()
+	{
+		return normals;
+	}
+
+	/**
+	 * @return x, y, z for each vertex, zero until {@link #computeTangents()} is called. Allocates the tangent arrays if
+	 * they were not yet.
+	 */
+	public float[] getTangentData()
+	{
+		ensureTangents();
+		return tangents;
+	}
+
+	/**
+	 * @return for each vertex, 1 or -1 to multiply <code>cross(normal, tangent)</code> with to get the bitangent, see
+	 * {@link #computeTangents()}. Allocates the tangent arrays if they were not yet.
+	 */
+	public float[] getTangentHandednessData()
+	{
+		ensureTangents();
+		return handedness;
+	}
+
+	public int[] getIndexData()
+	{
+		return indices;
 	}
 
+	/**
+	 * @deprecated Returns a copy: changes to the list or to its vectors are not reflected in the model. Use
+	 *             {@link #getPositionData()}
+	 */
+	@Deprecated
 	public ArrayList<Vector3f> getPositions()
 	{
-		return vertices;
+		return toVectorList(positions);
 	}
 
+	/**
+	 * @deprecated Returns a copy, see {@link #getPositions()}. Use {@link #getTexCoordData()}
+	 */
+	@Deprecated
 	public ArrayList<Vector2f> getTexCoords()
 	{
-		return texCoords;
+		ArrayList<Vector2f> list = new ArrayList<Vector2f>(vertexCount);
+		for(int i = 0; i < vertexCount; i++ )
+			list.add(new Vector2f(texCoords[i * 2], texCoords[i * 2 + 1]));
+		return list;
 	}
 
+	/**
+	 * @deprecated Returns a copy, see {@link #getPositions()}. Use {@link #getNormalData()}
+	 */
+	@Deprecated
 	public ArrayList<Vector3f> getNormals()
 	{
-		return normals;
+		return toVectorList(normals);
 	}
 
+	/**
+	 * @deprecated Returns a copy, see {@link #getPositions()}. Use {@link #getIndexData()}
+	 */
+	@Deprecated
 	public ArrayList<Integer> getIndices()
 	{
-		return indices;
+		ArrayList<Integer> list = new ArrayList<Integer>(indexCount);
+		for(int i = 0; i < indexCount; i++ )
+			list.add(indices[i]);
+		return list;
 	}
 
+	/**
+	 * @deprecated Returns a copy, see {@link #getPositions()}. Use {@link #getTangentData()}
+	 */
+	@Deprecated
 	public ArrayList<Vector3f> getTangents()
 	{
-		return tangents;
+		return toVectorList(tangents == null ? new float[vertexCount * 3] : tangents);
+	}
+
+	private ArrayList<Vector3f> toVectorList(float[] data)
+	{
+		ArrayList<Vector3f> list = new ArrayList<Vector3f>(vertexCount);
+		for(int i = 0; i < vertexCount; i++ )
+			list.add(new Vector3f(data[i * 3], data[i * 3 + 1], data[i * 3 + 2]));
+		return list;
 	}
 
 	public void toMesh(Mesh mesh)
 	{
-		ArrayList<Vertex> verticesList = new ArrayList<Vertex>();
-		int n = Math.min(vertices.size(), Math.min(texCoords.size(), normals.size()));
-		for(int i = 0; i < n; i++ )
+		toMesh(mesh, false);
+	}
+
+	/**
+	 * Fills the mesh with interleaved vertex data, see {@link VertexLayout}
+	 * @param withTangents true to also pack tangents, using {@link VertexLayout#POSITION_TEX_NORMAL_TANGENT}
+	 */
+	public void toMesh(Mesh mesh, boolean withTangents)
+	{
+		VertexLayout layout = withTangents ? VertexLayout.POSITION_TEX_NORMAL_TANGENT : VertexLayout.POSITION_TEX_NORMAL;
+		int stride = layout.stride;
+		float[] data = new float[vertexCount * stride];
+		for(int i = 0; i < vertexCount; i++ )
 		{
-			Vertex vertex = new Vertex(vertices.get(i), 
-			        texCoords.get(i), 
-			        normals.get(i), new Vector3f());
-			verticesList.add(vertex);
+			int o = i * stride;
+			int p = i * 3;
+			int t = i * 2;
+			data[o] = positions[p];
+			data[o + 1] = positions[p + 1];
+			data[o + 2] = positions[p + 2];
+			data[o + 3] = texCoords[t];
+			data[o + 4] = texCoords[t + 1];
+			data[o + 5] = normals[p];
+			data[o + 6] = normals[p + 1];
+			data[o + 7] = normals[p + 2];
+			if(withTangents && tangents != null)
+			{
+				data[o + 8] = tangents[p];
+				data[o + 9] = tangents[p + 1];
+				data[o + 10] = tangents[p + 2];
+			}
 		}
-		Integer[] indicesArray = indices.toArray(new Integer[0]);
-		Vertex[] verticesArray = verticesList.toArray(new Vertex[0]);
-		int[] indicesArrayInt = new int[indicesArray.length];
-		for(int i = 0; i < indicesArray.length; i++ )
-			indicesArrayInt[i] = indicesArray[i];
-		mesh.vertices = verticesArray;
-		mesh.indices = indicesArrayInt;
+		mesh.layout = layout;
+		mesh.data = data;
+		mesh.indices = Arrays.copyOf(indices, indexCount);
+		mesh.updateVertexViews();
 	}
 
+	/**
+	 * Computes area-weighted smooth normals, see {@link #computeNormals(TangentSpaceGenerator.NormalWeighting)}
+	 */
 	public void computeNormals()
 	{
-		for(int i = 0; i < indices.size(); i += 3)
-		{
-			int i0 = indices.get(i);
-			int i1 = indices.get(i + 1);
-			int i2 = indices.get(i + 2);
-
-			Vector3f v = (Vector3f)vertices.get(i1).clone();
-			v.sub(vertices.get(i0));
-			Vector3f l0 = v;
-			v = (Vector3f)vertices.get(i2).clone();
-			v.sub(vertices.get(i0));
-			Vector3f l1 = v;
-			v = (Vector3f)l0.clone();
-			v.cross(l0, l1);
-			Vector3f normal = v;
-
-			v = (Vector3f)normals.get(i0).clone();
-			v.add(normal);
-			normals.set(i0, v);
-			v = (Vector3f)normals.get(i1).clone();
-            v.add(normal);
-			normals.set(i1, v);
-			v = (Vector3f)normals.get(i2).clone();
-            v.add(normal);
-			normals.set(i2, v);
-		}
+		computeNormals(TangentSpaceGenerator.NormalWeighting.AREA);
+	}
 
-		for(int i = 0; i < normals.size(); i++ )
-		{
-			normals.get(i).normalize();
-		}
+	/**
+	 * Replaces every normal by the weighted average of the normals of the triangles using the vertex
+	 */
+	public void computeNormals(TangentSpaceGenerator.NormalWeighting weighting)
+	{
+		TangentSpaceGenerator.computeNormals(positions, vertexCount, indices, indexCount, weighting, normals);
 	}
 
+	/**
+	 * Computes tangents orthogonal to the normals, which must be set, and their handedness, see
+	 * {@link TangentSpaceGenerator#computeTangents}
+	 */
 	public void computeTangents()
 	{
-		tangents.clear();
-		for(int i = 0; i < vertices.size(); i++ )
-			tangents.add(new Vector3f());
-
-		for(int i = 0; i < indices.size(); i += 3)
-		{
-			int i0 = indices.get(i);
-			int i1 = indices.get(i + 1);
-			int i2 = indices.get(i + 2);
-
-			Vector3f v = (Vector3f)vertices.get(i1).clone();
-			v.sub(vertices.get(i0));
-			Vector3f edge1 = v;
-			v = (Vector3f)vertices.get(i2).clone();
-			v.sub(vertices.get(i0));
-			Vector3f edge2 = v;
-
-			double deltaU1 = texCoords.get(i1).x - texCoords.get(i0).x;
-			double deltaU2 = texCoords.get(i2).x - texCoords.get(i0).x;
-			double deltaV1 = texCoords.get(i1).y - texCoords.get(i0).y;
-			double deltaV2 = texCoords.get(i2).y - texCoords.get(i0).y;
-
-			double dividend = (deltaU1 * deltaV2 - deltaU2 * deltaV1);
-			double f = dividend == 0.0f ? 0.0f : 1.0f / dividend;
-
-			Vector3f tangent = new Vector3f((float)(f * (deltaV2 * edge1.x - deltaV1 * edge2.x)), (float)(f * (deltaV2 * edge1.y - deltaV1 * edge2.y)), (float)(f * (deltaV2 * edge1.z - deltaV1 * edge2.z)));
-
-			v = (Vector3f)tangents.get(i0).clone();
-			v.add(tangent);
-			tangents.set(i0, v);
-			v = (Vector3f)tangents.get(i1).clone();
-			v.add(tangent);
-			tangents.set(i1, v);
-			v = (Vector3f)tangents.get(i2).clone();
-			v.add(tangent);
-			tangents.set(i2, v);
-		}
-
-		for(int i = 0; i < tangents.size(); i++ )
-			tangents.get(i).normalize();
+		ensureTangents();
+		TangentSpaceGenerator.computeTangents(positions, texCoords, normals, vertexCount, indices, indexCount, tangents, handedness);
+		tangentsComputed = true;
 	}
 
+    /**
+     * @deprecated The loader tracks face corners as packed int triples and no longer fills this list
+     */
+    @Deprecated
     public ArrayList<OBJIndex> getObjIndices()
     {
+        if(objindices == null)
+            objindices = new ArrayList<OBJIndex>();
         return objindices;
     }
 
@@ -162,15 +387,15 @@ public class IndexedModel
         float x = 0;
         float y = 0;
         float z = 0;
-        for(Vector3f position : vertices)
+        for(int i = 0; i < vertexCount * 3; i += 3)
         {
-            x += position.x;
-            y += position.y;
-            z += position.z;
+            x += positions[i];
+            y += positions[i + 1];
+            z += positions[i + 2];
         }
-        x /= vertices.size();
-        y /= vertices.size();
-        z /= vertices.size();
+        x /= vertexCount;
+        y /= vertexCount;
+        z /= vertexCount;
         return new org.lwjgl.util.vector.Vector3f(x, y, z);
     }
 }
@@ -0,0 +1,112 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, backed by a single <code>int[]</code>
+ */
+public class IntList
+{
+
+    private int[] data;
+    private int size;
+
+    public IntList()
+    {
+        this(16);
+    }
+
+    public IntList(int initialCapacity)
+    {
+        data = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(int value)
+    {
+        if(size == data.length)
+            data = Arrays.copyOf(data, data.length * 2);
+        data[size++] = value;
+    }
+
+    public void add(int a, int b)
+    {
+        ensureCapacity(size + 2);
+        data[size++] = a;
+        data[size++] = b;
+    }
+
+    public void add(int a, int b, int c)
+    {
+        ensureCapacity(size + 3);
+        data[size++] = a;
+        data[size++] = b;
+        data[size++] = c;
+    }
+
+    public void addAll(IntList other)
+    {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Appends the values of the given list between from (inclusive) and to (exclusive)
+     */
+    public void addAll(IntList other, int from, int to)
+    {
+        int count = to - from;
+        ensureCapacity(size + count);
+        System.arraycopy(other.data, from, data, size, count);
+        size += count;
+    }
+
+    public int get(int index)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        return data[index];
+    }
+
+    public void set(int index, int value)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        data[index] = value;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity)
+    {
+        if(capacity > data.length)
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+    }
+
+    public void trimToSize()
+    {
+        if(data.length != size)
+            data = Arrays.copyOf(data, Math.max(size, 1));
+    }
+
+    /**
+     * @return the backing array, only the first {@link #size()} values are meaningful
+     */
+    public int[] array()
+    {
+        return data;
+    }
+
+    public int[] toArray()
+    {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,68 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * Measurements of one model load, filled by {@link OBJLoader} and {@link OBJLoader#toObjects(java.util.HashMap, LoadMetrics)},
+ * then reported with {@link ModelMetrics#recordLoad(LoadMetrics)}
+ */
+public class LoadMetrics
+{
+
+    /**
+     * Model the load belongs to, its classpath location for models loaded by path
+     */
+    public final String name;
+    public long inputBytes;
+    /**
+     * Number of chunks the OBJ data was parsed in, more than one when it was parsed in parallel
+     */
+    public int parseChunks;
+    /**
+     * Time spent tokenizing the OBJ data and gathering its statements, material libraries excluded
+     */
+    public long parseNanos;
+    /**
+     * Time spent merging identical corners into indexed vertices
+     */
+    public long dedupNanos;
+    /**
+     * Time spent generating normals, optimizing and packing meshes
+     */
+    public long meshBuildNanos;
+    /**
+     * Time spent decoding the textures of material libraries, and uploading them unless deferred
+     */
+    public long textureDecodeNanos;
+    /**
+     * Number of triangle corners read
+     */
+    public long corners;
+    public long uniqueVertices;
+    /**
+     * Average vertex cache miss ratio of the meshes before and after {@link VertexCacheOptimizer optimization}, weighted
+     * by their triangles; NaN when the model was not optimized
+     */
+    public float acmrBefore = Float.NaN;
+    public float acmrAfter = Float.NaN;
+    /**
+     * See {@link ObjObject#retainedBytes()}
+     */
+    public long retainedBytes;
+
+    public LoadMetrics(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @return how many corners share each vertex on average, 1 when no corner could be merged
+     */
+    public float getDedupRatio()
+    {
+        return uniqueVertices == 0 ? 0 : corners / (float)uniqueVertices;
+    }
+
+    public long getTotalNanos()
+    {
+        return parseNanos + dedupNanos + meshBuildNanos + textureDecodeNanos;
+    }
+}
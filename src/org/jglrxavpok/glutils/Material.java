@@ -10,7 +10,11 @@ public class Material
     public Vector3f ambientColor;
     public int ambientTexture;
     public int diffuseTexture;
+    public String ambientTexturePath;
+    public String diffuseTexturePath;
     public float transparency;
+    private TextureCache.Texture ambientTextureEntry;
+    private TextureCache.Texture diffuseTextureEntry;
 
     public Material(String name)
     {
@@ -23,4 +27,83 @@ public class Material
         return name;
     }
 
+    /**
+     * Acquires the textures found at {@link #diffuseTexturePath} and {@link #ambientTexturePath}, if set, from the
+     * {@link TextureCache}.
+     * @param deferUpload true to only decode them, without needing a GL context, see {@link #uploadPendingTextures()}
+     */
+    public void loadTextures(boolean deferUpload)
+    {
+        releaseTextures();
+        TextureCache cache = TextureCache.getInstance();
+        if(diffuseTexturePath != null)
+            diffuseTextureEntry = cache.acquire(diffuseTexturePath);
+        if(ambientTexturePath != null)
+            ambientTextureEntry = cache.acquire(ambientTexturePath);
+        if(!deferUpload)
+            uploadPendingTextures();
+    }
+
+    /**
+     * @return the cached diffuse texture, null if there is none
+     */
+    public TextureCache.Texture getDiffuseTextureEntry()
+    {
+        return diffuseTextureEntry;
+    }
+
+    /**
+     * Replaces the diffuse texture, releasing the current one. The material takes over the given reference from
+     * {@link TextureCache}; it is uploaded along with the other pending textures.
+     */
+    public void setDiffuseTextureEntry(TextureCache.Texture texture)
+    {
+        if(diffuseTextureEntry != null)
+            TextureCache.getInstance().release(diffuseTextureEntry);
+        diffuseTextureEntry = texture;
+        diffuseTexture = texture.getId();
+    }
+
+    /**
+     * Uploads the textures that are not uploaded yet, if any. Has to be called on the thread owning the GL context.
+     */
+    public void uploadPendingTextures()
+    {
+        if(diffuseTextureEntry != null)
+            diffuseTexture = diffuseTextureEntry.upload();
+        if(ambientTextureEntry != null)
+            ambientTexture = ambientTextureEntry.upload();
+    }
+
+    /**
+     * Gives the textures of this material back to the {@link TextureCache}, which deletes them once they are not used
+     * anymore. Has to be called on the thread owning the GL context.
+     */
+    public void releaseTextures()
+    {
+        TextureCache cache = TextureCache.getInstance();
+        if(diffuseTextureEntry != null)
+            cache.release(diffuseTextureEntry);
+        if(ambientTextureEntry != null)
+            cache.release(ambientTextureEntry);
+        diffuseTextureEntry = null;
+        ambientTextureEntry = null;
+        diffuseTexture = 0;
+        ambientTexture = 0;
+    }
+
+    /**
+     * @return approximate size of the texture data of this material, decoded or uploaded. Textures shared with other
+     * materials are counted for each of them.
+     */
+    public long getTextureBytes()
+    {
+        long bytes = 0;
+        if(diffuseTextureEntry != null)
+            bytes += diffuseTextureEntry.getBytes();
+        if(ambientTextureEntry != null)
+            bytes += ambientTextureEntry.getBytes();
+        return bytes;
+    }
+
 }
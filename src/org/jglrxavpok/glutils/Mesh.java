@@ -1,9 +1,190 @@
 package org.jglrxavpok.glutils;
 
+import javax.vecmath.Vector2f;
+import javax.vecmath.Vector3f;
 
+/**
+ * Indexed triangles whose vertices are interleaved in a single <code>float[]</code>, as described by {@link #layout}
+ */
 public class Mesh
 {
 
+    /**
+     * Approximate size of a vertex view and of its slot in {@link #vertices}
+     */
+    private static final int VERTEX_VIEW_BYTES = 44;
+
+    private static volatile boolean vertexViews = true;
+
     public int[] indices;
+    public float[] data;
+    public VertexLayout layout;
+    /**
+     * Compatibility view of {@link #data} for code written against the former <code>Vertex[]</code> storage, filled by
+     * the loaders unless {@link #setVertexViews(boolean)} was turned off. Each vertex reads the current data at its
+     * index, but changes to the vectors it returns are not written back: use {@link #setVertices(Vertex[])} for that.
+     * @deprecated read {@link #data} through {@link #layout} instead
+     */
+    @Deprecated
     public Vertex[] vertices;
+
+    public Mesh()
+    {
+        indices = new int[0];
+        data = new float[0];
+        layout = VertexLayout.POSITION_TEX_NORMAL;
+    }
+
+    public int getVertexCount()
+    {
+        return data.length / layout.stride;
+    }
+
+    /**
+     * When set (the default), meshes built afterwards (by the loaders, {@link IndexedModel#toMesh(Mesh)}, level of detail
+     * generation and {@link #setVertices(Vertex[])}) fill {@link #vertices}. The views take about 44 bytes per vertex:
+     * turn this off to save them once no code reads {@link #vertices} anymore.
+     */
+    public static void setVertexViews(boolean vertexViews)
+    {
+        Mesh.vertexViews = vertexViews;
+    }
+
+    public static boolean isUsingVertexViews()
+    {
+        return vertexViews;
+    }
+
+    /**
+     * Makes {@link #vertices} match the vertex count after {@link #data} was replaced. Does nothing unless vertex views
+     * are on or this mesh already has them.
+     */
+    public void updateVertexViews()
+    {
+        if(!vertexViews && vertices == null)
+            return;
+        int count = getVertexCount();
+        if(vertices != null && vertices.length == count)
+            return;
+        Vertex[] views = new Vertex[count];
+        for(int i = 0; i < count; i++)
+            views[i] = new VertexView(this, i);
+        vertices = views;
+    }
+
+    /**
+     * @return approximate number of bytes held by the data, the indices and the vertex views of this mesh
+     */
+    public long retainedBytes()
+    {
+        long bytes = (long)data.length * 4 + (long)indices.length * 4;
+        if(vertices != null)
+            bytes += (long)vertices.length * VERTEX_VIEW_BYTES;
+        return bytes;
+    }
+
+    /**
+     * Compatibility view: builds a copy of every vertex as a {@link Vertex}. Changes to the returned vertices are not
+     * reflected in the mesh, use {@link #setVertices(Vertex[])} for that.
+     */
+    public Vertex[] getVertices()
+    {
+        int stride = layout.stride;
+        Vertex[] vertices = new Vertex[getVertexCount()];
+        for(int i = 0; i < vertices.length; i++)
+        {
+            int p = i * stride + layout.positionOffset;
+            int t = i * stride + layout.texCoordsOffset;
+            int n = i * stride + layout.normalOffset;
+            Vector3f tangent = new Vector3f();
+            if(layout.hasTangent())
+            {
+                int tan = i * stride + layout.tangentOffset;
+                tangent.set(data[tan], data[tan + 1], data[tan + 2]);
+            }
+            vertices[i] = new Vertex(new Vector3f(data[p], data[p + 1], data[p + 2]), new Vector2f(data[t], data[t + 1]),
+                    new Vector3f(data[n], data[n + 1], data[n + 2]), tangent);
+        }
+        return vertices;
+    }
+
+    /**
+     * Replaces the vertex data of this mesh, packing the given vertices in {@link VertexLayout#POSITION_TEX_NORMAL_TANGENT}.
+     * What was derived from the previous data is not updated: call {@link ObjObject#meshChanged()} on the object owning
+     * the mesh, so that it is baked, bounded and indexed for ray queries again.
+     */
+    public void setVertices(Vertex[] vertices)
+    {
+        layout = VertexLayout.POSITION_TEX_NORMAL_TANGENT;
+        int stride = layout.stride;
+        data = new float[vertices.length * stride];
+        for(int i = 0; i < vertices.length; i++)
+        {
+            Vertex vertex = vertices[i];
+            int o = i * stride;
+            data[o] = vertex.getPos().x;
+            data[o + 1] = vertex.getPos().y;
+            data[o + 2] = vertex.getPos().z;
+            data[o + 3] = vertex.getTexCoords().x;
+            data[o + 4] = vertex.getTexCoords().y;
+            data[o + 5] = vertex.getNormal().x;
+            data[o + 6] = vertex.getNormal().y;
+            data[o + 7] = vertex.getNormal().z;
+            if(vertex.getTangent() != null)
+            {
+                data[o + 8] = vertex.getTangent().x;
+                data[o + 9] = vertex.getTangent().y;
+                data[o + 10] = vertex.getTangent().z;
+            }
+        }
+        updateVertexViews();
+    }
+
+    /**
+     * Vertex reading the data of its mesh on each call, see {@link Mesh#vertices}
+     */
+    private static class VertexView extends Vertex
+    {
+
+        private final Mesh mesh;
+        private final int index;
+
+        VertexView(Mesh mesh, int index)
+        {
+            super(null, null, null, null);
+            this.mesh = mesh;
+            this.index = index;
+        }
+
+        @Override
+        public Vector3f getPos()
+        {
+            return vector(mesh.layout.positionOffset);
+        }
+
+        @Override
+        public Vector2f getTexCoords()
+        {
+            int t = index * mesh.layout.stride + mesh.layout.texCoordsOffset;
+            return new Vector2f(mesh.data[t], mesh.data[t + 1]);
+        }
+
+        @Override
+        public Vector3f getNormal()
+        {
+            return vector(mesh.layout.normalOffset);
+        }
+
+        @Override
+        public Vector3f getTangent()
+        {
+            return mesh.layout.hasTangent() ? vector(mesh.layout.tangentOffset) : new Vector3f();
+        }
+
+        private Vector3f vector(int offset)
+        {
+            int o = index * mesh.layout.stride + offset;
+            return new Vector3f(mesh.data[o], mesh.data[o + 1], mesh.data[o + 2]);
+        }
+    }
 }
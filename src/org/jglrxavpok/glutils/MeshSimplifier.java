@@ -0,0 +1,388 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Simplifies meshes by collapsing edges in the order of least quadric error (Garland, Heckbert, "Surface
+ * Simplification Using Quadric Error Metrics", 1997).
+ * <br/>
+ * Vertices are only ever collapsed onto one of their neighbours, so every remaining vertex keeps its original position,
+ * texture coordinates and normal. The cost of a collapse is the position quadric error plus a penalty for the change in
+ * texture coordinates and normal. Vertices on open edges, which include texture and normal seams since those vertices
+ * are split in the mesh, never move: seams stay intact, but meshes with split vertices everywhere (flat shading) cannot
+ * be simplified much.
+ */
+public class MeshSimplifier
+{
+
+    /**
+     * Weight of the texture coordinates and normal change, relative to the squared size of the mesh
+     */
+    private static final double ATTRIBUTE_WEIGHT = 0.01;
+
+    private static class Collapse implements Comparable<Collapse>
+    {
+
+        final double cost;
+        final int from;
+        final int to;
+        final int fromVersion;
+        final int toVersion;
+
+        Collapse(double cost, int from, int to, int fromVersion, int toVersion)
+        {
+            this.cost = cost;
+            this.from = from;
+            this.to = to;
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+        }
+
+        @Override
+        public int compareTo(Collapse other)
+        {
+            int result = Double.compare(cost, other.cost);
+            if(result == 0)
+                result = from != other.from ? Integer.compare(from, other.from) : Integer.compare(to, other.to);
+            return result;
+        }
+    }
+
+    private final Mesh mesh;
+    private final int stride;
+    private final int position;
+    private final int texCoords;
+    private final int normal;
+    private final int vertexCount;
+    private final int[] triangles;
+    private final boolean[] deadTriangles;
+    private final IntList[] vertexTriangles;
+    private final double[] quadrics;
+    private final boolean[] locked;
+    private final boolean[] collapsed;
+    private final int[] versions;
+    private final double attributeScale;
+    private final PriorityQueue<Collapse> queue;
+    private final double[] scratchNormals = new double[6];
+    private final int[] neighbourStamps;
+    private int stamp;
+    private int triangleCount;
+
+    private MeshSimplifier(Mesh mesh)
+    {
+        this.mesh = mesh;
+        VertexLayout layout = mesh.layout;
+        stride = layout.stride;
+        position = layout.positionOffset;
+        texCoords = layout.texCoordsOffset;
+        normal = layout.normalOffset;
+        vertexCount = mesh.getVertexCount();
+        triangles = Arrays.copyOf(mesh.indices, mesh.indices.length / 3 * 3);
+        triangleCount = triangles.length / 3;
+        deadTriangles = new boolean[triangleCount];
+        vertexTriangles = new IntList[vertexCount];
+        quadrics = new double[vertexCount * 10];
+        locked = new boolean[vertexCount];
+        collapsed = new boolean[vertexCount];
+        versions = new int[vertexCount];
+        neighbourStamps = new int[vertexCount];
+        queue = new PriorityQueue<Collapse>();
+
+        float[] data = mesh.data;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < vertexCount; i++ )
+        {
+            vertexTriangles[i] = new IntList(8);
+            for(int k = 0; k < 3; k++ )
+            {
+                min = Math.min(min, data[i * stride + position + k]);
+                max = Math.max(max, data[i * stride + position + k]);
+            }
+        }
+        attributeScale = vertexCount == 0 ? 0 : ATTRIBUTE_WEIGHT * (max - min) * (max - min);
+    }
+
+    /**
+     * @param ratio fraction of the triangles to keep, in ]0;1]
+     * @return a simplified copy of the mesh, holding only the vertices still used
+     */
+    public static Mesh simplify(Mesh mesh, float ratio)
+    {
+        MeshSimplifier simplifier = new MeshSimplifier(mesh);
+        simplifier.run(Math.max(1, (int)(mesh.indices.length / 3 * ratio)));
+        return simplifier.toMesh();
+    }
+
+    private void run(int targetTriangles)
+    {
+        for(int t = 0; t < triangleCount; t++ )
+        {
+            for(int k = 0; k < 3; k++ )
+                vertexTriangles[triangles[t * 3 + k]].add(t);
+            addPlaneQuadric(t);
+        }
+        lockOpenEdges();
+        for(int v = 0; v < vertexCount; v++ )
+            pushCollapses(v);
+
+        while(triangleCount > targetTriangles && !queue.isEmpty())
+        {
+            Collapse collapse = queue.poll();
+            int from = collapse.from;
+            int to = collapse.to;
+            if(collapsed[from] || collapsed[to] || versions[from] != collapse.fromVersion || versions[to] != collapse.toVersion)
+                continue;
+            if(!areConnected(from, to) || flipsTriangles(from, to))
+                continue;
+            collapse(from, to);
+        }
+    }
+
+    private void addPlaneQuadric(int t)
+    {
+        float[] data = mesh.data;
+        int a = triangles[t * 3] * stride + position;
+        int b = triangles[t * 3 + 1] * stride + position;
+        int c = triangles[t * 3 + 2] * stride + position;
+        double e1x = data[b] - data[a];
+        double e1y = data[b + 1] - data[a + 1];
+        double e1z = data[b + 2] - data[a + 2];
+        double e2x = data[c] - data[a];
+        double e2y = data[c + 1] - data[a + 1];
+        double e2z = data[c + 2] - data[a + 2];
+        double nx = e1y * e2z - e1z * e2y;
+        double ny = e1z * e2x - e1x * e2z;
+        double nz = e1x * e2y - e1y * e2x;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if(length == 0)
+            return;
+        // plane quadric weighted by the triangle area
+        double area = length * 0.5;
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double d = -(nx * data[a] + ny * data[a + 1] + nz * data[a + 2]);
+        for(int k = 0; k < 3; k++ )
+        {
+            int q = triangles[t * 3 + k] * 10;
+            quadrics[q] += area * nx * nx;
+            quadrics[q + 1] += area * nx * ny;
+            quadrics[q + 2] += area * nx * nz;
+            quadrics[q + 3] += area * nx * d;
+            quadrics[q + 4] += area * ny * ny;
+            quadrics[q + 5] += area * ny * nz;
+            quadrics[q + 6] += area * ny * d;
+            quadrics[q + 7] += area * nz * nz;
+            quadrics[q + 8] += area * nz * d;
+            quadrics[q + 9] += area * d * d;
+        }
+    }
+
+    /**
+     * Locks the vertices of edges used by a single triangle
+     */
+    private void lockOpenEdges()
+    {
+        long[] edges = new long[triangleCount * 3];
+        for(int t = 0; t < triangleCount; t++ )
+        {
+            for(int k = 0; k < 3; k++ )
+            {
+                int a = triangles[t * 3 + k];
+                int b = triangles[t * 3 + (k + 1) % 3];
+                edges[t * 3 + k] = (long)Math.min(a, b) << 32 | Math.max(a, b);
+            }
+        }
+        Arrays.sort(edges);
+        for(int i = 0; i < edges.length; )
+        {
+            int end = i + 1;
+            while(end < edges.length && edges[end] == edges[i])
+                end++;
+            if(end - i == 1)
+            {
+                locked[(int)(edges[i] >>> 32)] = true;
+                locked[(int)edges[i]] = true;
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * Queues the collapses of the given vertex onto its neighbours, and of its neighbours onto it
+     */
+    private void pushCollapses(int vertex)
+    {
+        stamp++;
+        IntList list = vertexTriangles[vertex];
+        for(int i = 0; i < list.size(); i++ )
+        {
+            int t = list.get(i);
+            if(deadTriangles[t])
+                continue;
+            for(int k = 0; k < 3; k++ )
+            {
+                int other = triangles[t * 3 + k];
+                // each neighbour once, although it usually shares two triangles with the vertex
+                if(other == vertex || neighbourStamps[other] == stamp)
+                    continue;
+                neighbourStamps[other] = stamp;
+                if(!locked[vertex])
+                    queue.add(new Collapse(cost(vertex, other), vertex, other, versions[vertex], versions[other]));
+                if(!locked[other])
+                    queue.add(new Collapse(cost(other, vertex), other, vertex, versions[other], versions[vertex]));
+            }
+        }
+    }
+
+    /**
+     * @return the error of moving <code>from</code> onto <code>to</code>
+     */
+    private double cost(int from, int to)
+    {
+        float[] data = mesh.data;
+        int p = to * stride + position;
+        double x = data[p];
+        double y = data[p + 1];
+        double z = data[p + 2];
+        int a = from * 10;
+        int b = to * 10;
+        double q0 = quadrics[a] + quadrics[b];
+        double q1 = quadrics[a + 1] + quadrics[b + 1];
+        double q2 = quadrics[a + 2] + quadrics[b + 2];
+        double q3 = quadrics[a + 3] + quadrics[b + 3];
+        double q4 = quadrics[a + 4] + quadrics[b + 4];
+        double q5 = quadrics[a + 5] + quadrics[b + 5];
+        double q6 = quadrics[a + 6] + quadrics[b + 6];
+        double q7 = quadrics[a + 7] + quadrics[b + 7];
+        double q8 = quadrics[a + 8] + quadrics[b + 8];
+        double q9 = quadrics[a + 9] + quadrics[b + 9];
+        double error = q0 * x * x + 2 * q1 * x * y + 2 * q2 * x * z + 2 * q3 * x + q4 * y * y + 2 * q5 * y * z + 2 * q6 * y + q7 * z * z + 2 * q8 * z + q9;
+
+        int fromOffset = from * stride;
+        int toOffset = to * stride;
+        double du = data[fromOffset + texCoords] - data[toOffset + texCoords];
+        double dv = data[fromOffset + texCoords + 1] - data[toOffset + texCoords + 1];
+        double dnx = data[fromOffset + normal] - data[toOffset + normal];
+        double dny = data[fromOffset + normal + 1] - data[toOffset + normal + 1];
+        double dnz = data[fromOffset + normal + 2] - data[toOffset + normal + 2];
+        return Math.max(error, 0) + attributeScale * (du * du + dv * dv + dnx * dnx + dny * dny + dnz * dnz);
+    }
+
+    private boolean areConnected(int from, int to)
+    {
+        IntList list = vertexTriangles[from];
+        for(int i = 0; i < list.size(); i++ )
+        {
+            int t = list.get(i);
+            if(!deadTriangles[t] && (triangles[t * 3] == to || triangles[t * 3 + 1] == to || triangles[t * 3 + 2] == to))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if moving <code>from</code> onto <code>to</code> turns a remaining triangle around
+     */
+    private boolean flipsTriangles(int from, int to)
+    {
+        float[] data = mesh.data;
+        IntList list = vertexTriangles[from];
+        for(int i = 0; i < list.size(); i++ )
+        {
+            int t = list.get(i);
+            if(deadTriangles[t])
+                continue;
+            int a = triangles[t * 3];
+            int b = triangles[t * 3 + 1];
+            int c = triangles[t * 3 + 2];
+            if(a == to || b == to || c == to)
+                continue;
+            normal(data, a, b, c, scratchNormals, 0);
+            normal(data, a == from ? to : a, b == from ? to : b, c == from ? to : c, scratchNormals, 3);
+            if(scratchNormals[0] * scratchNormals[3] + scratchNormals[1] * scratchNormals[4] + scratchNormals[2] * scratchNormals[5] <= 0)
+                return true;
+        }
+        return false;
+    }
+
+    private void normal(float[] data, int a, int b, int c, double[] dest, int offset)
+    {
+        int pa = a * stride + position;
+        int pb = b * stride + position;
+        int pc = c * stride + position;
+        double e1x = data[pb] - data[pa];
+        double e1y = data[pb + 1] - data[pa + 1];
+        double e1z = data[pb + 2] - data[pa + 2];
+        double e2x = data[pc] - data[pa];
+        double e2y = data[pc + 1] - data[pa + 1];
+        double e2z = data[pc + 2] - data[pa + 2];
+        dest[offset] = e1y * e2z - e1z * e2y;
+        dest[offset + 1] = e1z * e2x - e1x * e2z;
+        dest[offset + 2] = e1x * e2y - e1y * e2x;
+    }
+
+    private void collapse(int from, int to)
+    {
+        IntList list = vertexTriangles[from];
+        for(int i = 0; i < list.size(); i++ )
+        {
+            int t = list.get(i);
+            if(deadTriangles[t])
+                continue;
+            int o = t * 3;
+            if(triangles[o] == to || triangles[o + 1] == to || triangles[o + 2] == to)
+            {
+                deadTriangles[t] = true;
+                triangleCount-- ;
+                continue;
+            }
+            for(int k = 0; k < 3; k++ )
+            {
+                if(triangles[o + k] == from)
+                    triangles[o + k] = to;
+            }
+            vertexTriangles[to].add(t);
+        }
+        for(int k = 0; k < 10; k++ )
+            quadrics[to * 10 + k] += quadrics[from * 10 + k];
+        collapsed[from] = true;
+        versions[to]++;
+        pushCollapses(to);
+    }
+
+    private Mesh toMesh()
+    {
+        int[] newIndices = new int[vertexCount];
+        Arrays.fill(newIndices, -1);
+        int[] indices = new int[triangleCount * 3];
+        int written = 0;
+        int used = 0;
+        for(int t = 0; t < deadTriangles.length; t++ )
+        {
+            if(deadTriangles[t])
+                continue;
+            for(int k = 0; k < 3; k++ )
+            {
+                int vertex = triangles[t * 3 + k];
+                if(newIndices[vertex] == -1)
+                    newIndices[vertex] = used++;
+                indices[written++] = newIndices[vertex];
+            }
+        }
+        float[] data = new float[used * stride];
+        for(int v = 0; v < vertexCount; v++ )
+        {
+            if(newIndices[v] != -1)
+                System.arraycopy(mesh.data, v * stride, data, newIndices[v] * stride, stride);
+        }
+        Mesh result = new Mesh();
+        result.layout = mesh.layout;
+        result.data = data;
+        result.indices = indices;
+        result.updateVertexViews();
+        return result;
+    }
+}
@@ -0,0 +1,18 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * Receives every measurement taken by {@link ModelMetrics}, e.g. to forward them to a monitoring system. Render
+ * callbacks run on the render thread for each render, they must be quick and should not allocate.
+ */
+public interface MetricsSink
+{
+
+    void loadCompleted(LoadMetrics load);
+
+    /**
+     * @param vertices number of vertices emitted for the whole model
+     */
+    void modelRendered(ObjModel model, long vertices, long nanos);
+
+    void groupRendered(ObjModel model, ObjObject group, long vertices, long nanos);
+}
@@ -0,0 +1,428 @@
+package org.jglrxavpok.glutils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide record of what loading and rendering each model costs.
+ * <br/>
+ * Loads are reported once they complete, renders are counted by {@link ObjModel} around each model and group render.
+ * Counters are {@link LongAdder}s reached through references cached on the models and groups, so recording a render
+ * neither allocates nor contends between threads; it can be left on in production. Everything is also passed to the
+ * registered {@link MetricsSink}s, and can be exposed as one {@link ModelStatsMXBean} per model. When the runtime has
+ * JDK Flight Recorder and the optional <code>JfrMetricsSink</code> is on the classpath, it is registered from the start.
+ */
+public class ModelMetrics
+{
+
+    private static final MetricsSink[] NO_SINKS = new MetricsSink[0];
+    private static final String DOMAIN = "org.jglrxavpok.glutils";
+    private static final ModelMetrics INSTANCE = new ModelMetrics();
+
+    /**
+     * Render counters of the groups of one name in a model
+     */
+    public static class GroupStats
+    {
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder vertices = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        public long getCalls()
+        {
+            return calls.sum();
+        }
+
+        public long getVertices()
+        {
+            return vertices.sum();
+        }
+
+        public long getNanos()
+        {
+            return nanos.sum();
+        }
+    }
+
+    public static class ModelStats implements ModelStatsMXBean
+    {
+
+        private final String name;
+        private final LongAdder loads = new LongAdder();
+        private volatile LoadMetrics lastLoad;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder vertices = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final ConcurrentHashMap<String, GroupStats> groups = new ConcurrentHashMap<String, GroupStats>();
+
+        private ModelStats(String name)
+        {
+            this.name = name;
+        }
+
+        public GroupStats getGroupStats(String group)
+        {
+            GroupStats stats = groups.get(group);
+            if(stats == null)
+            {
+                GroupStats created = new GroupStats();
+                stats = groups.putIfAbsent(group, created);
+                if(stats == null)
+                    stats = created;
+            }
+            return stats;
+        }
+
+        /**
+         * @return the measurements of the last load, or null if the model was never loaded
+         */
+        public LoadMetrics getLastLoad()
+        {
+            return lastLoad;
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public long getLoadCount()
+        {
+            return loads.sum();
+        }
+
+        @Override
+        public long getLastInputBytes()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.inputBytes;
+        }
+
+        @Override
+        public long getLastParseNanos()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.parseNanos;
+        }
+
+        @Override
+        public long getLastDedupNanos()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.dedupNanos;
+        }
+
+        @Override
+        public long getLastMeshBuildNanos()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.meshBuildNanos;
+        }
+
+        @Override
+        public long getLastTextureDecodeNanos()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.textureDecodeNanos;
+        }
+
+        @Override
+        public long getLastUniqueVertices()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.uniqueVertices;
+        }
+
+        @Override
+        public float getLastDedupRatio()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.getDedupRatio();
+        }
+
+        @Override
+        public long getLastRetainedBytes()
+        {
+            LoadMetrics load = lastLoad;
+            return load == null ? 0 : load.retainedBytes;
+        }
+
+        @Override
+        public long getRenderCalls()
+        {
+            return calls.sum();
+        }
+
+        @Override
+        public long getRenderedVertices()
+        {
+            return vertices.sum();
+        }
+
+        @Override
+        public long getRenderNanos()
+        {
+            return nanos.sum();
+        }
+
+        @Override
+        public Map<String, Long> getGroupRenderCalls()
+        {
+            Map<String, Long> result = new TreeMap<String, Long>();
+            for(Map.Entry<String, GroupStats> entry : groups.entrySet())
+                result.put(entry.getKey(), entry.getValue().getCalls());
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getGroupRenderedVertices()
+        {
+            Map<String, Long> result = new TreeMap<String, Long>();
+            for(Map.Entry<String, GroupStats> entry : groups.entrySet())
+                result.put(entry.getKey(), entry.getValue().getVertices());
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getGroupRenderNanos()
+        {
+            Map<String, Long> result = new TreeMap<String, Long>();
+            for(Map.Entry<String, GroupStats> entry : groups.entrySet())
+                result.put(entry.getKey(), entry.getValue().getNanos());
+            return result;
+        }
+    }
+
+    private volatile boolean enabled = true;
+    private volatile MetricsSink[] sinks = NO_SINKS;
+    private final ConcurrentHashMap<String, ModelStats> models = new ConcurrentHashMap<String, ModelStats>();
+    private boolean exposeMBeans;
+    private final MetricsSink jfrSink;
+
+    private ModelMetrics()
+    {
+        jfrSink = createJfrSink();
+        if(jfrSink != null)
+            addSink(jfrSink);
+    }
+
+    /**
+     * @return a <code>JfrMetricsSink</code>, or null if <code>jdk.jfr</code> or the sink is not available. The sink is
+     *         built from the separate <code>jfr</code> source folder, which needs a JDK with <code>jdk.jfr</code>, so it
+     *         is only loaded by name.
+     */
+    private static MetricsSink createJfrSink()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event", false, ModelMetrics.class.getClassLoader());
+            return (MetricsSink)Class.forName("org.jglrxavpok.glutils.JfrMetricsSink").getDeclaredConstructor().newInstance();
+        }
+        catch(ClassNotFoundException e)
+        {
+            return null;
+        }
+        catch(Exception e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+        catch(LinkageError e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static ModelMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Turns recording on (the default) or off. When off, rendering does not even read the clock.
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * @return the sink emitting JFR events, registered by default, or null if the runtime has no JFR or the sink is not
+     *         on the classpath. Remove it with {@link #removeSink(MetricsSink)} to keep JFR out entirely.
+     */
+    public MetricsSink getJfrSink()
+    {
+        return jfrSink;
+    }
+
+    public synchronized void addSink(MetricsSink sink)
+    {
+        MetricsSink[] updated = Arrays.copyOf(sinks, sinks.length + 1);
+        updated[sinks.length] = sink;
+        sinks = updated;
+    }
+
+    public synchronized void removeSink(MetricsSink sink)
+    {
+        for(int i = 0; i < sinks.length; i++ )
+        {
+            if(sinks[i] == sink)
+            {
+                MetricsSink[] updated = new MetricsSink[sinks.length - 1];
+                System.arraycopy(sinks, 0, updated, 0, i);
+                System.arraycopy(sinks, i + 1, updated, i, updated.length - i);
+                sinks = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the statistics of the given model, created empty if it has none yet
+     */
+    public ModelStats getStats(String model)
+    {
+        String key = model == null ? "" : model;
+        ModelStats stats = models.get(key);
+        if(stats == null)
+        {
+            ModelStats created = new ModelStats(key);
+            stats = models.putIfAbsent(key, created);
+            if(stats == null)
+            {
+                stats = created;
+                synchronized(this)
+                {
+                    if(exposeMBeans)
+                        register(stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    public Collection<ModelStats> getAllStats()
+    {
+        return Collections.unmodifiableCollection(new ArrayList<ModelStats>(models.values()));
+    }
+
+    /**
+     * Registers the statistics of every model, current and future, on the platform MBean server under
+     * <code>org.jglrxavpok.glutils:type=ModelStats,name=&lt;model&gt;</code>
+     */
+    public synchronized void registerMBeans()
+    {
+        if(exposeMBeans)
+            return;
+        exposeMBeans = true;
+        for(ModelStats stats : models.values())
+            register(stats);
+    }
+
+    public synchronized void unregisterMBeans()
+    {
+        if(!exposeMBeans)
+            return;
+        exposeMBeans = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ModelStats stats : models.values())
+        {
+            try
+            {
+                ObjectName name = objectName(stats);
+                if(server.isRegistered(name))
+                    server.unregisterMBean(name);
+            }
+            catch(JMException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void register(ModelStats stats)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(stats);
+            if(!server.isRegistered(name))
+                server.registerMBean(stats, name);
+        }
+        catch(JMException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static ObjectName objectName(ModelStats stats) throws JMException
+    {
+        return new ObjectName(DOMAIN + ":type=ModelStats,name=" + ObjectName.quote(stats.getName()));
+    }
+
+    public void recordLoad(LoadMetrics load)
+    {
+        if(!enabled)
+            return;
+        ModelStats stats = getStats(load.name);
+        stats.loads.increment();
+        stats.lastLoad = load;
+        for(MetricsSink sink : sinks)
+            sink.loadCompleted(load);
+    }
+
+    /**
+     * Counts a render of the whole model
+     */
+    public void recordModelRender(ObjModel model, long vertices, long nanos)
+    {
+        ModelStats stats = model.metricsStats;
+        if(stats == null)
+            model.metricsStats = stats = getStats(model.getID());
+        stats.calls.increment();
+        stats.vertices.add(vertices);
+        stats.nanos.add(nanos);
+        for(MetricsSink sink : sinks)
+            sink.modelRendered(model, vertices, nanos);
+    }
+
+    /**
+     * Counts a render of a single group, either on its own or as part of a whole model render
+     */
+    public void recordGroupRender(ObjModel model, ObjObject group, long vertices, long nanos)
+    {
+        GroupStats stats = group.metricsStats;
+        if(stats == null)
+        {
+            ModelStats modelStats = model.metricsStats;
+            if(modelStats == null)
+                model.metricsStats = modelStats = getStats(model.getID());
+            group.metricsStats = stats = modelStats.getGroupStats(group.getName());
+        }
+        stats.calls.increment();
+        stats.vertices.add(vertices);
+        stats.nanos.add(nanos);
+        for(MetricsSink sink : sinks)
+            sink.groupRendered(model, group, vertices, nanos);
+    }
+}
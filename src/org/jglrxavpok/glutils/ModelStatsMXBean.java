@@ -0,0 +1,42 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link ModelMetrics.ModelStats}, see {@link ModelMetrics#registerMBeans()}
+ */
+public interface ModelStatsMXBean
+{
+
+    String getName();
+
+    long getLoadCount();
+
+    long getLastInputBytes();
+
+    long getLastParseNanos();
+
+    long getLastDedupNanos();
+
+    long getLastMeshBuildNanos();
+
+    long getLastTextureDecodeNanos();
+
+    long getLastUniqueVertices();
+
+    float getLastDedupRatio();
+
+    long getLastRetainedBytes();
+
+    long getRenderCalls();
+
+    long getRenderedVertices();
+
+    long getRenderNanos();
+
+    Map<String, Long> getGroupRenderCalls();
+
+    Map<String, Long> getGroupRenderedVertices();
+
+    Map<String, Long> getGroupRenderNanos();
+}
@@ -25,7 +25,6 @@ import java.util.List;
 
 import javax.imageio.ImageIO;
 
-import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL12;
 import org.lwjgl.util.vector.Vector3f;
@@ -49,6 +48,8 @@ public class MtlMaterialLib
     private ArrayList<Material> materials;
     private String path;
     private String startPath;
+    private boolean deferTextureUpload;
+    private long textureNanos;
 
     public MtlMaterialLib(String path)
     {
@@ -57,9 +58,19 @@ public class MtlMaterialLib
         materials = new ArrayList<Material>();
     }
 
+    /**
+     * When set, textures are only decoded while parsing and uploaded later, so parsing can happen without a GL context.
+     * See {@link Material#uploadPendingTextures()}.
+     */
+    public void setDeferTextureUpload(boolean deferTextureUpload)
+    {
+        this.deferTextureUpload = deferTextureUpload;
+    }
+
     public void parse(String content)
     {
         String[] lines = content.split("\n");
+        int firstMaterial = materials.size();
         Material current = null;
         for(int i = 0; i < lines.length; i++)
         {
@@ -85,62 +96,74 @@ public class MtlMaterialLib
             }
             else if(parts[0].equals(TEXTURE_DIFFUSE))
             {
-                current.diffuseTexture = loadTexture(startPath+parts[1]);
+                current.diffuseTexturePath = startPath+parts[1];
             }
             else if(parts[0].equals(TEXTURE_AMBIENT))
             {
-                current.ambientTexture = loadTexture(startPath+parts[1]);
+                current.ambientTexturePath = startPath+parts[1];
             }
             else if(parts[0].equals(TRANSPARENCY_D) || parts[0].equals(TRANSPARENCY_TR))
             {
                 current.transparency = (float)Double.parseDouble(parts[1]);
             }
         }
+        long start = System.nanoTime();
+        for(int i = firstMaterial; i < materials.size(); i++)
+            materials.get(i).loadTextures(deferTextureUpload);
+        textureNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return time spent loading the textures of the parsed materials: decoding, and uploading unless deferred
+     */
+    public long getTextureLoadNanos()
+    {
+        return textureNanos;
     }
 
-    private int loadTexture(String string)
+    /**
+     * Decodes and uploads the texture found at the given classpath location
+     * @return the GL texture id, or 0 if it could not be read
+     */
+    public static int loadTexture(String string)
+    {
+        DecodedTexture texture = decodeTexture(string);
+        return texture == null ? 0 : uploadTexture(texture);
+    }
+
+    /**
+     * Decodes the texture found at the given classpath location, does not need a GL context
+     * @return the decoded texture, or null if it could not be read
+     */
+    public static DecodedTexture decodeTexture(String string)
     {
         try
         {
-            return loadTexture(ImageIO.read(MtlMaterialLib.class.getResource(string)));
+            BufferedImage img = ImageIO.read(MtlMaterialLib.class.getResource(string));
+            return new DecodedTexture(imageToByteBuffer(img), img.getWidth(), img.getHeight());
         }
         catch(IOException e)
         {
             e.printStackTrace();
         }
-        return 0;
+        return null;
     }
     
+    /**
+     * @return the pixels of the image as RGBA bytes, see {@link PixelConverter}
+     */
     public static ByteBuffer imageToByteBuffer(BufferedImage img)
     {
-        int[] pixels = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
-
-        int bufLen = pixels.length * 4;
-        ByteBuffer oglPixelBuf = BufferUtils.createByteBuffer(bufLen);
-
-        for(int y = 0; y < img.getHeight(); y++ )
-        {
-            for(int x = 0; x < img.getWidth(); x++ )
-            {
-                int rgb = pixels[y * img.getWidth() + x];
-                float a = ((rgb >> 24) & 0xFF) / 255f;
-                float r = ((rgb >> 16) & 0xFF) / 255f;
-                float g = ((rgb >> 8) & 0xFF) / 255f;
-                float b = ((rgb >> 0) & 0xFF) / 255f;
-                oglPixelBuf.put((byte)(r * 255f));
-                oglPixelBuf.put((byte)(g * 255f));
-                oglPixelBuf.put((byte)(b * 255f));
-                oglPixelBuf.put((byte)(a * 255f));
-            }
-        }
-
-        oglPixelBuf.flip();
-        return oglPixelBuf;
+        return PixelConverter.toRGBA(img);
     }
     
     public static int loadTexture(BufferedImage img)
     {
-        ByteBuffer oglPixelBuf = imageToByteBuffer(img);
+        return uploadTexture(new DecodedTexture(imageToByteBuffer(img), img.getWidth(), img.getHeight()));
+    }
+
+    public static int uploadTexture(DecodedTexture texture)
+    {
         int id = glGenTextures();
         int target = GL_TEXTURE_2D;
         glBindTexture(target, id);
@@ -150,7 +173,7 @@ public class MtlMaterialLib
         glTexParameteri(target, GL12.GL_TEXTURE_BASE_LEVEL, 0);
         glTexParameteri(target, GL12.GL_TEXTURE_MAX_LEVEL, 0);
 
-        glTexImage2D(target, 0, GL_RGBA8, img.getWidth(), img.getHeight(), 0, GL_RGBA, GL_UNSIGNED_BYTE, oglPixelBuf);
+        glTexImage2D(target, 0, GL_RGBA8, texture.width, texture.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, texture.pixels);
         GL11.glBindTexture(target, 0);
 
         return id;
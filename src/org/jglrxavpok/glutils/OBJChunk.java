@@ -0,0 +1,140 @@
+package org.jglrxavpok.glutils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Line-aligned slice of an OBJ file, parsed on its own.
+ * <br/>
+ * Vertex data is kept in chunk-local pools. Triangles are stored as (position, texture coordinates, normal) int
+ * triples per corner, which use the global numbering already, except for relative (negative) indices: these can only
+ * be resolved against the chunk and are remembered in {@link #relativeCorners} so the merge step can shift them. Statements that affect grouping (<code>mtllib</code>, <code>usemtl</code>,
+ * <code>o</code>, <code>g</code>) are recorded together with the number of corners read before them, so they can be
+ * replayed in order.
+ */
+class OBJChunk extends RecursiveAction
+{
+
+    private static final long serialVersionUID = -3527460612862377413L;
+
+    static final int MATERIAL_LIB = 0;
+    static final int USE_MATERIAL = 1;
+    static final int NEW_OBJECT = 2;
+
+    private final ByteBuffer data;
+    private int[] faceCorners = new int[4 * 3];
+    private int[] faceFlags = new int[4];
+    final FloatList positions;
+    final FloatList texCoords;
+    final FloatList normals;
+    final IntList corners;
+    /**
+     * Offsets in {@link #corners} of the triples holding relative indices
+     */
+    final IntList relativeCorners;
+    /**
+     * RELATIVE_* flags of each entry in {@link #relativeCorners}
+     */
+    final IntList relativeFlags;
+    final IntList statementTypes;
+    final IntList statementCorners;
+    final ArrayList<String> statementArguments;
+    int flags;
+
+    OBJChunk(ByteBuffer data)
+    {
+        this.data = data;
+        int capacity = Math.max(16, data.remaining() / 16);
+        positions = new FloatList(capacity);
+        texCoords = new FloatList(capacity / 2);
+        normals = new FloatList(capacity);
+        corners = new IntList(capacity);
+        relativeCorners = new IntList();
+        relativeFlags = new IntList();
+        statementTypes = new IntList();
+        statementCorners = new IntList();
+        statementArguments = new ArrayList<String>();
+    }
+
+    @Override
+    protected void compute()
+    {
+        parse();
+    }
+
+    void parse()
+    {
+        OBJTokenizer tokenizer = new OBJTokenizer(data);
+        while(tokenizer.nextLine())
+        {
+            if(tokenizer.keyword(OBJLoader.POSITION))
+            {
+                positions.add(tokenizer.nextFloat(), tokenizer.nextFloat(), tokenizer.nextFloat());
+            }
+            else if(tokenizer.keyword(OBJLoader.FACE))
+            {
+                int count = 0;
+                while(tokenizer.hasMoreTokens())
+                {
+                    if(count == faceFlags.length)
+                    {
+                        faceCorners = Arrays.copyOf(faceCorners, faceCorners.length * 2);
+                        faceFlags = Arrays.copyOf(faceFlags, faceFlags.length * 2);
+                    }
+                    int indexFlags = tokenizer.nextIndex(faceCorners, count * 3, positions.size() / 3, texCoords.size() / 2, normals.size() / 3);
+                    flags |= indexFlags & (OBJTokenizer.HAS_TEX_COORDS | OBJTokenizer.HAS_NORMAL);
+                    faceFlags[count++] = indexFlags & (OBJTokenizer.RELATIVE_POSITION | OBJTokenizer.RELATIVE_TEX_COORDS | OBJTokenizer.RELATIVE_NORMAL);
+                }
+                // triangle fan around the first corner
+                for(int i = 1; i + 1 < count; i++)
+                {
+                    addCorner(0);
+                    addCorner(i);
+                    addCorner(i + 1);
+                }
+            }
+            else if(tokenizer.keyword(OBJLoader.NORMAL))
+            {
+                normals.add(tokenizer.nextFloat(), tokenizer.nextFloat(), tokenizer.nextFloat());
+            }
+            else if(tokenizer.keyword(OBJLoader.TEX_COORDS))
+            {
+                texCoords.add(tokenizer.nextFloat(), tokenizer.nextFloat());
+            }
+            else if(tokenizer.keyword(OBJLoader.NEW_MATERIAL))
+            {
+                addStatement(MATERIAL_LIB, tokenizer.nextString());
+            }
+            else if(tokenizer.keyword(OBJLoader.USE_MATERIAL))
+            {
+                addStatement(USE_MATERIAL, tokenizer.nextString());
+            }
+            else if(tokenizer.keyword(OBJLoader.NEW_OBJECT) || tokenizer.keyword(OBJLoader.NEW_GROUP))
+            {
+                addStatement(NEW_OBJECT, tokenizer.nextString());
+            }
+            // comments and unsupported statements are skipped along with the rest of the line
+        }
+    }
+
+    private void addCorner(int faceCorner)
+    {
+        int relative = faceFlags[faceCorner];
+        if(relative != 0)
+        {
+            relativeCorners.add(corners.size());
+            relativeFlags.add(relative);
+        }
+        int o = faceCorner * 3;
+        corners.add(faceCorners[o], faceCorners[o + 1], faceCorners[o + 2]);
+    }
+
+    private void addStatement(int type, String argument)
+    {
+        statementTypes.add(type);
+        statementCorners.add(corners.size());
+        statementArguments.add(argument);
+    }
+}
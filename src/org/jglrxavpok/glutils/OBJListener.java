@@ -0,0 +1,31 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * Receives the statements of an OBJ file in order as {@link OBJStreamReader} reads them
+ */
+public interface OBJListener
+{
+
+    void position(float x, float y, float z);
+
+    void texCoord(float u, float v);
+
+    void normal(float x, float y, float z);
+
+    /**
+     * @param corners (position, texture coordinates, normal) index triples of the face corners, 0-based and with
+     * relative indices already resolved. Missing components are 0. The array is reused by the next face.
+     * @param count number of corners
+     * @param flags {@link OBJTokenizer#HAS_TEX_COORDS} and {@link OBJTokenizer#HAS_NORMAL} if any corner had them
+     */
+    void face(int[] corners, int count, int flags);
+
+    /**
+     * Called for both <code>o</code> and <code>g</code> statements
+     */
+    void group(String name);
+
+    void useMaterial(String name);
+
+    void materialLib(String path);
+}
@@ -1,13 +1,23 @@
 package org.jglrxavpok.glutils;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-
-import javax.vecmath.Vector2f;
-import javax.vecmath.Vector3f;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 
@@ -45,194 +55,576 @@ public class OBJLoader
     }
 
     private static final String COMMENT = "#";
-    private static final String FACE = "f";
-    private static final String POSITION = "v";
-    private static final String TEX_COORDS = "vt";
-    private static final String NORMAL = "vn";
-    private static final String NEW_OBJECT = "o";
-    private static final String NEW_GROUP = "g";
-    private static final String USE_MATERIAL = "usemtl";
-    private static final String NEW_MATERIAL = "mtllib";
+    static final String FACE = "f";
+    static final String POSITION = "v";
+    static final String TEX_COORDS = "vt";
+    static final String NORMAL = "vn";
+    static final String NEW_OBJECT = "o";
+    static final String NEW_GROUP = "g";
+    static final String USE_MATERIAL = "usemtl";
+    static final String NEW_MATERIAL = "mtllib";
+
+    /**
+     * Inputs of at least this many bytes are parsed in parallel chunks
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4 * 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
 
     private boolean hasNormals = false;
     private boolean hasTexCoords = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private boolean deferTextureUpload;
+    private boolean optimizeVertexCache;
+    private TangentSpaceGenerator.NormalWeighting normalWeighting = TangentSpaceGenerator.NormalWeighting.AREA;
+    private float acmrBefore = Float.NaN;
+    private LoadMetrics loadMetrics;
+    private float acmrAfter = Float.NaN;
+
+    /**
+     * @param bytes minimum input size to parse in parallel, or {@link Integer#MAX_VALUE} to always parse sequentially
+     */
+    public OBJLoader setParallelThreshold(int bytes)
+    {
+        this.parallelThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * @see MtlMaterialLib#setDeferTextureUpload(boolean)
+     */
+    public OBJLoader setDeferTextureUpload(boolean deferTextureUpload)
+    {
+        this.deferTextureUpload = deferTextureUpload;
+        return this;
+    }
+
+    /**
+     * Sets how normals are generated for files without <code>vn</code> data, by area by default
+     */
+    public OBJLoader setNormalWeighting(TangentSpaceGenerator.NormalWeighting normalWeighting)
+    {
+        this.normalWeighting = normalWeighting;
+        return this;
+    }
+
+    /**
+     * Sets where the measurements of the next loads are added, null (the default) to not keep them. Report them with
+     * {@link ModelMetrics#recordLoad(LoadMetrics)} once the model is ready, after {@link #toObjects(HashMap, LoadMetrics)}.
+     */
+    public OBJLoader setLoadMetrics(LoadMetrics loadMetrics)
+    {
+        this.loadMetrics = loadMetrics;
+        return this;
+    }
+
+    /**
+     * When set, the triangles and vertices of each object are reordered for the vertex cache after loading, see
+     * {@link VertexCacheOptimizer}
+     */
+    public OBJLoader setOptimizeVertexCache(boolean optimizeVertexCache)
+    {
+        this.optimizeVertexCache = optimizeVertexCache;
+        return this;
+    }
+
+    /**
+     * @return the average cache miss ratio of the last loaded model before optimization, weighted by the triangles of
+     * each object; NaN if it was not optimized. Also set in the {@link #setLoadMetrics(LoadMetrics) load metrics}.
+     */
+    public float getACMRBefore()
+    {
+        return acmrBefore;
+    }
+
+    /**
+     * @return the average cache miss ratio of the last loaded model after optimization, see {@link #getACMRBefore()}
+     */
+    public float getACMRAfter()
+    {
+        return acmrAfter;
+    }
+
+    /**
+     * Sets the pool that parallel parsing runs on, {@link ForkJoinPool#commonPool()} by default
+     */
+    public OBJLoader setPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        return this;
+    }
 
     public HashMap<ObjObject, IndexedModel> loadModel(String startPath, String res) throws Exception
+    {
+        return loadModel(startPath, ByteBuffer.wrap(res.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Loads a model straight from a stream, through {@link OBJStreamReader}: the file is never held in memory as a
+     * whole, but it is parsed on a single thread. The stream is closed.
+     */
+    public HashMap<ObjObject, IndexedModel> loadModel(String startPath, InputStream resource) throws Exception
     {
         try
         {
-            hasNormals = true;
-            hasTexCoords = true;
-            IndexedModel result = new IndexedModel();
-            IndexedModel normalModel = new IndexedModel();
-            String lines[] = res.split("\n|\r");
-
-            int posOffset = 0;
-            int indicesOffset = 0;
-            int texOffset = 0;
-            int normOffset = 0;
-            ArrayList<Vector3f> positions = new ArrayList<Vector3f>();
-            ArrayList<Vector2f> texCoords = new ArrayList<Vector2f>();
-            ArrayList<Vector3f> normals = new ArrayList<Vector3f>();
-            ArrayList<OBJIndex> indices = new ArrayList<OBJIndex>();
-            ArrayList<Material> materials = new ArrayList<Material>();
-            HashMapWithDefault<OBJIndex, Integer> resultIndexMap = new HashMapWithDefault<OBJIndex, Integer>();
-            HashMapWithDefault<Integer, Integer> normalIndexMap = new HashMapWithDefault<Integer, Integer>();
-            HashMapWithDefault<Integer, Integer> indexMap = new HashMapWithDefault<Integer, Integer>();
-            resultIndexMap.setDefault(-1);
-            normalIndexMap.setDefault(-1);
-            indexMap.setDefault(-1);
-            
-            HashMap<ObjObject, IndexedModel> map = new HashMap<ObjObject, IndexedModel>();
-            
-            ObjObject currentObject = null;
-            HashMap<ObjObject, IndexedModel[]> objects = new HashMap<ObjObject, IndexedModel[]>();
-            objects.put(currentObject = new ObjObject("main"), new IndexedModel[]{result, normalModel});
-            for(String line : lines)
+            return loadModel(startPath, Channels.newChannel(resource));
+        }
+        finally
+        {
+            resource.close();
+        }
+    }
+
+    /**
+     * Loads a model from a URL, such as a classpath resource. Resources whose size is known and reaches the parallel
+     * threshold are read whole and parsed in parallel, see {@link #loadModel(String, ByteBuffer)}; the others are
+     * streamed, see {@link #loadModel(String, InputStream)}.
+     */
+    public HashMap<ObjObject, IndexedModel> loadModel(String startPath, URL resource) throws Exception
+    {
+        URLConnection connection = resource.openConnection();
+        // known for files and jar entries
+        long length = connection.getContentLengthLong();
+        InputStream in = connection.getInputStream();
+        if(length >= parallelThreshold && length < Integer.MAX_VALUE && pool.getParallelism() > 1)
+            return loadModel(startPath, readBuffer(in, (int)length));
+        return loadModel(startPath, in);
+    }
+
+    /**
+     * Loads a model from a channel, see {@link #loadModel(String, InputStream)}. The channel is not closed.
+     */
+    public HashMap<ObjObject, IndexedModel> loadModel(String startPath, ReadableByteChannel channel) throws Exception
+    {
+        try
+        {
+            long start = System.nanoTime();
+            // set by the faces that reference them
+            hasNormals = false;
+            hasTexCoords = false;
+            ModelBuilder builder = new ModelBuilder(startPath);
+            OBJStreamReader reader = new OBJStreamReader(builder);
+            reader.read(channel);
+            recordParse(start, reader.getBytesRead(), 1, builder);
+            return buildModels(builder.objects, builder.positions, builder.texCoords, builder.normals);
+        }
+        catch(Exception e)
+        {
+            throw new RuntimeException("Error while loading model", e);
+        }
+    }
+
+    /**
+     * Loads a model from a file on disk by memory-mapping it.
+     * Material libraries and textures are still resolved on the classpath, relative to startPath.
+     */
+    public HashMap<ObjObject, IndexedModel> loadModel(String startPath, File file) throws Exception
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            return loadModel(startPath, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a model from raw OBJ data. Inputs larger than the parallel threshold are split in line-aligned chunks
+     * which are parsed on the fork-join pool, then merged in order: the result is the same as a sequential parse.
+     */
+    public HashMap<ObjObject, IndexedModel> loadModel(String startPath, ByteBuffer data) throws Exception
+    {
+        try
+        {
+            long start = System.nanoTime();
+            // set by the faces that reference them
+            hasNormals = false;
+            hasTexCoords = false;
+            List<OBJChunk> chunks = split(data);
+            if(chunks.size() == 1)
+            {
+                chunks.get(0).parse();
+            }
+            else
             {
-                if(line != null && !line.trim().equals(""))
+                for(OBJChunk chunk : chunks)
+                    pool.execute(chunk);
+                for(OBJChunk chunk : chunks)
+                    chunk.join();
+            }
+
+            ModelBuilder builder = new ModelBuilder(startPath);
+            for(int c = 0; c < chunks.size(); c++ )
+            {
+                OBJChunk chunk = chunks.get(c);
+                if(c == 0)
                 {
-                    String[] parts = trim(line.split(" "));
-                    if(parts.length == 0)
-                        continue;
-                    if(parts[0].equals(COMMENT))
-                    {
-                        continue;
-                    }
-                    else if(parts[0].equals(POSITION))
-                    {
-                        positions.add(new Vector3f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
-                    }
-                    else if(parts[0].equals(FACE))
-                    {
-                        for(int i = 0; i < parts.length - 3; i++)
-                        {
-                            indices.add(parseOBJIndex(parts[1], posOffset, texOffset, normOffset));
-                            indices.add(parseOBJIndex(parts[2 + i], posOffset, texOffset, normOffset));
-                            indices.add(parseOBJIndex(parts[3 + i], posOffset, texOffset, normOffset));
-                        }
-                    }
-                    else if(parts[0].equals(NORMAL))
-                    {
-                        normals.add(new Vector3f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2]), Float.parseFloat(parts[3])));
-                    }
-                    else if(parts[0].equals(TEX_COORDS))
-                    {
-                        texCoords.add(new Vector2f(Float.parseFloat(parts[1]), Float.parseFloat(parts[2])));
-                    }
-                    else if(parts[0].equals(NEW_MATERIAL))
-                    {
-                        String path = startPath+parts[1];
-                        MtlMaterialLib material = new MtlMaterialLib(path);
-                        material.parse(read(OBJLoader.class.getResourceAsStream(path)));
-                        materials.addAll(material.getMaterials());
-                    }
-                    else if(parts[0].equals(USE_MATERIAL))
+                    builder.positions = chunk.positions;
+                    builder.texCoords = chunk.texCoords;
+                    builder.normals = chunk.normals;
+                }
+                else
+                {
+                    // relative indices were resolved against the chunk, shift them to the global numbering
+                    int positionBase = builder.positions.size() / 3;
+                    int texCoordsBase = builder.texCoords.size() / 2;
+                    int normalBase = builder.normals.size() / 3;
+                    int[] chunkCorners = chunk.corners.array();
+                    for(int i = 0; i < chunk.relativeCorners.size(); i++)
                     {
-                        currentObject.material = getMaterial(materials, parts[1]);
+                        int o = chunk.relativeCorners.get(i);
+                        int flags = chunk.relativeFlags.get(i);
+                        if((flags & OBJTokenizer.RELATIVE_POSITION) != 0)
+                            chunkCorners[o] += positionBase;
+                        if((flags & OBJTokenizer.RELATIVE_TEX_COORDS) != 0)
+                            chunkCorners[o + 1] += texCoordsBase;
+                        if((flags & OBJTokenizer.RELATIVE_NORMAL) != 0)
+                            chunkCorners[o + 2] += normalBase;
                     }
-                    else if(parts[0].equals(NEW_OBJECT) || parts[0].equals(NEW_GROUP))
+                    builder.positions.addAll(chunk.positions);
+                    builder.texCoords.addAll(chunk.texCoords);
+                    builder.normals.addAll(chunk.normals);
+                }
+                if((chunk.flags & OBJTokenizer.HAS_TEX_COORDS) != 0)
+                    hasTexCoords = true;
+                if((chunk.flags & OBJTokenizer.HAS_NORMAL) != 0)
+                    hasNormals = true;
+
+                int corner = 0;
+                for(int i = 0; i < chunk.statementTypes.size(); i++)
+                {
+                    int end = chunk.statementCorners.get(i);
+                    builder.corners.addAll(chunk.corners, corner, end);
+                    corner = end;
+                    String argument = chunk.statementArguments.get(i);
+                    switch(chunk.statementTypes.get(i))
                     {
-                        result.getObjIndices().addAll(indices);
-                        normalModel.getObjIndices().addAll(indices);
-                        result = new IndexedModel();
-                        normalModel = new IndexedModel();
-                        indices.clear();
-                        objects.put(currentObject = new ObjObject(parts[1]), new IndexedModel[]{result, normalModel});
+                        case OBJChunk.MATERIAL_LIB:
+                            builder.materialLib(argument);
+                            break;
+
+                        case OBJChunk.USE_MATERIAL:
+                            builder.useMaterial(argument);
+                            break;
+
+                        case OBJChunk.NEW_OBJECT:
+                            builder.group(argument);
+                            break;
                     }
                 }
+                builder.corners.addAll(chunk.corners, corner, chunk.corners.size());
+            }
+
+            recordParse(start, data.remaining(), chunks.size(), builder);
+            return buildModels(builder.objects, builder.positions, builder.texCoords, builder.normals);
+        }
+        catch(Exception e)
+        {
+            throw new RuntimeException("Error while loading model", e);
+        }
+    }
+
+    private void recordParse(long start, long inputBytes, int chunks, ModelBuilder builder)
+    {
+        if(loadMetrics == null)
+            return;
+        loadMetrics.inputBytes += inputBytes;
+        loadMetrics.parseChunks += chunks;
+        loadMetrics.parseNanos += System.nanoTime() - start - builder.textureNanos;
+        loadMetrics.textureDecodeNanos += builder.textureNanos;
+    }
+
+    /**
+     * Gathers vertex data and the triangulated corners of each object, ready for {@link #buildModels}
+     */
+    private class ModelBuilder implements OBJListener
+    {
+
+        private final String startPath;
+        private final ArrayList<Material> materials = new ArrayList<Material>();
+        private final LinkedHashMap<ObjObject, IntList> objects = new LinkedHashMap<ObjObject, IntList>();
+        private FloatList positions = new FloatList();
+        private FloatList texCoords = new FloatList();
+        private FloatList normals = new FloatList();
+        private ObjObject currentObject;
+        private IntList corners;
+        private long textureNanos;
+
+        private ModelBuilder(String startPath)
+        {
+            this.startPath = startPath;
+            group("main");
+        }
+
+        @Override
+        public void position(float x, float y, float z)
+        {
+            positions.add(x, y, z);
+        }
+
+        @Override
+        public void texCoord(float u, float v)
+        {
+            texCoords.add(u, v);
+        }
+
+        @Override
+        public void normal(float x, float y, float z)
+        {
+            normals.add(x, y, z);
+        }
+
+        @Override
+        public void face(int[] faceCorners, int count, int flags)
+        {
+            if((flags & OBJTokenizer.HAS_TEX_COORDS) != 0)
+                hasTexCoords = true;
+            if((flags & OBJTokenizer.HAS_NORMAL) != 0)
+                hasNormals = true;
+            // triangle fan around the first corner
+            for(int i = 1; i + 1 < count; i++)
+            {
+                corners.add(faceCorners[0], faceCorners[1], faceCorners[2]);
+                corners.add(faceCorners[i * 3], faceCorners[i * 3 + 1], faceCorners[i * 3 + 2]);
+                corners.add(faceCorners[i * 3 + 3], faceCorners[i * 3 + 4], faceCorners[i * 3 + 5]);
             }
-            result.getObjIndices().addAll(indices);
-            normalModel.getObjIndices().addAll(indices);
-            
-            Iterator<ObjObject> it = objects.keySet().iterator();
-            while(it.hasNext())
+        }
+
+        @Override
+        public void group(String name)
+        {
+            corners = new IntList();
+            objects.put(currentObject = new ObjObject(name), corners);
+        }
+
+        @Override
+        public void useMaterial(String name)
+        {
+            currentObject.material = getMaterial(materials, name);
+        }
+
+        @Override
+        public void materialLib(String path)
+        {
+            String fullPath = startPath + path;
+            MtlMaterialLib material = new MtlMaterialLib(fullPath);
+            material.setDeferTextureUpload(deferTextureUpload);
+            try
+            {
+                material.parse(read(OBJLoader.class.getResourceAsStream(fullPath)));
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException("Error while reading material library " + fullPath, e);
+            }
+            materials.addAll(material.getMaterials());
+            textureNanos += material.getTextureLoadNanos();
+        }
+    }
+
+    private List<OBJChunk> split(ByteBuffer data)
+    {
+        List<OBJChunk> chunks = new ArrayList<OBJChunk>();
+        int start = data.position();
+        int limit = data.limit();
+        int size = limit - start;
+        if(size < parallelThreshold || pool.getParallelism() <= 1)
+        {
+            chunks.add(new OBJChunk(data.duplicate()));
+            return chunks;
+        }
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4));
+        while(start < limit)
+        {
+            int end = (int)Math.min((long)start + chunkSize, limit);
+            // move the boundary to the start of the next line
+            while(end < limit && data.get(end - 1) != '\n' && data.get(end - 1) != '\r')
+                end++;
+            ByteBuffer slice = data.duplicate();
+            slice.limit(end);
+            slice.position(start);
+            chunks.add(new OBJChunk(slice));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Turns the (position, texture coordinates, normal) triples of each object into indexed vertices, merging
+     * corners that share the same triple.
+     */
+    private HashMap<ObjObject, IndexedModel> buildModels(LinkedHashMap<ObjObject, IntList> objects, FloatList positions, FloatList texCoords, FloatList normals)
+    {
+        HashMap<ObjObject, IndexedModel> map = new HashMap<ObjObject, IndexedModel>();
+        int positionCount = positions.size() / 3;
+        double missesBefore = 0;
+        double missesAfter = 0;
+        long triangles = 0;
+        long dedupNanos = 0;
+        long start = System.nanoTime();
+        // shared by all objects when normals are generated, each one only resets the positions it used
+        int[] normalIndexMap = null;
+        IntList usedPositions = null;
+        if(!hasNormals)
+        {
+            normalIndexMap = new int[positionCount];
+            Arrays.fill(normalIndexMap, -1);
+            usedPositions = new IntList();
+        }
+        for(Map.Entry<ObjObject, IntList> entry : objects.entrySet())
+        {
+            long dedupStart = System.nanoTime();
+            ObjObject object = entry.getKey();
+            int[] corners = entry.getValue().array();
+            int cornerCount = entry.getValue().size() / 3;
+            IndexedModel result = new IndexedModel(cornerCount / 2, cornerCount);
+            map.put(object, result);
+
+            VertexIndexTable vertexTable = new VertexIndexTable(cornerCount / 2);
+            // only needed to generate normals when the file does not provide them
+            IndexedModel normalModel = null;
+            int[] indexMap = null;
+            if(!hasNormals)
             {
-                ObjObject object = it.next();
-                result = objects.get(object)[0];
-                normalModel = objects.get(object)[1];
-                indices = result.getObjIndices();
-                map.put(object, result);
-                object.center = result.computeCenter();
-                for(int i = 0; i < indices.size(); i++)
+                normalModel = new IndexedModel(cornerCount / 2, cornerCount);
+                indexMap = new int[cornerCount];
+            }
+            for(int i = 0; i < cornerCount; i++)
+            {
+                int positionIndex = corners[i * 3];
+                int texCoordsIndex = corners[i * 3 + 1];
+                int normalIndex = corners[i * 3 + 2];
+
+                int modelVertexIndex = vertexTable.putIfAbsent(positionIndex, texCoordsIndex, normalIndex, result.getVertexCount());
+                if(modelVertexIndex == -1)
                 {
-                    OBJIndex current = indices.get(i);
-                    Vector3f pos = positions.get(current.positionIndex);
-                    Vector2f texCoord;
-                    if(hasTexCoords)
+                    int p = positionIndex * 3;
+                    float x = positions.get(p);
+                    float y = positions.get(p + 1);
+                    float z = positions.get(p + 2);
+                    float u = 0;
+                    float v = 0;
+                    int t = texCoordsIndex * 2;
+                    if(hasTexCoords && t >= 0 && t + 1 < texCoords.size())
                     {
-                        texCoord = texCoords.get(current.texCoordsIndex);
+                        u = texCoords.get(t);
+                        v = texCoords.get(t + 1);
                     }
-                    else
+                    float nx = 0;
+                    float ny = 0;
+                    float nz = 0;
+                    int n = normalIndex * 3;
+                    if(hasNormals && n >= 0 && n + 2 < normals.size())
                     {
-                        texCoord = new Vector2f();
+                        nx = normals.get(n);
+                        ny = normals.get(n + 1);
+                        nz = normals.get(n + 2);
                     }
-                    Vector3f normal;
-                    if(hasNormals)
+                    modelVertexIndex = result.addVertex(x, y, z, u, v, nx, ny, nz);
+
+                    if(!hasNormals)
                     {
-                        try
-                        {
-                            normal = normals.get(current.normalIndex);
-                        }
-                        catch(Exception e)
+                        int normalModelIndex = normalIndexMap[positionIndex];
+                        if(normalModelIndex == -1)
                         {
-                           normal = new Vector3f();
+                            normalModelIndex = normalModel.addVertex(x, y, z, u, v, 0, 0, 0);
+                            normalIndexMap[positionIndex] = normalModelIndex;
+                            usedPositions.add(positionIndex);
                         }
+                        indexMap[modelVertexIndex] = normalModelIndex;
                     }
-                    else
-                    {
-                        normal = new Vector3f();
-                    }
-
-                    int modelVertexIndex = resultIndexMap.get(current);
-                    if(modelVertexIndex == -1)
-                    {
-                        resultIndexMap.put(current, result.getPositions().size());
-                        modelVertexIndex = result.getPositions().size();
-
-                        result.getPositions().add(pos);
-                        result.getTexCoords().add(texCoord);
-                        if(hasNormals)
-                            result.getNormals().add(normal);
-                        result.getTangents().add(new Vector3f());
-                    }
-
-                    int normalModelIndex = normalIndexMap.get(current.positionIndex);
-
-                    if(normalModelIndex == -1)
-                    {
-                        normalModelIndex = normalModel.getPositions().size();
-                        normalIndexMap.put(current.positionIndex, normalModelIndex);
+                }
+                result.addIndex(modelVertexIndex);
+                if(!hasNormals)
+                    normalModel.addIndex(indexMap[modelVertexIndex]);
+            }
+            dedupNanos += System.nanoTime() - dedupStart;
+            // the corners of the object are not read again, they can go before the next object is built
+            entry.setValue(null);
+            if(loadMetrics != null)
+            {
+                loadMetrics.corners += cornerCount;
+                loadMetrics.uniqueVertices += result.getVertexCount();
+            }
 
-                        normalModel.getPositions().add(pos);
-                        normalModel.getTexCoords().add(texCoord);
-                        normalModel.getNormals().add(normal);
-                        normalModel.getTangents().add(new Vector3f());
-                    }
+            if(!hasNormals)
+            {
+                for(int i = 0; i < usedPositions.size(); i++)
+                    normalIndexMap[usedPositions.get(i)] = -1;
+                usedPositions.clear();
+                normalModel.computeNormals(normalWeighting);
 
-                    result.getIndices().add(modelVertexIndex);
-                    normalModel.getIndices().add(normalModelIndex);
-                    indexMap.put(modelVertexIndex, normalModelIndex);
+                float[] smoothNormals = normalModel.getNormalData();
+                for(int i = 0; i < result.getVertexCount(); i++)
+                {
+                    int n = indexMap[i] * 3;
+                    result.setNormal(i, smoothNormals[n], smoothNormals[n + 1], smoothNormals[n + 2]);
                 }
+            }
 
-                if(!hasNormals)
-                {
-                    normalModel.computeNormals();
+            object.center = result.computeCenter();
 
-                    for(int i = 0; i < result.getNormals().size(); i++)
-                    {
-                        result.getNormals().add(normalModel.getNormals().get(indexMap.get(i)));
-                    }
-                }
+            if(optimizeVertexCache)
+            {
+                VertexCacheOptimizer.Result stats = VertexCacheOptimizer.optimize(result, VertexCacheOptimizer.DEFAULT_CACHE_SIZE);
+                missesBefore += stats.acmrBefore * stats.triangleCount;
+                missesAfter += stats.acmrAfter * stats.triangleCount;
+                triangles += stats.triangleCount;
             }
-            return map;
+            // capacities were guessed from the corner count
+            result.compact();
         }
-        catch(Exception e)
+        acmrBefore = optimizeVertexCache ? (float)(missesBefore / Math.max(triangles, 1)) : Float.NaN;
+        acmrAfter = optimizeVertexCache ? (float)(missesAfter / Math.max(triangles, 1)) : Float.NaN;
+        if(loadMetrics != null)
         {
-            throw new RuntimeException("Error while loading model", e);
+            loadMetrics.acmrBefore = acmrBefore;
+            loadMetrics.acmrAfter = acmrAfter;
+            loadMetrics.dedupNanos += dedupNanos;
+            loadMetrics.meshBuildNanos += System.nanoTime() - start - dedupNanos;
+        }
+        return map;
+    }
+
+    /**
+     * Converts the result of {@link #loadModel(String, ByteBuffer)} to renderable objects, each holding its mesh
+     */
+    public static List<ObjObject> toObjects(HashMap<ObjObject, IndexedModel> map)
+    {
+        return toObjects(map, null);
+    }
+
+    /**
+     * Converts the result of {@link #loadModel(String, ByteBuffer)} to renderable objects, adding the time it takes to
+     * the mesh build time of <code>metrics</code> and setting its retained bytes
+     */
+    public static List<ObjObject> toObjects(HashMap<ObjObject, IndexedModel> map, LoadMetrics metrics)
+    {
+        long start = System.nanoTime();
+        List<ObjObject> objects = new ArrayList<ObjObject>(map.size());
+        for(Map.Entry<ObjObject, IndexedModel> entry : map.entrySet())
+        {
+            ObjObject object = entry.getKey();
+            Mesh mesh = new Mesh();
+            object.mesh = mesh;
+            entry.getValue().toMesh(mesh);
+            object.computeBounds();
+            objects.add(object);
         }
+        if(metrics != null)
+        {
+            metrics.meshBuildNanos += System.nanoTime() - start;
+            metrics.retainedBytes = 0;
+            for(ObjObject object : objects)
+                metrics.retainedBytes += object.retainedBytes();
+        }
+        return objects;
     }
-    
+
     private Material getMaterial(ArrayList<Material> materials, String id)
     {
         for(Material mat : materials)
@@ -257,6 +649,31 @@ public class OBJLoader
         return new String(out.toByteArray(), "UTF-8");
     }
 
+    public static ByteBuffer readBuffer(InputStream resource) throws IOException
+    {
+        return readBuffer(resource, resource.available());
+    }
+
+    /**
+     * Reads the whole stream and closes it
+     * @param expectedLength size of the stream if known, so that it is read without growing the buffer
+     */
+    private static ByteBuffer readBuffer(InputStream resource, int expectedLength) throws IOException
+    {
+        int i;
+        int count = 0;
+        // one more byte, so that reading the end does not grow the buffer
+        byte[] buffer = new byte[Math.max(expectedLength + 1, 65565)];
+        while((i = resource.read(buffer, count, buffer.length - count)) != -1)
+        {
+            count += i;
+            if(count == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        resource.close();
+        return ByteBuffer.wrap(buffer, 0, count);
+    }
+
 
     public OBJIndex parseOBJIndex(String token, int posOffset, int texCoordsOffset, int normalOffset)
     {
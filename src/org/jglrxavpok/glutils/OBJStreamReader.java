@@ -0,0 +1,162 @@
+package org.jglrxavpok.glutils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Reads OBJ data from a stream through a fixed-size buffer and pushes each statement to an {@link OBJListener}, so
+ * that the file itself is never held in memory. Only complete lines are parsed; the buffer only grows when a single
+ * line does not fit in it.
+ */
+public class OBJStreamReader
+{
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final OBJListener listener;
+    private ByteBuffer buffer;
+    private int[] faceCorners = new int[4 * 3];
+    private int positionCount;
+    private int texCoordCount;
+    private int normalCount;
+    private long bytesRead;
+
+    public OBJStreamReader(OBJListener listener)
+    {
+        this(listener, DEFAULT_BUFFER_SIZE);
+    }
+
+    public OBJStreamReader(OBJListener listener, int bufferSize)
+    {
+        this.listener = listener;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 16));
+    }
+
+    /**
+     * Reads the stream to its end, without closing it
+     */
+    public void read(InputStream in) throws IOException
+    {
+        read(Channels.newChannel(in));
+    }
+
+    /**
+     * Reads the channel to its end, without closing it. The channel must be blocking.
+     */
+    public void read(ReadableByteChannel channel) throws IOException
+    {
+        buffer.clear();
+        boolean end = false;
+        while(!end)
+        {
+            int read = channel.read(buffer);
+            end = read == -1;
+            if(read > 0)
+                bytesRead += read;
+            int filled = buffer.position();
+            int linesEnd = end ? filled : lastLineBreak(filled) + 1;
+            if(linesEnd == 0)
+            {
+                if(filled == buffer.capacity())
+                {
+                    ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+                continue;
+            }
+            ByteBuffer lines = buffer.duplicate();
+            lines.position(0);
+            lines.limit(linesEnd);
+            parse(new OBJTokenizer(lines));
+            // the unfinished last line moves to the front
+            buffer.limit(filled);
+            buffer.position(linesEnd);
+            buffer.compact();
+        }
+    }
+
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    public int getPositionCount()
+    {
+        return positionCount;
+    }
+
+    public int getTexCoordCount()
+    {
+        return texCoordCount;
+    }
+
+    public int getNormalCount()
+    {
+        return normalCount;
+    }
+
+    private int lastLineBreak(int filled)
+    {
+        for(int i = filled - 1; i >= 0; i-- )
+        {
+            byte c = buffer.get(i);
+            if(c == '\n' || c == '\r')
+                return i;
+        }
+        return -1;
+    }
+
+    private void parse(OBJTokenizer tokenizer)
+    {
+        while(tokenizer.nextLine())
+        {
+            if(tokenizer.keyword(OBJLoader.POSITION))
+            {
+                listener.position(tokenizer.nextFloat(), tokenizer.nextFloat(), tokenizer.nextFloat());
+                positionCount++;
+            }
+            else if(tokenizer.keyword(OBJLoader.FACE))
+            {
+                int count = 0;
+                int flags = 0;
+                while(tokenizer.hasMoreTokens())
+                {
+                    if(count * 3 == faceCorners.length)
+                        faceCorners = Arrays.copyOf(faceCorners, faceCorners.length * 2);
+                    flags |= tokenizer.nextIndex(faceCorners, count * 3, positionCount, texCoordCount, normalCount);
+                    count++;
+                }
+                listener.face(faceCorners, count, flags & (OBJTokenizer.HAS_TEX_COORDS | OBJTokenizer.HAS_NORMAL));
+            }
+            else if(tokenizer.keyword(OBJLoader.NORMAL))
+            {
+                listener.normal(tokenizer.nextFloat(), tokenizer.nextFloat(), tokenizer.nextFloat());
+                normalCount++;
+            }
+            else if(tokenizer.keyword(OBJLoader.TEX_COORDS))
+            {
+                listener.texCoord(tokenizer.nextFloat(), tokenizer.nextFloat());
+                texCoordCount++;
+            }
+            else if(tokenizer.keyword(OBJLoader.NEW_MATERIAL))
+            {
+                listener.materialLib(tokenizer.nextString());
+            }
+            else if(tokenizer.keyword(OBJLoader.USE_MATERIAL))
+            {
+                listener.useMaterial(tokenizer.nextString());
+            }
+            else if(tokenizer.keyword(OBJLoader.NEW_OBJECT) || tokenizer.keyword(OBJLoader.NEW_GROUP))
+            {
+                listener.group(tokenizer.nextString());
+            }
+            // comments and unsupported statements are skipped along with the rest of the line
+        }
+    }
+}
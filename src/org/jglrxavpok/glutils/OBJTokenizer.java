@@ -0,0 +1,348 @@
+package org.jglrxavpok.glutils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scans OBJ data straight from a {@link ByteBuffer}, line by line and token by token, without
+ * building intermediate Strings for keywords, numbers or face indices.
+ * <br/>
+ * Floats are decoded in place and give the exact same value as {@link Float#parseFloat(String)};
+ * the rare inputs that cannot be decoded exactly on the fast path fall back to it.
+ */
+public class OBJTokenizer
+{
+
+    public static final int HAS_TEX_COORDS = 1;
+    public static final int HAS_NORMAL = 2;
+    public static final int RELATIVE_POSITION = 4;
+    public static final int RELATIVE_TEX_COORDS = 8;
+    public static final int RELATIVE_NORMAL = 16;
+
+    private static final float[] FLOAT_POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+    private static final double[] DOUBLE_POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int pos;
+    private boolean started;
+    private byte[] scratch;
+
+    public OBJTokenizer(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+        this.pos = buffer.position();
+        this.limit = buffer.limit();
+        this.scratch = new byte[64];
+    }
+
+    /**
+     * Moves to the first token of the next non-blank line.
+     * @return false when the end of the data has been reached
+     */
+    public boolean nextLine()
+    {
+        if(started)
+            skipLine();
+        started = true;
+        while(true)
+        {
+            skipWhitespace();
+            if(pos >= limit)
+                return false;
+            byte c = buffer.get(pos);
+            if(c != '\n' && c != '\r')
+                return true;
+            pos++;
+        }
+    }
+
+    /**
+     * Consumes the current token if it is exactly the given (ASCII) keyword.
+     */
+    public boolean keyword(String keyword)
+    {
+        int length = keyword.length();
+        if(pos + length > limit)
+            return false;
+        for(int i = 0; i < length; i++)
+        {
+            if(buffer.get(pos + i) != keyword.charAt(i))
+                return false;
+        }
+        if(pos + length < limit && !isSeparator(buffer.get(pos + length)))
+            return false;
+        pos += length;
+        return true;
+    }
+
+    /**
+     * @return true if the current line still holds at least one token
+     */
+    public boolean hasMoreTokens()
+    {
+        skipWhitespace();
+        return !isEndOfLine();
+    }
+
+    public String nextString()
+    {
+        skipWhitespace();
+        int start = pos;
+        while(pos < limit && !isSeparator(buffer.get(pos)))
+            pos++;
+        int length = pos - start;
+        if(length == 0)
+            throw new IllegalArgumentException("Missing name");
+        byte[] bytes = copy(start, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public int nextInt()
+    {
+        skipWhitespace();
+        return parseInt();
+    }
+
+    public float nextFloat()
+    {
+        skipWhitespace();
+        int start = pos;
+        boolean negative = false;
+        if(pos < limit)
+        {
+            byte sign = buffer.get(pos);
+            if(sign == '-' || sign == '+')
+            {
+                negative = sign == '-';
+                pos++;
+            }
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean exact = true;
+        byte c;
+        while(pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9')
+        {
+            anyDigit = true;
+            if(digits < MAX_MANTISSA_DIGITS)
+            {
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0)
+                    digits++;
+            }
+            else
+            {
+                exact = false;
+            }
+            pos++;
+        }
+        if(pos < limit && buffer.get(pos) == '.')
+        {
+            pos++;
+            while(pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9')
+            {
+                anyDigit = true;
+                if(digits < MAX_MANTISSA_DIGITS)
+                {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(mantissa != 0)
+                        digits++;
+                    exponent--;
+                }
+                else
+                {
+                    exact = false;
+                }
+                pos++;
+            }
+        }
+        if(anyDigit && pos < limit && ((c = buffer.get(pos)) == 'e' || c == 'E'))
+        {
+            pos++;
+            boolean negativeExponent = false;
+            if(pos < limit && ((c = buffer.get(pos)) == '-' || c == '+'))
+            {
+                negativeExponent = c == '-';
+                pos++;
+            }
+            int explicitExponent = 0;
+            boolean anyExponentDigit = false;
+            while(pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9')
+            {
+                anyExponentDigit = true;
+                if(explicitExponent < 10000)
+                    explicitExponent = explicitExponent * 10 + (c - '0');
+                pos++;
+            }
+            if(!anyExponentDigit)
+                exact = false;
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        if(!anyDigit || !exact || (pos < limit && !isSeparator(buffer.get(pos))))
+            return slowFloat(start);
+
+        if(mantissa == 0)
+            return negative ? -0f : 0f;
+
+        float value;
+        if(mantissa < (1L << 24) && exponent >= -10 && exponent <= 10)
+        {
+            // both operands are exact floats, a single IEEE operation rounds correctly
+            value = (float)mantissa;
+            value = exponent < 0 ? value / FLOAT_POWERS_OF_TEN[-exponent] : value * FLOAT_POWERS_OF_TEN[exponent];
+        }
+        else if(mantissa < (1L << 53) && exponent >= -22 && exponent <= 22)
+        {
+            double d = (double)mantissa;
+            d = exponent < 0 ? d / DOUBLE_POWERS_OF_TEN[-exponent] : d * DOUBLE_POWERS_OF_TEN[exponent];
+            // rounding the correctly rounded double again to float is only wrong when the double
+            // lands exactly halfway between two floats (or in the subnormal range)
+            if(d < Float.MIN_NORMAL || (Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L)
+                return slowFloat(start);
+            value = (float)d;
+        }
+        else
+        {
+            return slowFloat(start);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads a face corner (<code>v</code>, <code>v/vt</code>, <code>v//vn</code> or <code>v/vt/vn</code>) as three ints
+     * (position, texture coordinates, normal) stored at the given offset, with 1-based OBJ numbering converted to 0-based.
+     * Missing components are 0. Negative (relative) indices are resolved against the given counts of elements read so far.
+     * @return a bitmask of {@link #HAS_TEX_COORDS}, {@link #HAS_NORMAL} and the <code>RELATIVE_*</code> flags
+     */
+    public int nextIndex(int[] dest, int offset, int positionCount, int texCoordCount, int normalCount)
+    {
+        skipWhitespace();
+        int flags = 0;
+        int value = parseInt();
+        dest[offset] = value < 0 ? positionCount + value : value - 1;
+        dest[offset + 1] = 0;
+        dest[offset + 2] = 0;
+        if(value < 0)
+            flags |= RELATIVE_POSITION;
+        if(pos < limit && buffer.get(pos) == '/')
+        {
+            pos++;
+            if(pos < limit && !isSeparator(buffer.get(pos)) && buffer.get(pos) != '/')
+            {
+                value = parseInt();
+                dest[offset + 1] = value < 0 ? texCoordCount + value : value - 1;
+                flags |= HAS_TEX_COORDS;
+                if(value < 0)
+                    flags |= RELATIVE_TEX_COORDS;
+            }
+            if(pos < limit && buffer.get(pos) == '/')
+            {
+                pos++;
+                if(pos < limit && !isSeparator(buffer.get(pos)))
+                {
+                    value = parseInt();
+                    dest[offset + 2] = value < 0 ? normalCount + value : value - 1;
+                    flags |= HAS_NORMAL;
+                    if(value < 0)
+                        flags |= RELATIVE_NORMAL;
+                }
+            }
+        }
+        if(pos < limit && !isSeparator(buffer.get(pos)))
+            throw new NumberFormatException("Invalid face index: " + currentToken());
+        return flags;
+    }
+
+    private int parseInt()
+    {
+        int start = pos;
+        boolean negative = false;
+        if(pos < limit)
+        {
+            byte sign = buffer.get(pos);
+            if(sign == '-' || sign == '+')
+            {
+                negative = sign == '-';
+                pos++;
+            }
+        }
+        long value = 0;
+        int digitsStart = pos;
+        byte c;
+        while(pos < limit && (c = buffer.get(pos)) >= '0' && c <= '9')
+        {
+            value = value * 10 + (c - '0');
+            if(value > Integer.MAX_VALUE + 1L)
+                throw new NumberFormatException("Integer out of range: " + tokenFrom(start));
+            pos++;
+        }
+        if(pos == digitsStart)
+            throw new NumberFormatException("Expected an integer: " + tokenFrom(start));
+        value = negative ? -value : value;
+        if(value > Integer.MAX_VALUE)
+            throw new NumberFormatException("Integer out of range: " + tokenFrom(start));
+        return (int)value;
+    }
+
+    private float slowFloat(int start)
+    {
+        pos = start;
+        return Float.parseFloat(currentToken());
+    }
+
+    private String currentToken()
+    {
+        int start = pos;
+        while(pos < limit && !isSeparator(buffer.get(pos)))
+            pos++;
+        return new String(copy(start, pos - start), 0, pos - start, StandardCharsets.UTF_8);
+    }
+
+    private String tokenFrom(int start)
+    {
+        pos = start;
+        return currentToken();
+    }
+
+    private byte[] copy(int start, int length)
+    {
+        if(scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        for(int i = 0; i < length; i++)
+            scratch[i] = buffer.get(start + i);
+        return scratch;
+    }
+
+    private void skipWhitespace()
+    {
+        byte c;
+        while(pos < limit && ((c = buffer.get(pos)) == ' ' || c == '\t'))
+            pos++;
+    }
+
+    private void skipLine()
+    {
+        byte c;
+        while(pos < limit && (c = buffer.get(pos)) != '\n' && c != '\r')
+            pos++;
+    }
+
+    private boolean isEndOfLine()
+    {
+        if(pos >= limit)
+            return true;
+        byte c = buffer.get(pos);
+        return c == '\n' || c == '\r';
+    }
+
+    private static boolean isSeparator(byte c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
@@ -0,0 +1,15 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * Receives the render events of an {@link ObjModel}, see {@link ObjModel#addListener(ObjEvent.EventType, ObjEventListener)}.
+ * <br/>
+ * The event given to {@link #handle(ObjEvent)} is reused by the model once the call returns and must not be kept.
+ */
+public interface ObjEventListener
+{
+
+    /**
+     * @return false to cancel the rendering announced by a cancelable (PRE_*) event, ignored for the others
+     */
+    boolean handle(ObjEvent event);
+}
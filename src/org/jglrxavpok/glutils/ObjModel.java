@@ -3,7 +3,10 @@ package org.jglrxavpok.glutils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.jglrxavpok.glutils.ObjEvent.EventType;
@@ -14,10 +17,32 @@ public abstract class ObjModel extends Model
     public List<ObjObject> objObjects;
 
     protected String filename;
+
+    private static final ObjObject[] NO_GROUPS = new ObjObject[0];
+    private static final ObjEventListener[] NO_LISTENERS = new ObjEventListener[0];
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    /**
+     * Listeners by event type, replaced on change so rendering can iterate them without copying
+     */
+    private final ObjEventListener[][] listeners = new ObjEventListener[EVENT_TYPES.length][];
+    /**
+     * One reusable event per type, null while it is being dispatched
+     */
+    private final ObjEvent[] pooledEvents = new ObjEvent[EVENT_TYPES.length];
+    private HashMap<String, ObjObject[]> groupIndex;
+    private int groupGeneration;
+    /**
+     * Statistics of this model, cached by {@link ModelMetrics}
+     */
+    ModelMetrics.ModelStats metricsStats;
+    private long emittedVertices;
     
     ObjModel()
     {
         objObjects = new ArrayList<ObjObject>();
+        for(int i = 0; i < listeners.length; i++ )
+            listeners[i] = NO_LISTENERS;
     }
     
     public ObjModel(String classpathElem)
@@ -44,25 +69,339 @@ public abstract class ObjModel extends Model
         return out.toByteArray();
     }
 
+    /**
+     * @return approximate number of bytes held by the geometry of every object and by the textures of their materials
+     */
+    public long retainedBytes()
+    {
+        long bytes = 0;
+        List<Material> materials = new ArrayList<Material>();
+        for(ObjObject object : objObjects)
+        {
+            bytes += object.retainedBytes();
+            if(object.material != null && !materials.contains(object.material))
+            {
+                materials.add(object.material);
+                bytes += object.material.getTextureBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Rebuilds the index of groups by name. Has to be called after adding or removing objects in {@link #objObjects},
+     * {@link GroupHandle}s then resolve their names again.
+     */
+    public void indexGroups()
+    {
+        HashMap<String, List<ObjObject>> lists = new HashMap<String, List<ObjObject>>();
+        for(ObjObject object : objObjects)
+        {
+            List<ObjObject> list = lists.get(object.getName());
+            if(list == null)
+            {
+                list = new ArrayList<ObjObject>(1);
+                lists.put(object.getName(), list);
+            }
+            list.add(object);
+        }
+        HashMap<String, ObjObject[]> index = new HashMap<String, ObjObject[]>(lists.size() * 2);
+        for(Map.Entry<String, List<ObjObject>> entry : lists.entrySet())
+            index.put(entry.getKey(), entry.getValue().toArray(new ObjObject[entry.getValue().size()]));
+        groupIndex = index;
+        groupGeneration++;
+    }
+
+    /**
+     * @return the objects with the given name, in load order. The returned array must not be modified.
+     */
+    public ObjObject[] getGroups(String name)
+    {
+        if(groupIndex == null)
+            indexGroups();
+        ObjObject[] groups = groupIndex.get(name);
+        return groups == null ? NO_GROUPS : groups;
+    }
+
+    /**
+     * Resolves group names once into a handle that renders them without looking them up again, see
+     * {@link #renderGroups(GroupHandle)}
+     */
+    public GroupHandle compileGroups(String... names)
+    {
+        GroupHandle handle = new GroupHandle(this, names);
+        resolve(handle);
+        return handle;
+    }
+
+    private void resolve(GroupHandle handle)
+    {
+        if(groupIndex == null)
+            indexGroups();
+        for(int i = 0; i < handle.names.length; i++ )
+            handle.groups[i] = getGroups(handle.names[i]);
+        handle.generation = groupGeneration;
+    }
+
+    /**
+     * Finds the nearest triangle of any group hit by a ray, see {@link TriangleBVH#closestHit}. Groups whose bounding
+     * box the ray misses are skipped before their hierarchy is even built.
+     * @return true if a triangle was hit, <code>hit</code> then holds its group, triangle index and barycentrics
+     */
+    public boolean closestHit(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, TriangleBVH.RayHit hit)
+    {
+        boolean found = false;
+        float closest = maxDistance;
+        for(ObjObject object : objObjects)
+        {
+            if(!rayHitsBounds(object, ox, oy, oz, dx, dy, dz, closest))
+                continue;
+            if(object.getBVH().closestHit(ox, oy, oz, dx, dy, dz, closest, hit))
+            {
+                hit.object = object;
+                closest = hit.distance;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the ray hits a triangle of any group closer than <code>maxDistance</code>
+     */
+    public boolean anyHit(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance)
+    {
+        for(ObjObject object : objObjects)
+        {
+            if(rayHitsBounds(object, ox, oy, oz, dx, dy, dz, maxDistance) && object.getBVH().anyHit(ox, oy, oz, dx, dy, dz, maxDistance))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds every triangle of any group hit by the ray closer than <code>maxDistance</code> to <code>hits</code>
+     * @return the number of hits added
+     */
+    public int raycast(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, List<TriangleBVH.RayHit> hits)
+    {
+        int count = 0;
+        for(ObjObject object : objObjects)
+        {
+            if(!rayHitsBounds(object, ox, oy, oz, dx, dy, dz, maxDistance))
+                continue;
+            int before = hits.size();
+            count += object.getBVH().raycast(ox, oy, oz, dx, dy, dz, maxDistance, hits);
+            for(int i = before; i < hits.size(); i++ )
+                hits.get(i).object = object;
+        }
+        return count;
+    }
+
+    private static boolean rayHitsBounds(ObjObject object, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance)
+    {
+        if(object.mesh == null || object.mesh.indices.length == 0)
+            return false;
+        if(object.boundsMin == null)
+            return true;
+        // distances at which the ray enters and leaves the box, NaN when parallel to and on a face counts as inside
+        float t1 = (object.boundsMin.x - ox) / dx;
+        float t2 = (object.boundsMax.x - ox) / dx;
+        float near = Math.min(t1, t2);
+        float far = Math.max(t1, t2);
+        t1 = (object.boundsMin.y - oy) / dy;
+        t2 = (object.boundsMax.y - oy) / dy;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (object.boundsMin.z - oz) / dz;
+        t2 = (object.boundsMax.z - oz) / dz;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        return !(far < (near > 0 ? near : 0) || near > maxDistance);
+    }
+
+    /**
+     * Finds the triangles of every group whose bounding box overlaps the given box
+     * @return for each group with at least one such triangle, its triangle indices
+     */
+    public Map<ObjObject, IntList> overlaps(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+    {
+        Map<ObjObject, IntList> result = new HashMap<ObjObject, IntList>();
+        for(ObjObject object : objObjects)
+        {
+            if(object.mesh == null || object.mesh.indices.length == 0)
+                continue;
+            if(object.boundsMin != null && (object.boundsMin.x > maxX || object.boundsMin.y > maxY || object.boundsMin.z > maxZ
+                    || object.boundsMax.x < minX || object.boundsMax.y < minY || object.boundsMax.z < minZ))
+                continue;
+            IntList triangles = new IntList();
+            if(object.getBVH().overlaps(minX, minY, minZ, maxX, maxY, maxZ, triangles) > 0)
+                result.put(object, triangles);
+        }
+        return result;
+    }
+
+    /**
+     * @return false while the model is still loading, rendering is skipped until then
+     */
+    public boolean isReady()
+    {
+        return true;
+    }
+
     public void renderGroup(ObjObject group)
     {
-        if(fireEvent(new ObjEvent(this, EventType.PRE_RENDER_GROUP).setData(group, group)))
+        if(!isReady())
+            return;
+        ModelMetrics metrics = ModelMetrics.getInstance();
+        boolean measure = metrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        long vertices = emittedVertices;
+        if(dispatch(EventType.PRE_RENDER_GROUP, group, group))
             this.renderGroupImpl(group);
-        fireEvent(new ObjEvent(this, EventType.POST_RENDER_GROUP).setData(group, group));
+        dispatch(EventType.POST_RENDER_GROUP, group, group);
+        if(measure)
+            metrics.recordGroupRender(this, group, emittedVertices - vertices, System.nanoTime() - start);
     }
     
     public void renderGroups(String groupsName)
     {
-        if(fireEvent(new ObjEvent(this, EventType.PRE_RENDER_GROUPS).setData(groupsName)))
+        if(!isReady())
+            return;
+        if(dispatch(EventType.PRE_RENDER_GROUPS, groupsName, null))
             this.renderGroupsImpl(groupsName);
-        fireEvent(new ObjEvent(this, EventType.POST_RENDER_GROUPS).setData(groupsName));
+        dispatch(EventType.POST_RENDER_GROUPS, groupsName, null);
     }
     
+    /**
+     * Renders the groups of a handle, with the same events as calling {@link #renderGroups(String)} with each of its
+     * names in turn
+     */
+    public void renderGroups(GroupHandle handle)
+    {
+        if(handle.model != this)
+            throw new IllegalArgumentException("Group handle belongs to another model");
+        if(!isReady())
+            return;
+        if(handle.generation != groupGeneration || groupIndex == null)
+            resolve(handle);
+        for(int i = 0; i < handle.names.length; i++ )
+        {
+            String name = handle.names[i];
+            if(dispatch(EventType.PRE_RENDER_GROUPS, name, null))
+                this.renderGroupsImpl(handle.groups[i]);
+            dispatch(EventType.POST_RENDER_GROUPS, name, null);
+        }
+    }
+
+    protected void renderGroupsImpl(ObjObject[] groups)
+    {
+        for(ObjObject group : groups)
+            renderGroup(group);
+    }
+
     public void render()
     {
-        if(fireEvent(new ObjEvent(this, EventType.PRE_RENDER_ALL)))
+        if(!isReady())
+            return;
+        ModelMetrics metrics = ModelMetrics.getInstance();
+        boolean measure = metrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        long vertices = emittedVertices;
+        if(dispatch(EventType.PRE_RENDER_ALL, null, null))
             this.renderImpl();
-        fireEvent(new ObjEvent(this, EventType.POST_RENDER_ALL));
+        dispatch(EventType.POST_RENDER_ALL, null, null);
+        if(measure)
+            metrics.recordModelRender(this, emittedVertices - vertices, System.nanoTime() - start);
+    }
+
+    /**
+     * Called by implementations with the number of vertices they send to the GPU, so that {@link ModelMetrics} can count them
+     */
+    protected void countEmittedVertices(int vertices)
+    {
+        emittedVertices += vertices;
+    }
+
+    public synchronized void addListener(EventType type, ObjEventListener listener)
+    {
+        ObjEventListener[] current = listeners[type.ordinal()];
+        ObjEventListener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners[type.ordinal()] = updated;
+    }
+
+    public synchronized void removeListener(EventType type, ObjEventListener listener)
+    {
+        ObjEventListener[] current = listeners[type.ordinal()];
+        for(int i = 0; i < current.length; i++ )
+        {
+            if(current[i] == listener)
+            {
+                ObjEventListener[] updated = new ObjEventListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                listeners[type.ordinal()] = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if events of this type are also passed to {@link #fireEvent(ObjEvent)}. When this returns false and
+     * no listener is registered for the type, no event is built at all.
+     */
+    protected boolean forwardsEvents(EventType type)
+    {
+        return true;
+    }
+
+    /**
+     * @return true if dispatching an event of this type reaches anything, a listener or {@link #fireEvent(ObjEvent)}
+     */
+    protected boolean hasEventReceivers(EventType type)
+    {
+        return listeners[type.ordinal()].length > 0 || forwardsEvents(type);
+    }
+
+    /**
+     * Passes an event to the listeners of its type, then to {@link #fireEvent(ObjEvent)}. Events are reused between
+     * calls; a new one is only built when an event of the same type is dispatched from a listener.
+     * @return false if a cancelable event was cancelled
+     */
+    private boolean dispatch(EventType type, Object first, Object second)
+    {
+        ObjEventListener[] typeListeners = listeners[type.ordinal()];
+        boolean forward = forwardsEvents(type);
+        if(typeListeners.length == 0 && !forward)
+            return true;
+
+        ObjEvent event = pooledEvents[type.ordinal()];
+        pooledEvents[type.ordinal()] = null;
+        if(event == null)
+            event = new ObjEvent(this, type);
+        event.model = this;
+        event.type = type;
+        int dataLength = type == EventType.PRE_RENDER_GROUP || type == EventType.POST_RENDER_GROUP ? 2 : type == EventType.PRE_RENDER_GROUPS || type == EventType.POST_RENDER_GROUPS ? 1 : 0;
+        if(event.data.length != dataLength)
+            event.data = new Object[dataLength];
+        if(dataLength > 0)
+            event.data[0] = first;
+        if(dataLength > 1)
+            event.data[1] = second;
+
+        boolean proceed = true;
+        for(ObjEventListener listener : typeListeners)
+        {
+            if(!listener.handle(event))
+                proceed = false;
+        }
+        if(forward && !fireEvent(event))
+            proceed = false;
+
+        Arrays.fill(event.data, null);
+        pooledEvents[type.ordinal()] = event;
+        return proceed || !type.isCancelable();
     }
     
     protected abstract void renderGroupsImpl(String groupsName);
@@ -1,5 +1,7 @@
 package org.jglrxavpok.glutils;
 
+import java.util.Arrays;
+
 import org.lwjgl.util.vector.Vector3f;
 
 
@@ -10,6 +12,34 @@ public class ObjObject
     public Mesh mesh;
     public Material material;
     public Vector3f center;
+    /**
+     * Render-ready copy of the mesh, in whatever format the model renders with. Built on first render, dropped by
+     * {@link #meshChanged()} so that it is baked again.
+     */
+    public int[] vertexData;
+    /**
+     * Simplified copies of {@link #mesh}, from the most to the least detailed, or null. See {@link #generateLods(float...)}
+     */
+    public Mesh[] lods;
+    /**
+     * Render-ready copies of {@link #lods}, see {@link #vertexData}
+     */
+    public int[][] lodVertexData;
+    /**
+     * Axis-aligned bounding box of the mesh, see {@link #computeBounds()}
+     */
+    public Vector3f boundsMin;
+    public Vector3f boundsMax;
+    /**
+     * Bounding sphere of the mesh, see {@link #computeBounds()}
+     */
+    public Vector3f sphereCenter;
+    public float sphereRadius;
+    private volatile TriangleBVH bvh;
+    /**
+     * Render statistics of this group, cached by {@link ModelMetrics}
+     */
+    ModelMetrics.GroupStats metricsStats;
 
     public ObjObject(String name)
     {
@@ -20,4 +50,202 @@ public class ObjObject
     {
         return name;
     }
+
+    /**
+     * @return the hierarchy used for ray and box queries against the mesh, built on first call
+     */
+    public TriangleBVH getBVH()
+    {
+        TriangleBVH tree = bvh;
+        if(tree == null)
+        {
+            synchronized(this)
+            {
+                tree = bvh;
+                if(tree == null && mesh != null)
+                {
+                    tree = new TriangleBVH(mesh);
+                    bvh = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Drops the hierarchy built by {@link #getBVH()}, to be called after moving vertices of the mesh
+     */
+    public void invalidateBVH()
+    {
+        bvh = null;
+    }
+
+    /**
+     * Drops everything derived from the mesh: its baked {@link #vertexData}, its BVH and its bounds, which are then
+     * rebuilt on their next use. To be called after changing the mesh, e.g. with {@link Mesh#setVertices(Vertex[])}.
+     * Levels of detail are kept, generate them again if they should follow.
+     */
+    public void meshChanged()
+    {
+        vertexData = null;
+        bvh = null;
+        boundsMin = null;
+        boundsMax = null;
+        sphereCenter = null;
+        sphereRadius = 0;
+    }
+
+    /**
+     * Drops the CPU-side geometry, {@link #mesh} and every level of {@link #lods}, along with the BVH, once all of them
+     * have been baked into {@link #vertexData} and {@link #lodVertexData}. The group then only renders from its baked
+     * data: ray and box queries skip it, and its bounds and levels of detail cannot be computed again.
+     * @return true if the geometry was released, false if some of it is not baked yet
+     */
+    public boolean releaseGeometry()
+    {
+        if(vertexData == null)
+            return false;
+        if(lods != null)
+        {
+            for(int[] data : lodVertexData)
+            {
+                if(data == null)
+                    return false;
+            }
+            // the array itself stays, it gives the number of levels
+            Arrays.fill(lods, null);
+        }
+        mesh = null;
+        bvh = null;
+        return true;
+    }
+
+    /**
+     * Builds simplified copies of the mesh with {@link MeshSimplifier}.
+     * @param ratios fraction of the triangles of the mesh to keep at each level, decreasing
+     */
+    public void generateLods(float... ratios)
+    {
+        if(mesh == null)
+            return;
+        int triangles = mesh.indices.length / 3;
+        Mesh[] levels = new Mesh[ratios.length];
+        Mesh source = mesh;
+        for(int i = 0; i < ratios.length; i++ )
+        {
+            // each level is simplified from the previous one
+            int sourceTriangles = Math.max(source.indices.length / 3, 1);
+            levels[i] = MeshSimplifier.simplify(source, Math.min(1f, ratios[i] * triangles / sourceTriangles));
+            source = levels[i];
+        }
+        lods = levels;
+        lodVertexData = new int[levels.length][];
+    }
+
+    /**
+     * Computes {@link #boundsMin}, {@link #boundsMax}, {@link #sphereCenter} and {@link #sphereRadius} from the mesh. The
+     * sphere is found with Ritter's algorithm, usually within a few percent of the smallest one.
+     */
+    public void computeBounds()
+    {
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        float[] data = mesh == null ? new float[0] : mesh.data;
+        int stride = mesh == null ? 1 : mesh.layout.stride;
+        int start = mesh == null ? 0 : mesh.layout.positionOffset;
+        for(int o = start; o < data.length; o += stride)
+        {
+            minX = Math.min(minX, data[o]);
+            minY = Math.min(minY, data[o + 1]);
+            minZ = Math.min(minZ, data[o + 2]);
+            maxX = Math.max(maxX, data[o]);
+            maxY = Math.max(maxY, data[o + 1]);
+            maxZ = Math.max(maxZ, data[o + 2]);
+        }
+        if(data.length == 0)
+        {
+            boundsMin = new Vector3f();
+            boundsMax = new Vector3f();
+            sphereCenter = new Vector3f();
+            sphereRadius = 0;
+            return;
+        }
+        boundsMin = new Vector3f(minX, minY, minZ);
+        boundsMax = new Vector3f(maxX, maxY, maxZ);
+
+        // Ritter: start from the vertex farthest from an arbitrary one and the vertex farthest from that one
+        int a = farthest(data, start, stride, data[start], data[start + 1], data[start + 2]);
+        int b = farthest(data, start, stride, data[a], data[a + 1], data[a + 2]);
+        double x = (data[a] + data[b]) * 0.5;
+        double y = (data[a + 1] + data[b + 1]) * 0.5;
+        double z = (data[a + 2] + data[b + 2]) * 0.5;
+        double radius = distance(data, a, x, y, z);
+        for(int o = start; o < data.length; o += stride)
+        {
+            double d = distance(data, o, x, y, z);
+            if(d > radius)
+            {
+                // grows the sphere just enough to hold the vertex, moving its center towards it
+                double newRadius = (radius + d) * 0.5;
+                double shift = (newRadius - radius) / d;
+                x += (data[o] - x) * shift;
+                y += (data[o + 1] - y) * shift;
+                z += (data[o + 2] - z) * shift;
+                radius = newRadius;
+            }
+        }
+        sphereCenter = new Vector3f((float)x, (float)y, (float)z);
+        // float rounding of the center must not leave a vertex outside
+        sphereRadius = (float)radius * 1.0001f + 1e-6f;
+    }
+
+    private static int farthest(float[] data, int start, int stride, double x, double y, double z)
+    {
+        int best = start;
+        double bestDistance = -1;
+        for(int o = start; o < data.length; o += stride)
+        {
+            double d = distance(data, o, x, y, z);
+            if(d > bestDistance)
+            {
+                best = o;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    private static double distance(float[] data, int offset, double x, double y, double z)
+    {
+        double dx = data[offset] - x;
+        double dy = data[offset + 1] - y;
+        double dz = data[offset + 2] - z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * @return approximate number of bytes held by the geometry of this object, textures excluded
+     */
+    public long retainedBytes()
+    {
+        long bytes = 0;
+        if(mesh != null)
+            bytes += mesh.retainedBytes();
+        if(vertexData != null)
+            bytes += (long)vertexData.length * 4;
+        TriangleBVH tree = bvh;
+        if(tree != null)
+            bytes += tree.retainedBytes();
+        if(lods != null)
+        {
+            for(int i = 0; i < lods.length; i++ )
+            {
+                if(lods[i] != null)
+                    bytes += lods[i].retainedBytes();
+                if(lodVertexData[i] != null)
+                    bytes += (long)lodVertexData[i].length * 4;
+            }
+        }
+        return bytes;
+    }
 }
@@ -0,0 +1,188 @@
+package org.jglrxavpok.glutils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Converts {@link BufferedImage}s to tightly packed RGBA bytes, as expected by <code>glTexImage2D</code>.
+ * <br/>
+ * Images of type <code>INT_ARGB</code>, <code>INT_RGB</code>, <code>4BYTE_ABGR</code> and <code>3BYTE_BGR</code> are
+ * read straight from their raster and written one int per pixel; other types go through
+ * {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}. Large images are converted in row bands on the
+ * common {@link ForkJoinPool}.
+ */
+public class PixelConverter
+{
+
+    /**
+     * Images with at least this many pixels are split into bands converted in parallel
+     */
+    public static final int PARALLEL_THRESHOLD = 1024 * 1024;
+    private static final int BAND_PIXELS = 256 * 1024;
+
+    private static final int GENERIC = 0;
+    private static final int INT_ARGB = 1;
+    private static final int INT_RGB = 2;
+    private static final int BYTE_ABGR = 3;
+    private static final int BYTE_BGR = 4;
+
+    public static ByteBuffer toRGBA(BufferedImage img)
+    {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        ByteBuffer result = BufferUtils.createByteBuffer(width * height * 4);
+        Band band = new Band(img, kindOf(img), 0, height);
+        // ints are written big-endian so that their bytes land in R, G, B, A order
+        band.out = result.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        if(width * (long)height >= PARALLEL_THRESHOLD)
+            ForkJoinPool.commonPool().invoke(band);
+        else
+            band.compute();
+        return result;
+    }
+
+    private static int kindOf(BufferedImage img)
+    {
+        Raster raster = img.getRaster();
+        if(raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+            return GENERIC;
+        SampleModel model = raster.getSampleModel();
+        switch(img.getType())
+        {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+                if(!(model instanceof SinglePixelPackedSampleModel) || !(raster.getDataBuffer() instanceof DataBufferInt))
+                    return GENERIC;
+                return img.getType() == BufferedImage.TYPE_INT_ARGB ? INT_ARGB : INT_RGB;
+
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if(!(raster.getDataBuffer() instanceof DataBufferByte) || !hasBandOffsets(model, 4, 3, 2, 1, 0))
+                    return GENERIC;
+                return BYTE_ABGR;
+
+            case BufferedImage.TYPE_3BYTE_BGR:
+                if(!(raster.getDataBuffer() instanceof DataBufferByte) || !hasBandOffsets(model, 3, 2, 1, 0))
+                    return GENERIC;
+                return BYTE_BGR;
+
+            default:
+                return GENERIC;
+        }
+    }
+
+    private static boolean hasBandOffsets(SampleModel model, int pixelStride, int... offsets)
+    {
+        if(!(model instanceof ComponentSampleModel))
+            return false;
+        ComponentSampleModel components = (ComponentSampleModel)model;
+        return components.getPixelStride() == pixelStride && Arrays.equals(components.getBandOffsets(), offsets);
+    }
+
+    /**
+     * Converts rows [startRow; endRow[ into its own view of the output buffer
+     */
+    private static class Band extends RecursiveAction
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage img;
+        private final int kind;
+        private final int startRow;
+        private final int endRow;
+        private IntBuffer out;
+
+        private Band(BufferedImage img, int kind, int startRow, int endRow)
+        {
+            this.img = img;
+            this.kind = kind;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int width = img.getWidth();
+            int rows = endRow - startRow;
+            if(rows > 1 && rows * (long)width > BAND_PIXELS && getPool() != null)
+            {
+                int middle = startRow + rows / 2;
+                Band first = new Band(img, kind, startRow, middle);
+                Band second = new Band(img, kind, middle, endRow);
+                first.out = out.duplicate();
+                second.out = out.duplicate();
+                invokeAll(first, second);
+                return;
+            }
+            convert(width);
+        }
+
+        private void convert(int width)
+        {
+            int[] row = new int[width];
+            out.position(startRow * width);
+            Raster raster = img.getRaster();
+            for(int y = startRow; y < endRow; y++ )
+            {
+                switch(kind)
+                {
+                    case INT_ARGB:
+                    case INT_RGB:
+                    {
+                        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel)raster.getSampleModel();
+                        DataBufferInt buffer = (DataBufferInt)raster.getDataBuffer();
+                        int[] data = buffer.getData();
+                        int offset = buffer.getOffset() + y * model.getScanlineStride();
+                        int alpha = kind == INT_RGB ? 0xFF : 0;
+                        for(int x = 0; x < width; x++ )
+                            row[x] = Integer.rotateLeft(data[offset + x], 8) | alpha;
+                        break;
+                    }
+
+                    case BYTE_ABGR:
+                    case BYTE_BGR:
+                    {
+                        ComponentSampleModel model = (ComponentSampleModel)raster.getSampleModel();
+                        DataBufferByte buffer = (DataBufferByte)raster.getDataBuffer();
+                        byte[] data = buffer.getData();
+                        int offset = buffer.getOffset() + y * model.getScanlineStride();
+                        if(kind == BYTE_ABGR)
+                        {
+                            // A, B, G, R read big-endian is the byte-reversed RGBA int
+                            ByteBuffer bytes = ByteBuffer.wrap(data);
+                            for(int x = 0; x < width; x++ )
+                                row[x] = Integer.reverseBytes(bytes.getInt(offset + x * 4));
+                        }
+                        else
+                        {
+                            for(int x = 0, i = offset; x < width; x++, i += 3)
+                                row[x] = (data[i + 2] & 0xFF) << 24 | (data[i + 1] & 0xFF) << 16 | (data[i] & 0xFF) << 8 | 0xFF;
+                        }
+                        break;
+                    }
+
+                    default:
+                        img.getRGB(0, y, width, 1, row, 0, width);
+                        for(int x = 0; x < width; x++ )
+                            row[x] = Integer.rotateLeft(row[x], 8);
+                        break;
+                }
+                out.put(row, 0, width);
+            }
+        }
+    }
+}
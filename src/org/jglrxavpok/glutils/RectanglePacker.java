@@ -0,0 +1,124 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * Packs rectangles in a fixed size area with the skyline bottom-left heuristic: each rectangle goes where its top edge
+ * ends up the lowest, leftmost first.
+ */
+public class RectanglePacker
+{
+
+    private final int width;
+    private final int height;
+    /**
+     * Skyline segments as (x, y, width) triples, sorted by x and covering the whole width
+     */
+    private int[] skyline;
+    private int segments;
+
+    public RectanglePacker(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.skyline = new int[] { 0, 0, width };
+        this.segments = 1;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Finds a place for a rectangle of the given size and reserves it.
+     * @param position receives the x and y of the top-left corner of the rectangle
+     * @return false if the rectangle does not fit anymore
+     */
+    public boolean insert(int rectWidth, int rectHeight, int[] position)
+    {
+        int bestX = -1;
+        int bestY = Integer.MAX_VALUE;
+        for(int i = 0; i < segments; i++)
+        {
+            int x = skyline[i * 3];
+            int y = fitY(i, rectWidth);
+            if(y >= 0 && y + rectHeight <= height && y < bestY)
+            {
+                bestX = x;
+                bestY = y;
+            }
+        }
+        if(bestX < 0)
+            return false;
+        addLevel(bestX, bestY + rectHeight, rectWidth);
+        position[0] = bestX;
+        position[1] = bestY;
+        return true;
+    }
+
+    /**
+     * @return the lowest y at which a rectangle of the given width starting at the given segment rests, -1 if it goes
+     * past the right edge
+     */
+    private int fitY(int segment, int rectWidth)
+    {
+        if(skyline[segment * 3] + rectWidth > width)
+            return -1;
+        int y = 0;
+        int remaining = rectWidth;
+        for(int i = segment; remaining > 0 && i < segments; i++)
+        {
+            y = Math.max(y, skyline[i * 3 + 1]);
+            remaining -= skyline[i * 3 + 2];
+        }
+        return y;
+    }
+
+    /**
+     * Raises the skyline to <code>y</code> over [x; x+rectWidth[, merging neighbouring segments at the same height
+     */
+    private void addLevel(int x, int y, int rectWidth)
+    {
+        int end = x + rectWidth;
+        int[] result = new int[(segments + 2) * 3];
+        int count = 0;
+        boolean added = false;
+        for(int i = 0; i < segments; i++)
+        {
+            int segmentX = skyline[i * 3];
+            int segmentY = skyline[i * 3 + 1];
+            int segmentEnd = segmentX + skyline[i * 3 + 2];
+            if(segmentX < x)
+                count = append(result, count, segmentX, segmentY, Math.min(segmentEnd, x) - segmentX);
+            if(!added && segmentEnd > x)
+            {
+                count = append(result, count, x, y, rectWidth);
+                added = true;
+            }
+            if(segmentEnd > end)
+            {
+                int start = Math.max(segmentX, end);
+                count = append(result, count, start, segmentY, segmentEnd - start);
+            }
+        }
+        skyline = result;
+        segments = count;
+    }
+
+    private static int append(int[] skyline, int count, int x, int y, int width)
+    {
+        if(count > 0 && skyline[count * 3 - 2] == y)
+        {
+            skyline[count * 3 - 1] += width;
+            return count;
+        }
+        skyline[count * 3] = x;
+        skyline[count * 3 + 1] = y;
+        skyline[count * 3 + 2] = width;
+        return count + 1;
+    }
+}
@@ -0,0 +1,395 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates smooth vertex normals and tangents from indexed triangles, working directly on the structure-of-arrays
+ * data of {@link IndexedModel}: positions, normals and tangents are x, y, z per vertex, texture coordinates u, v.
+ * <br/>
+ * Each triangle adds its contribution to its three vertices, which are then normalized. Meshes of at least
+ * {@link #PARALLEL_THRESHOLD} triangles are split in as many chunks as the common {@link ForkJoinPool} has workers,
+ * each summing into its own accumulator; accumulators are then added together by vertex ranges, in parallel as well.
+ */
+public class TangentSpaceGenerator
+{
+
+    /**
+     * How much each triangle weighs in the normals of its vertices
+     */
+    public enum NormalWeighting
+    {
+        /**
+         * By triangle area: large faces dominate, small bevels barely count
+         */
+        AREA,
+        /**
+         * By the angle of the triangle at the vertex: the result does not depend on how faces are split into triangles
+         */
+        ANGLE
+    }
+
+    /**
+     * Meshes with at least this many triangles are processed in parallel
+     */
+    public static final int PARALLEL_THRESHOLD = 64 * 1024;
+    private static final int MIN_CHUNK_TRIANGLES = 16 * 1024;
+
+    private static final int NORMALS_BY_AREA = 0;
+    private static final int NORMALS_BY_ANGLE = 1;
+    private static final int TANGENTS = 2;
+
+    /**
+     * Fills <code>normals</code> with the normalized, weighted sum of the normals of the triangles around each vertex.
+     * Vertices used by no triangle, or only by degenerate ones, get a zero normal.
+     */
+    public static void computeNormals(float[] positions, int vertexCount, int[] indices, int indexCount, NormalWeighting weighting, float[] normals)
+    {
+        int kind = weighting == NormalWeighting.ANGLE ? NORMALS_BY_ANGLE : NORMALS_BY_AREA;
+        run(new Job(kind, positions, null, normals, vertexCount, indices, indexCount, normals, null, null));
+    }
+
+    /**
+     * Fills <code>tangents</code> with the direction of increasing u around each vertex, made orthogonal to its normal
+     * (Gram-Schmidt), and <code>handedness</code> with the sign to give the bitangent computed as
+     * <code>cross(normal, tangent)</code> so that it follows increasing v: -1 where texture coordinates are mirrored,
+     * 1 elsewhere.
+     * @param normals normalized vertex normals
+     * @param handedness one float per vertex, or null if not needed
+     */
+    public static void computeTangents(float[] positions, float[] texCoords, float[] normals, int vertexCount, int[] indices, int indexCount, float[] tangents, float[] handedness)
+    {
+        float[] bitangents = new float[vertexCount * 3];
+        run(new Job(TANGENTS, positions, texCoords, normals, vertexCount, indices, indexCount, tangents, bitangents, handedness));
+    }
+
+    private static void run(Job job)
+    {
+        int triangles = job.indexCount / 3;
+        int chunks = 1;
+        if(triangles >= PARALLEL_THRESHOLD)
+            chunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), triangles / MIN_CHUNK_TRIANGLES));
+        job.chunks = chunks;
+        // the first chunk sums straight into the output, the others get their own accumulators
+        job.firstSums = new float[chunks][];
+        job.secondSums = new float[chunks][];
+        job.firstSums[0] = job.first;
+        job.secondSums[0] = job.second;
+        Arrays.fill(job.first, 0, job.vertexCount * 3, 0f);
+        for(int c = 1; c < chunks; c++ )
+        {
+            job.firstSums[c] = new float[job.vertexCount * 3];
+            if(job.second != null)
+                job.secondSums[c] = new float[job.vertexCount * 3];
+        }
+        if(chunks == 1)
+        {
+            job.accumulate(0);
+            job.finish(0);
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new Phase(job, false, 0, chunks));
+        ForkJoinPool.commonPool().invoke(new Phase(job, true, 0, chunks));
+    }
+
+    /**
+     * Runs one of the two phases over chunks [start; end[, splitting until a single chunk is left
+     */
+    private static class Phase extends RecursiveAction
+    {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Job job;
+        private final boolean reduce;
+        private final int start;
+        private final int end;
+
+        private Phase(Job job, boolean reduce, int start, int end)
+        {
+            this.job = job;
+            this.reduce = reduce;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(end - start > 1)
+            {
+                int middle = (start + end) / 2;
+                invokeAll(new Phase(job, reduce, start, middle), new Phase(job, reduce, middle, end));
+            }
+            else if(reduce)
+            {
+                job.finish(start);
+            }
+            else
+            {
+                job.accumulate(start);
+            }
+        }
+    }
+
+    private static class Job
+    {
+
+        private final int kind;
+        private final float[] positions;
+        private final float[] texCoords;
+        private final float[] normals;
+        private final int vertexCount;
+        private final int[] indices;
+        private final int indexCount;
+        /**
+         * Normals or tangents
+         */
+        private final float[] first;
+        /**
+         * Bitangents, or null
+         */
+        private final float[] second;
+        private final float[] handedness;
+        private int chunks;
+        private float[][] firstSums;
+        private float[][] secondSums;
+
+        private Job(int kind, float[] positions, float[] texCoords, float[] normals, int vertexCount, int[] indices, int indexCount, float[] first, float[] second, float[] handedness)
+        {
+            this.kind = kind;
+            this.positions = positions;
+            this.texCoords = texCoords;
+            this.normals = normals;
+            this.vertexCount = vertexCount;
+            this.indices = indices;
+            this.indexCount = indexCount;
+            this.first = first;
+            this.second = second;
+            this.handedness = handedness;
+        }
+
+        /**
+         * Adds the contribution of the triangles of a chunk to its accumulators
+         */
+        private void accumulate(int chunk)
+        {
+            int triangles = indexCount / 3;
+            int start = (int)((long)triangles * chunk / chunks) * 3;
+            int end = (int)((long)triangles * (chunk + 1) / chunks) * 3;
+            // one loop per kind keeps each of them small enough to be compiled well
+            if(kind == NORMALS_BY_AREA)
+                accumulateByArea(start, end, firstSums[chunk]);
+            else if(kind == NORMALS_BY_ANGLE)
+                accumulateByAngle(start, end, firstSums[chunk]);
+            else
+                accumulateTangents(start, end, firstSums[chunk], secondSums[chunk]);
+        }
+
+        private void accumulateByArea(int start, int end, float[] sum)
+        {
+            float[] positions = this.positions;
+            int[] indices = this.indices;
+            for(int i = start; i < end; i += 3)
+            {
+                int i0 = indices[i] * 3;
+                int i1 = indices[i + 1] * 3;
+                int i2 = indices[i + 2] * 3;
+                float e1x = positions[i1] - positions[i0];
+                float e1y = positions[i1 + 1] - positions[i0 + 1];
+                float e1z = positions[i1 + 2] - positions[i0 + 2];
+                float e2x = positions[i2] - positions[i0];
+                float e2y = positions[i2 + 1] - positions[i0 + 1];
+                float e2z = positions[i2 + 2] - positions[i0 + 2];
+                // twice the area times the unit normal
+                float nx = e1y * e2z - e1z * e2y;
+                float ny = e1z * e2x - e1x * e2z;
+                float nz = e1x * e2y - e1y * e2x;
+                add(sum, i0, nx, ny, nz);
+                add(sum, i1, nx, ny, nz);
+                add(sum, i2, nx, ny, nz);
+            }
+        }
+
+        private void accumulateByAngle(int start, int end, float[] sum)
+        {
+            float[] positions = this.positions;
+            int[] indices = this.indices;
+            for(int i = start; i < end; i += 3)
+            {
+                int i0 = indices[i] * 3;
+                int i1 = indices[i + 1] * 3;
+                int i2 = indices[i + 2] * 3;
+                float e1x = positions[i1] - positions[i0];
+                float e1y = positions[i1 + 1] - positions[i0 + 1];
+                float e1z = positions[i1 + 2] - positions[i0 + 2];
+                float e2x = positions[i2] - positions[i0];
+                float e2y = positions[i2 + 1] - positions[i0 + 1];
+                float e2z = positions[i2 + 2] - positions[i0 + 2];
+                float e3x = positions[i2] - positions[i1];
+                float e3y = positions[i2 + 1] - positions[i1 + 1];
+                float e3z = positions[i2 + 2] - positions[i1 + 2];
+                float nx = e1y * e2z - e1z * e2y;
+                float ny = e1z * e2x - e1x * e2z;
+                float nz = e1x * e2y - e1y * e2x;
+                float l1 = (float)Math.sqrt(e1x * e1x + e1y * e1y + e1z * e1z);
+                float l2 = (float)Math.sqrt(e2x * e2x + e2y * e2y + e2z * e2z);
+                float l3 = (float)Math.sqrt(e3x * e3x + e3y * e3y + e3z * e3z);
+                float length = (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if(length == 0 || l1 == 0 || l2 == 0 || l3 == 0)
+                    continue;
+                float angle0 = acos((e1x * e2x + e1y * e2y + e1z * e2z) / (l1 * l2));
+                float angle1 = acos(-(e1x * e3x + e1y * e3y + e1z * e3z) / (l1 * l3));
+                float angle2 = Math.max(0, (float)Math.PI - angle0 - angle1);
+                float scale = 1f / length;
+                nx *= scale;
+                ny *= scale;
+                nz *= scale;
+                add(sum, i0, nx * angle0, ny * angle0, nz * angle0);
+                add(sum, i1, nx * angle1, ny * angle1, nz * angle1);
+                add(sum, i2, nx * angle2, ny * angle2, nz * angle2);
+            }
+        }
+
+        private void accumulateTangents(int start, int end, float[] tangentSum, float[] bitangentSum)
+        {
+            float[] positions = this.positions;
+            float[] texCoords = this.texCoords;
+            int[] indices = this.indices;
+            for(int i = start; i < end; i += 3)
+            {
+                int i0 = indices[i] * 3;
+                int i1 = indices[i + 1] * 3;
+                int i2 = indices[i + 2] * 3;
+                float e1x = positions[i1] - positions[i0];
+                float e1y = positions[i1 + 1] - positions[i0 + 1];
+                float e1z = positions[i1 + 2] - positions[i0 + 2];
+                float e2x = positions[i2] - positions[i0];
+                float e2y = positions[i2 + 1] - positions[i0 + 1];
+                float e2z = positions[i2 + 2] - positions[i0 + 2];
+
+                int t0 = indices[i] * 2;
+                int t1 = indices[i + 1] * 2;
+                int t2 = indices[i + 2] * 2;
+                double deltaU1 = texCoords[t1] - texCoords[t0];
+                double deltaU2 = texCoords[t2] - texCoords[t0];
+                double deltaV1 = texCoords[t1 + 1] - texCoords[t0 + 1];
+                double deltaV2 = texCoords[t2 + 1] - texCoords[t0 + 1];
+                double dividend = deltaU1 * deltaV2 - deltaU2 * deltaV1;
+                double f = dividend == 0.0 ? 0.0 : 1.0 / dividend;
+
+                float tx = (float)(f * (deltaV2 * e1x - deltaV1 * e2x));
+                float ty = (float)(f * (deltaV2 * e1y - deltaV1 * e2y));
+                float tz = (float)(f * (deltaV2 * e1z - deltaV1 * e2z));
+                float bx = (float)(f * (deltaU1 * e2x - deltaU2 * e1x));
+                float by = (float)(f * (deltaU1 * e2y - deltaU2 * e1y));
+                float bz = (float)(f * (deltaU1 * e2z - deltaU2 * e1z));
+                add(tangentSum, i0, tx, ty, tz);
+                add(tangentSum, i1, tx, ty, tz);
+                add(tangentSum, i2, tx, ty, tz);
+                add(bitangentSum, i0, bx, by, bz);
+                add(bitangentSum, i1, bx, by, bz);
+                add(bitangentSum, i2, bx, by, bz);
+            }
+        }
+
+        /**
+         * Adds the accumulators of the other chunks into the output for the vertices of a chunk, then normalizes them
+         */
+        private void finish(int chunk)
+        {
+            int start = (int)((long)vertexCount * chunk / chunks) * 3;
+            int end = (int)((long)vertexCount * (chunk + 1) / chunks) * 3;
+            for(int c = 1; c < chunks; c++ )
+            {
+                float[] firstSum = firstSums[c];
+                for(int i = start; i < end; i++ )
+                    first[i] += firstSum[i];
+                if(second != null)
+                {
+                    float[] secondSum = secondSums[c];
+                    for(int i = start; i < end; i++ )
+                        second[i] += secondSum[i];
+                }
+            }
+
+            if(kind != TANGENTS)
+            {
+                for(int i = start; i < end; i += 3)
+                {
+                    float x = first[i];
+                    float y = first[i + 1];
+                    float z = first[i + 2];
+                    float length = (float)Math.sqrt(x * x + y * y + z * z);
+                    float scale = length == 0 ? 0 : 1f / length;
+                    first[i] = x * scale;
+                    first[i + 1] = y * scale;
+                    first[i + 2] = z * scale;
+                }
+                return;
+            }
+
+            for(int i = start; i < end; i += 3)
+            {
+                float nx = normals[i];
+                float ny = normals[i + 1];
+                float nz = normals[i + 2];
+                float tx = first[i];
+                float ty = first[i + 1];
+                float tz = first[i + 2];
+                float dot = nx * tx + ny * ty + nz * tz;
+                tx -= nx * dot;
+                ty -= ny * dot;
+                tz -= nz * dot;
+                float length = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
+                if(length < 1e-12f)
+                {
+                    // no usable texture gradient: any direction orthogonal to the normal
+                    if(Math.abs(nx) < 0.9f)
+                    {
+                        tx = 0;
+                        ty = nz;
+                        tz = -ny;
+                    }
+                    else
+                    {
+                        tx = -nz;
+                        ty = 0;
+                        tz = nx;
+                    }
+                    length = (float)Math.sqrt(tx * tx + ty * ty + tz * tz);
+                }
+                float scale = length == 0 ? 0 : 1f / length;
+                first[i] = tx * scale;
+                first[i + 1] = ty * scale;
+                first[i + 2] = tz * scale;
+                if(handedness != null)
+                {
+                    float cx = ny * tz - nz * ty;
+                    float cy = nz * tx - nx * tz;
+                    float cz = nx * ty - ny * tx;
+                    handedness[i / 3] = cx * second[i] + cy * second[i + 1] + cz * second[i + 2] < 0 ? -1f : 1f;
+                }
+            }
+        }
+
+        /**
+         * Polynomial arc cosine (Abramowitz and Stegun 4.4.45), within 7e-5 radians: plenty for weights and much faster
+         * than {@link Math#acos(double)}
+         */
+        private static float acos(float x)
+        {
+            float a = Math.min(Math.abs(x), 1f);
+            float result = (float)Math.sqrt(1f - a) * (1.5707288f + a * (-0.2121144f + a * (0.0742610f - 0.0187293f * a)));
+            return x < 0 ? (float)Math.PI - result : result;
+        }
+
+        private static void add(float[] data, int offset, float x, float y, float z)
+        {
+            data[offset] += x;
+            data[offset + 1] += y;
+            data[offset + 2] += z;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.jglrxavpok.glutils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * Several textures packed into a single one, so that a model using them renders with one texture bind.
+ * <br/>
+ * Packing and texture coordinates remapping only work on CPU data and do not need a GL context. Texture coordinates of
+ * a mesh can only be remapped when they all fall in a single repetition of the texture (e.g. [0;1] or [2;3]): wrapping
+ * across several repetitions cannot be expressed in an atlas, objects doing it keep their own texture.
+ */
+public class TextureAtlas
+{
+
+    public static final int DEFAULT_PADDING = 2;
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    /**
+     * Location of a texture in the atlas, in pixels and without padding. y goes down from the top row.
+     */
+    public static class Region
+    {
+
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        public Region(int x, int y, int width, int height)
+        {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final DecodedTexture texture;
+    private final Map<String, Region> regions;
+
+    private TextureAtlas(DecodedTexture texture, Map<String, Region> regions)
+    {
+        this.texture = texture;
+        this.regions = regions;
+    }
+
+    public DecodedTexture getTexture()
+    {
+        return texture;
+    }
+
+    /**
+     * @return the region of the texture packed under the given key, null if there is none
+     */
+    public Region getRegion(String key)
+    {
+        return regions.get(key);
+    }
+
+    public Map<String, Region> getRegions()
+    {
+        return Collections.unmodifiableMap(regions);
+    }
+
+    /**
+     * Packs the given textures in the smallest power-of-two atlas found, each one surrounded by <code>padding</code>
+     * pixels copied from its edges so that neighbours do not bleed into each other.
+     * @return the atlas, or null if the textures do not fit in <code>maxSize</code>x<code>maxSize</code> pixels
+     */
+    public static TextureAtlas pack(final Map<String, DecodedTexture> textures, int padding, int maxSize)
+    {
+        List<String> keys = new ArrayList<String>(textures.keySet());
+        // tallest first gives the skyline packer its best results, keys make the order deterministic
+        Collections.sort(keys, new Comparator<String>()
+        {
+            @Override
+            public int compare(String a, String b)
+            {
+                DecodedTexture ta = textures.get(a);
+                DecodedTexture tb = textures.get(b);
+                if(ta.height != tb.height)
+                    return tb.height - ta.height;
+                if(ta.width != tb.width)
+                    return tb.width - ta.width;
+                return a.compareTo(b);
+            }
+        });
+
+        long area = 0;
+        int minSize = 1;
+        for(DecodedTexture texture : textures.values())
+        {
+            area += (texture.width + padding * 2L) * (texture.height + padding * 2L);
+            minSize = Math.max(minSize, Math.max(texture.width, texture.height) + padding * 2);
+        }
+        int side = 1;
+        while(side < minSize || (long)side * side < area)
+            side <<= 1;
+        int width = side;
+        int height = side;
+        while(width <= maxSize && height <= maxSize)
+        {
+            Map<String, Region> regions = tryPack(keys, textures, padding, width, height);
+            if(regions != null)
+                return new TextureAtlas(blit(regions, textures, padding, width, height), regions);
+            if(width == height)
+                width *= 2;
+            else
+                height *= 2;
+        }
+        return null;
+    }
+
+    private static Map<String, Region> tryPack(List<String> keys, Map<String, DecodedTexture> textures, int padding, int width, int height)
+    {
+        RectanglePacker packer = new RectanglePacker(width, height);
+        Map<String, Region> regions = new LinkedHashMap<String, Region>();
+        int[] position = new int[2];
+        for(String key : keys)
+        {
+            DecodedTexture texture = textures.get(key);
+            if(!packer.insert(texture.width + padding * 2, texture.height + padding * 2, position))
+                return null;
+            regions.put(key, new Region(position[0] + padding, position[1] + padding, texture.width, texture.height));
+        }
+        return regions;
+    }
+
+    private static DecodedTexture blit(Map<String, Region> regions, Map<String, DecodedTexture> textures, int padding, int width, int height)
+    {
+        ByteBuffer pixels = BufferUtils.createByteBuffer(width * height * 4);
+        ByteBuffer atlas = pixels.duplicate().order(ByteOrder.nativeOrder());
+        for(Map.Entry<String, Region> entry : regions.entrySet())
+        {
+            Region region = entry.getValue();
+            DecodedTexture texture = textures.get(entry.getKey());
+            ByteBuffer source = texture.pixels.duplicate().order(ByteOrder.nativeOrder());
+            for(int y = -padding; y < region.height + padding; y++ )
+            {
+                int sourceRow = Math.min(Math.max(y, 0), region.height - 1) * region.width;
+                int row = (region.y + y) * width + region.x;
+                for(int x = -padding; x < region.width + padding; x++ )
+                {
+                    int sourceColumn = Math.min(Math.max(x, 0), region.width - 1);
+                    atlas.putInt((row + x) * 4, source.getInt((sourceRow + sourceColumn) * 4));
+                }
+            }
+        }
+        return new DecodedTexture(pixels, width, height);
+    }
+
+    /**
+     * @return true if all texture coordinates of the mesh fall in a single repetition of the texture
+     */
+    public static boolean fitsSingleTile(Mesh mesh)
+    {
+        float[] bounds = texCoordBounds(mesh);
+        return bounds[2] - Math.floor(bounds[0]) <= 1 && bounds[3] - Math.floor(bounds[1]) <= 1;
+    }
+
+    /**
+     * @return min u, min v, max u, max v
+     */
+    private static float[] texCoordBounds(Mesh mesh)
+    {
+        float[] bounds = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        float[] data = mesh.data;
+        int stride = mesh.layout.stride;
+        for(int o = mesh.layout.texCoordsOffset; o < data.length; o += stride)
+        {
+            bounds[0] = Math.min(bounds[0], data[o]);
+            bounds[1] = Math.min(bounds[1], data[o + 1]);
+            bounds[2] = Math.max(bounds[2], data[o]);
+            bounds[3] = Math.max(bounds[3], data[o + 1]);
+        }
+        return bounds;
+    }
+
+    /**
+     * Moves the texture coordinates of the mesh into the given region of this atlas. They are first shifted back into
+     * [0;1] if they fall in another repetition, see {@link #fitsSingleTile(Mesh)}.
+     */
+    public void remap(Mesh mesh, Region region)
+    {
+        float[] bounds = texCoordBounds(mesh);
+        float tileU = (float)Math.floor(bounds[0]);
+        float tileV = (float)Math.floor(bounds[1]);
+        float[] data = mesh.data;
+        int stride = mesh.layout.stride;
+        float width = texture.width;
+        float height = texture.height;
+        for(int o = mesh.layout.texCoordsOffset; o < data.length; o += stride)
+        {
+            float u = data[o] - tileU;
+            // texture rows start at the top while v goes up
+            float t = 1f - (data[o + 1] - tileV);
+            data[o] = (region.x + u * region.width) / width;
+            data[o + 1] = 1f - (region.y + t * region.height) / height;
+        }
+    }
+
+    /**
+     * Packs the diffuse textures of the given objects in an atlas registered in the {@link TextureCache} under
+     * <code>key</code>, then remaps the texture coordinates of the objects and points their materials to it. Materials
+     * used by an object whose texture coordinates wrap are left untouched. Textures must not have been uploaded yet for
+     * their pixels to be reused, otherwise they are decoded again.
+     * @return the atlas, or null when there were less than two textures to pack or they did not fit
+     */
+    public static TextureAtlas build(List<ObjObject> objects, String key, int padding, int maxSize)
+    {
+        Map<Material, Boolean> packable = new LinkedHashMap<Material, Boolean>();
+        for(ObjObject object : objects)
+        {
+            Material material = object.material;
+            if(material == null || material.getDiffuseTextureEntry() == null || object.mesh == null)
+                continue;
+            Boolean previous = packable.get(material);
+            packable.put(material, (previous == null || previous) && fitsSingleTile(object.mesh));
+        }
+
+        Map<String, DecodedTexture> textures = new HashMap<String, DecodedTexture>();
+        for(Map.Entry<Material, Boolean> entry : packable.entrySet())
+        {
+            if(!entry.getValue())
+                continue;
+            TextureCache.Texture texture = entry.getKey().getDiffuseTextureEntry();
+            String path = texture.getPath();
+            if(textures.containsKey(path))
+                continue;
+            DecodedTexture pixels = texture.getPixels();
+            if(pixels == null)
+                pixels = MtlMaterialLib.decodeTexture(path);
+            if(pixels == null)
+                entry.setValue(false);
+            else
+                textures.put(path, pixels);
+        }
+        if(textures.size() < 2)
+            return null;
+        TextureAtlas atlas = pack(textures, padding, maxSize);
+        if(atlas == null)
+            return null;
+
+        for(ObjObject object : objects)
+        {
+            if(object.material == null || !Boolean.TRUE.equals(packable.get(object.material)))
+                continue;
+            Region region = atlas.getRegion(object.material.getDiffuseTextureEntry().getPath());
+            if(region == null)
+                continue;
+            atlas.remap(object.mesh, region);
+            object.vertexData = null;
+        }
+        TextureCache cache = TextureCache.getInstance();
+        for(Map.Entry<Material, Boolean> entry : packable.entrySet())
+        {
+            Material material = entry.getKey();
+            if(entry.getValue() && atlas.getRegion(material.getDiffuseTextureEntry().getPath()) != null)
+                material.setDiffuseTextureEntry(cache.acquire(key, atlas.getTexture()));
+        }
+        return atlas;
+    }
+}
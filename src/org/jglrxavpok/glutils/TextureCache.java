@@ -0,0 +1,229 @@
+package org.jglrxavpok.glutils;
+
+import java.util.HashMap;
+
+import org.lwjgl.opengl.GL11;
+
+/**
+ * Process-wide cache of material textures, keyed by their resolved classpath location.
+ * <br/>
+ * A texture is decoded and uploaded once no matter how many materials or models use it. Each user
+ * {@link #acquire(String) acquires} it and {@link #release(Texture) releases} it when done; the GL texture is deleted
+ * when the last user releases it.
+ */
+public class TextureCache
+{
+
+    /**
+     * Does the actual work for the cache, so it can run without a GL context
+     */
+    public interface Backend
+    {
+        /**
+         * @return the decoded texture, or null if it could not be read
+         */
+        DecodedTexture decode(String path);
+
+        int upload(DecodedTexture texture);
+
+        void delete(int id);
+    }
+
+    public static final Backend GL_BACKEND = new Backend()
+    {
+        @Override
+        public DecodedTexture decode(String path)
+        {
+            return MtlMaterialLib.decodeTexture(path);
+        }
+
+        @Override
+        public int upload(DecodedTexture texture)
+        {
+            return MtlMaterialLib.uploadTexture(texture);
+        }
+
+        @Override
+        public void delete(int id)
+        {
+            GL11.glDeleteTextures(id);
+        }
+    };
+
+    private static TextureCache instance = new TextureCache(GL_BACKEND);
+
+    public static TextureCache getInstance()
+    {
+        return instance;
+    }
+
+    public static void setInstance(TextureCache cache)
+    {
+        instance = cache;
+    }
+
+    /**
+     * A shared texture. It is decoded when acquired, and uploaded on the first call to {@link #upload()}.
+     */
+    public static class Texture
+    {
+
+        private final String path;
+        private final Backend backend;
+        private int refCount;
+        private boolean decoded;
+        private DecodedTexture pending;
+        private int id;
+        private long bytes;
+
+        private Texture(String path, Backend backend)
+        {
+            this.path = path;
+            this.backend = backend;
+        }
+
+        private synchronized void decode()
+        {
+            if(decoded)
+                return;
+            decoded = true;
+            pending = backend.decode(path);
+            if(pending != null)
+                bytes = pending.width * (long)pending.height * 4;
+        }
+
+        /**
+         * Uploads the texture if that was not done yet. Has to be called on the thread owning the GL context.
+         * @return the GL texture id, or 0 if the texture could not be read
+         */
+        public synchronized int upload()
+        {
+            if(pending != null)
+            {
+                id = backend.upload(pending);
+                pending = null;
+            }
+            return id;
+        }
+
+        private synchronized void delete()
+        {
+            if(id != 0)
+                backend.delete(id);
+            id = 0;
+            pending = null;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        /**
+         * @return the decoded pixels, null once uploaded or if the texture could not be read
+         */
+        public synchronized DecodedTexture getPixels()
+        {
+            return pending;
+        }
+
+        /**
+         * @return the GL texture id, 0 if not uploaded
+         */
+        public synchronized int getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return size of the decoded texture
+         */
+        public synchronized long getBytes()
+        {
+            return bytes;
+        }
+    }
+
+    private final Backend backend;
+    private final HashMap<String, Texture> textures;
+
+    public TextureCache(Backend backend)
+    {
+        this.backend = backend;
+        this.textures = new HashMap<String, Texture>();
+    }
+
+    /**
+     * Returns the texture at the given location, decoding it if this is its first user. Does not need a GL context.
+     */
+    public Texture acquire(String path)
+    {
+        Texture texture;
+        synchronized(this)
+        {
+            texture = textures.get(path);
+            if(texture == null)
+            {
+                texture = new Texture(path, backend);
+                textures.put(path, texture);
+            }
+            texture.refCount++;
+        }
+        // decoded outside of the cache lock so different textures can be decoded concurrently
+        texture.decode();
+        return texture;
+    }
+
+    /**
+     * Returns the texture registered under the given key, registering it with the given pixels if this is its first
+     * user. Used for textures built at runtime, such as {@link TextureAtlas atlases}.
+     */
+    public Texture acquire(String key, DecodedTexture pixels)
+    {
+        Texture texture;
+        synchronized(this)
+        {
+            texture = textures.get(key);
+            if(texture == null)
+            {
+                texture = new Texture(key, backend);
+                texture.decoded = true;
+                texture.pending = pixels;
+                texture.bytes = pixels.width * (long)pixels.height * 4;
+                textures.put(key, texture);
+            }
+            texture.refCount++;
+        }
+        return texture;
+    }
+
+    /**
+     * Gives back a texture obtained from {@link #acquire(String)}. The last release deletes it, which has to happen on
+     * the thread owning the GL context.
+     */
+    public void release(Texture texture)
+    {
+        synchronized(this)
+        {
+            if(--texture.refCount > 0)
+                return;
+            if(textures.get(texture.path) == texture)
+                textures.remove(texture.path);
+        }
+        texture.delete();
+    }
+
+    /**
+     * @return number of users of the texture at the given location, 0 if it is not in the cache
+     */
+    public synchronized int getRefCount(String path)
+    {
+        Texture texture = textures.get(path);
+        return texture == null ? 0 : texture.refCount;
+    }
+
+    public synchronized int size()
+    {
+        return textures.size();
+    }
+}
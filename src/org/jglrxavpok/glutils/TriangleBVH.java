@@ -0,0 +1,519 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounding volume hierarchy over the triangles of a {@link Mesh}, for ray and box queries in
+ * O(log(triangles)) instead of testing every triangle.
+ * <br/>
+ * The tree is built with the surface area heuristic over binned triangle centroids, then stored in flat arrays:
+ * node bounds, node links and triangle corner positions in leaf order. It is immutable once built, so queries can run
+ * from several threads at once.
+ */
+public class TriangleBVH
+{
+
+    /**
+     * A triangle hit by a ray
+     */
+    public static class RayHit
+    {
+
+        /**
+         * Group of the triangle, set by queries going through {@link ObjObject} or {@link ObjModel}
+         */
+        public ObjObject object;
+        /**
+         * Index of the triangle in the mesh: its corners are <code>mesh.indices[triangle * 3]</code> and the next two
+         */
+        public int triangle = -1;
+        public float distance;
+        /**
+         * Barycentric weights of the second and third corners, the first one being <code>1 - u - v</code>
+         */
+        public float u;
+        public float v;
+
+        public void set(RayHit other)
+        {
+            object = other.object;
+            triangle = other.triangle;
+            distance = other.distance;
+            u = other.u;
+            v = other.v;
+        }
+    }
+
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 4;
+    private static final int MAX_DEPTH = 64;
+    private static final float EPSILON = 1e-7f;
+
+    /**
+     * min x, y, z and max x, y, z of each node
+     */
+    private final float[] nodeBounds;
+    /**
+     * For an inner node, the index of its first child (the second one follows) and 0. For a leaf, the index of its first
+     * triangle in leaf order and the number of triangles.
+     */
+    private final int[] nodeLinks;
+    private final int nodeCount;
+    /**
+     * Mesh triangle index of each triangle, in leaf order
+     */
+    private final int[] triangleIndices;
+    /**
+     * Positions of the 3 corners of each triangle, in leaf order
+     */
+    private final float[] corners;
+
+    public TriangleBVH(Mesh mesh)
+    {
+        int triangleCount = mesh.indices.length / 3;
+        float[] triangleBounds = new float[triangleCount * 6];
+        float[] centroids = new float[triangleCount * 3];
+        int stride = mesh.layout.stride;
+        int position = mesh.layout.positionOffset;
+        for(int t = 0; t < triangleCount; t++ )
+        {
+            for(int axis = 0; axis < 3; axis++ )
+            {
+                float a = mesh.data[mesh.indices[t * 3] * stride + position + axis];
+                float b = mesh.data[mesh.indices[t * 3 + 1] * stride + position + axis];
+                float c = mesh.data[mesh.indices[t * 3 + 2] * stride + position + axis];
+                float min = Math.min(a, Math.min(b, c));
+                float max = Math.max(a, Math.max(b, c));
+                triangleBounds[t * 6 + axis] = min;
+                triangleBounds[t * 6 + 3 + axis] = max;
+                centroids[t * 3 + axis] = (min + max) * 0.5f;
+            }
+        }
+
+        int[] order = new int[triangleCount];
+        for(int t = 0; t < triangleCount; t++ )
+            order[t] = t;
+        int maxNodes = Math.max(1, triangleCount * 2 - 1);
+        float[] bounds = new float[maxNodes * 6];
+        int[] links = new int[maxNodes * 2];
+        nodeCount = build(order, triangleBounds, centroids, bounds, links);
+        nodeBounds = Arrays.copyOf(bounds, nodeCount * 6);
+        nodeLinks = Arrays.copyOf(links, nodeCount * 2);
+
+        triangleIndices = order;
+        corners = new float[triangleCount * 9];
+        for(int i = 0; i < triangleCount; i++ )
+        {
+            for(int k = 0; k < 3; k++ )
+            {
+                int vertex = mesh.indices[order[i] * 3 + k];
+                System.arraycopy(mesh.data, vertex * stride + position, corners, i * 9 + k * 3, 3);
+            }
+        }
+    }
+
+    public int getTriangleCount()
+    {
+        return triangleIndices.length;
+    }
+
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * @return approximate number of bytes held by the tree
+     */
+    public long retainedBytes()
+    {
+        return (long)nodeBounds.length * 4 + (long)nodeLinks.length * 4 + (long)triangleIndices.length * 4 + (long)corners.length * 4;
+    }
+
+    /**
+     * Builds the tree top-down without recursion
+     * @return the number of nodes
+     */
+    private static int build(int[] order, float[] triangleBounds, float[] centroids, float[] bounds, int[] links)
+    {
+        int[] stackNode = new int[MAX_DEPTH * 2 + 2];
+        int[] stackStart = new int[stackNode.length];
+        int[] stackEnd = new int[stackNode.length];
+        int[] stackDepth = new int[stackNode.length];
+        int nodeCount = 1;
+        stackNode[0] = 0;
+        stackStart[0] = 0;
+        stackEnd[0] = order.length;
+        stackDepth[0] = 0;
+        int stackSize = 1;
+
+        int[] binCounts = new int[BINS];
+        float[] binBounds = new float[BINS * 6];
+        float[] rightAreas = new float[BINS];
+        int[] rightCounts = new int[BINS];
+        float[] scratch = new float[6];
+        float[] centroidMin = new float[3];
+        float[] centroidExtent = new float[3];
+
+        while(stackSize > 0)
+        {
+            stackSize-- ;
+            int node = stackNode[stackSize];
+            int start = stackStart[stackSize];
+            int end = stackEnd[stackSize];
+            int depth = stackDepth[stackSize];
+            int count = end - start;
+
+            // node bounds and centroid bounds
+            resetBounds(bounds, node * 6);
+            float cMinX = Float.POSITIVE_INFINITY, cMinY = Float.POSITIVE_INFINITY, cMinZ = Float.POSITIVE_INFINITY;
+            float cMaxX = Float.NEGATIVE_INFINITY, cMaxY = Float.NEGATIVE_INFINITY, cMaxZ = Float.NEGATIVE_INFINITY;
+            for(int i = start; i < end; i++ )
+            {
+                int t = order[i];
+                growBounds(bounds, node * 6, triangleBounds, t * 6);
+                cMinX = Math.min(cMinX, centroids[t * 3]);
+                cMinY = Math.min(cMinY, centroids[t * 3 + 1]);
+                cMinZ = Math.min(cMinZ, centroids[t * 3 + 2]);
+                cMaxX = Math.max(cMaxX, centroids[t * 3]);
+                cMaxY = Math.max(cMaxY, centroids[t * 3 + 1]);
+                cMaxZ = Math.max(cMaxZ, centroids[t * 3 + 2]);
+            }
+            if(count == 0)
+                resetBoundsToZero(bounds, node * 6);
+
+            int bestAxis = -1;
+            int bestSplit = -1;
+            float bestCost = Float.POSITIVE_INFINITY;
+            centroidMin[0] = cMinX;
+            centroidMin[1] = cMinY;
+            centroidMin[2] = cMinZ;
+            centroidExtent[0] = cMaxX - cMinX;
+            centroidExtent[1] = cMaxY - cMinY;
+            centroidExtent[2] = cMaxZ - cMinZ;
+            if(count > MAX_LEAF_SIZE && depth < MAX_DEPTH)
+            {
+                for(int axis = 0; axis < 3; axis++ )
+                {
+                    if(centroidExtent[axis] <= 0)
+                        continue;
+                    float scale = BINS / centroidExtent[axis];
+                    for(int b = 0; b < BINS; b++ )
+                    {
+                        binCounts[b] = 0;
+                        resetBounds(binBounds, b * 6);
+                    }
+                    for(int i = start; i < end; i++ )
+                    {
+                        int t = order[i];
+                        int b = Math.min(BINS - 1, (int)((centroids[t * 3 + axis] - centroidMin[axis]) * scale));
+                        binCounts[b]++;
+                        growBounds(binBounds, b * 6, triangleBounds, t * 6);
+                    }
+                    // sweep from the right to know the cost of everything past each split
+                    resetBounds(scratch, 0);
+                    int rightCount = 0;
+                    for(int b = BINS - 1; b > 0; b-- )
+                    {
+                        if(binCounts[b] > 0)
+                            growBounds(scratch, 0, binBounds, b * 6);
+                        rightCount += binCounts[b];
+                        rightCounts[b] = rightCount;
+                        rightAreas[b] = rightCount == 0 ? 0 : area(scratch, 0);
+                    }
+                    resetBounds(scratch, 0);
+                    int leftCount = 0;
+                    for(int b = 0; b < BINS - 1; b++ )
+                    {
+                        if(binCounts[b] > 0)
+                            growBounds(scratch, 0, binBounds, b * 6);
+                        leftCount += binCounts[b];
+                        if(leftCount == 0 || rightCounts[b + 1] == 0)
+                            continue;
+                        float cost = leftCount * area(scratch, 0) + rightCounts[b + 1] * rightAreas[b + 1];
+                        if(cost < bestCost)
+                        {
+                            bestCost = cost;
+                            bestAxis = axis;
+                            bestSplit = b;
+                        }
+                    }
+                }
+            }
+
+            // splitting has to beat testing every triangle of the node, counting one traversal step per child
+            if(bestAxis == -1 || bestCost + area(bounds, node * 6) >= count * area(bounds, node * 6))
+            {
+                if(bestAxis == -1 || count <= MAX_LEAF_SIZE * 4)
+                {
+                    links[node * 2] = start;
+                    links[node * 2 + 1] = count;
+                    continue;
+                }
+            }
+
+            float scale = BINS / centroidExtent[bestAxis];
+            int middle = start;
+            for(int i = start; i < end; i++ )
+            {
+                int t = order[i];
+                int b = Math.min(BINS - 1, (int)((centroids[t * 3 + bestAxis] - centroidMin[bestAxis]) * scale));
+                if(b <= bestSplit)
+                {
+                    order[i] = order[middle];
+                    order[middle] = t;
+                    middle++;
+                }
+            }
+
+            int left = nodeCount;
+            nodeCount += 2;
+            links[node * 2] = left;
+            links[node * 2 + 1] = 0;
+            stackNode[stackSize] = left;
+            stackStart[stackSize] = start;
+            stackEnd[stackSize] = middle;
+            stackDepth[stackSize] = depth + 1;
+            stackSize++ ;
+            stackNode[stackSize] = left + 1;
+            stackStart[stackSize] = middle;
+            stackEnd[stackSize] = end;
+            stackDepth[stackSize] = depth + 1;
+            stackSize++ ;
+        }
+        return nodeCount;
+    }
+
+    private static void resetBounds(float[] bounds, int offset)
+    {
+        for(int axis = 0; axis < 3; axis++ )
+        {
+            bounds[offset + axis] = Float.POSITIVE_INFINITY;
+            bounds[offset + 3 + axis] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void resetBoundsToZero(float[] bounds, int offset)
+    {
+        for(int i = 0; i < 6; i++ )
+            bounds[offset + i] = 0;
+    }
+
+    private static void growBounds(float[] bounds, int offset, float[] other, int otherOffset)
+    {
+        for(int axis = 0; axis < 3; axis++ )
+        {
+            bounds[offset + axis] = Math.min(bounds[offset + axis], other[otherOffset + axis]);
+            bounds[offset + 3 + axis] = Math.max(bounds[offset + 3 + axis], other[otherOffset + 3 + axis]);
+        }
+    }
+
+    private static float area(float[] bounds, int offset)
+    {
+        float x = bounds[offset + 3] - bounds[offset];
+        float y = bounds[offset + 4] - bounds[offset + 1];
+        float z = bounds[offset + 5] - bounds[offset + 2];
+        return x * y + y * z + z * x;
+    }
+
+    /**
+     * Finds the nearest triangle hit by a ray. Triangles are hit from both sides.
+     * @param maxDistance ignores hits farther than this, in multiples of the direction length
+     * @param hit receives the hit, its {@link RayHit#object} is left untouched
+     * @return true if a triangle was hit
+     */
+    public boolean closestHit(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, RayHit hit)
+    {
+        return traverse(ox, oy, oz, dx, dy, dz, maxDistance, hit, false, null);
+    }
+
+    /**
+     * @return true if the ray hits any triangle closer than <code>maxDistance</code>, stopping at the first one found
+     */
+    public boolean anyHit(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance)
+    {
+        return traverse(ox, oy, oz, dx, dy, dz, maxDistance, null, true, null);
+    }
+
+    /**
+     * Adds every triangle hit by the ray closer than <code>maxDistance</code> to <code>hits</code>, in no particular order
+     * @return the number of hits added
+     */
+    public int raycast(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, List<RayHit> hits)
+    {
+        int before = hits.size();
+        traverse(ox, oy, oz, dx, dy, dz, maxDistance, new RayHit(), false, hits);
+        return hits.size() - before;
+    }
+
+    private boolean traverse(float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, RayHit hit, boolean any, List<RayHit> all)
+    {
+        if(triangleIndices.length == 0)
+            return false;
+        float invX = 1f / dx;
+        float invY = 1f / dy;
+        float invZ = 1f / dz;
+        float closest = maxDistance;
+        boolean found = false;
+        int[] stack = new int[MAX_DEPTH * 2 + 2];
+        int stackSize = 0;
+        if(slab(0, ox, oy, oz, invX, invY, invZ, closest) < 0)
+            return false;
+        stack[stackSize++] = 0;
+        while(stackSize > 0)
+        {
+            int node = stack[--stackSize];
+            int first = nodeLinks[node * 2];
+            int count = nodeLinks[node * 2 + 1];
+            if(count > 0)
+            {
+                for(int i = first; i < first + count; i++ )
+                {
+                    float distance = intersect(i, ox, oy, oz, dx, dy, dz, closest, hit);
+                    if(distance < 0)
+                        continue;
+                    found = true;
+                    if(any)
+                        return true;
+                    if(all != null)
+                    {
+                        RayHit copy = new RayHit();
+                        copy.set(hit);
+                        all.add(copy);
+                    }
+                    else
+                    {
+                        closest = distance;
+                    }
+                }
+                continue;
+            }
+            float leftEntry = slab(first, ox, oy, oz, invX, invY, invZ, closest);
+            float rightEntry = slab(first + 1, ox, oy, oz, invX, invY, invZ, closest);
+            // the nearest child is visited first so that it shrinks the search for the other one
+            if(leftEntry >= 0 && rightEntry >= 0)
+            {
+                boolean leftFirst = leftEntry <= rightEntry;
+                stack[stackSize++] = leftFirst ? first + 1 : first;
+                stack[stackSize++] = leftFirst ? first : first + 1;
+            }
+            else if(leftEntry >= 0)
+            {
+                stack[stackSize++] = first;
+            }
+            else if(rightEntry >= 0)
+            {
+                stack[stackSize++] = first + 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the distance at which the ray enters the node, or -1 if it misses it before <code>maxDistance</code>
+     */
+    private float slab(int node, float ox, float oy, float oz, float invX, float invY, float invZ, float maxDistance)
+    {
+        int o = node * 6;
+        float t1 = (nodeBounds[o] - ox) * invX;
+        float t2 = (nodeBounds[o + 3] - ox) * invX;
+        float near = Math.min(t1, t2);
+        float far = Math.max(t1, t2);
+        t1 = (nodeBounds[o + 1] - oy) * invY;
+        t2 = (nodeBounds[o + 4] - oy) * invY;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        t1 = (nodeBounds[o + 2] - oz) * invZ;
+        t2 = (nodeBounds[o + 5] - oz) * invZ;
+        near = Math.max(near, Math.min(t1, t2));
+        far = Math.min(far, Math.max(t1, t2));
+        // NaN (ray parallel to and on a slab boundary) counts as a hit
+        float entry = near > 0 ? near : 0;
+        if(far < entry || near > maxDistance)
+            return -1;
+        return entry;
+    }
+
+    /**
+     * Moller-Trumbore intersection with the triangle at the given leaf order position
+     * @return the hit distance, or -1
+     */
+    private float intersect(int i, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance, RayHit hit)
+    {
+        int c = i * 9;
+        float ax = corners[c], ay = corners[c + 1], az = corners[c + 2];
+        float e1x = corners[c + 3] - ax, e1y = corners[c + 4] - ay, e1z = corners[c + 5] - az;
+        float e2x = corners[c + 6] - ax, e2y = corners[c + 7] - ay, e2z = corners[c + 8] - az;
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float determinant = e1x * px + e1y * py + e1z * pz;
+        if(determinant > -EPSILON && determinant < EPSILON)
+            return -1;
+        float inverse = 1f / determinant;
+        float tx = ox - ax, ty = oy - ay, tz = oz - az;
+        float u = (tx * px + ty * py + tz * pz) * inverse;
+        if(u < 0 || u > 1)
+            return -1;
+        float qx = ty * e1z - tz * e1y;
+        float qy = tz * e1x - tx * e1z;
+        float qz = tx * e1y - ty * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * inverse;
+        if(v < 0 || u + v > 1)
+            return -1;
+        float distance = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+        if(distance < 0 || distance > maxDistance)
+            return -1;
+        if(hit != null)
+        {
+            hit.triangle = triangleIndices[i];
+            hit.distance = distance;
+            hit.u = u;
+            hit.v = v;
+        }
+        return distance;
+    }
+
+    /**
+     * Adds to <code>triangles</code> the index of every triangle whose bounding box overlaps the given box
+     * @return the number of triangles added
+     */
+    public int overlaps(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, IntList triangles)
+    {
+        if(triangleIndices.length == 0)
+            return 0;
+        int before = triangles.size();
+        int[] stack = new int[MAX_DEPTH * 2 + 2];
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while(stackSize > 0)
+        {
+            int node = stack[--stackSize];
+            int o = node * 6;
+            if(nodeBounds[o] > maxX || nodeBounds[o + 1] > maxY || nodeBounds[o + 2] > maxZ || nodeBounds[o + 3] < minX || nodeBounds[o + 4] < minY || nodeBounds[o + 5] < minZ)
+                continue;
+            int first = nodeLinks[node * 2];
+            int count = nodeLinks[node * 2 + 1];
+            if(count == 0)
+            {
+                stack[stackSize++] = first;
+                stack[stackSize++] = first + 1;
+                continue;
+            }
+            for(int i = first; i < first + count; i++ )
+            {
+                int c = i * 9;
+                if(Math.min(corners[c], Math.min(corners[c + 3], corners[c + 6])) > maxX
+                        || Math.max(corners[c], Math.max(corners[c + 3], corners[c + 6])) < minX
+                        || Math.min(corners[c + 1], Math.min(corners[c + 4], corners[c + 7])) > maxY
+                        || Math.max(corners[c + 1], Math.max(corners[c + 4], corners[c + 7])) < minY
+                        || Math.min(corners[c + 2], Math.min(corners[c + 5], corners[c + 8])) > maxZ
+                        || Math.max(corners[c + 2], Math.max(corners[c + 5], corners[c + 8])) < minZ)
+                    continue;
+                triangles.add(triangleIndices[i]);
+            }
+        }
+        return triangles.size() - before;
+    }
+}
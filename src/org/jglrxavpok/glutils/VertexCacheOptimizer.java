@@ -0,0 +1,187 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+
+/**
+ * Reorders the triangles of an {@link IndexedModel} for the post-transform vertex cache with the Tipsify algorithm
+ * (Sander, Nehab, Barczak, "Fast Triangle Reordering for Vertex Locality and Reduced Overdraw", 2007), then renumbers
+ * vertices in the order they are first fetched.
+ * <br/>
+ * The result only depends on the input model, so optimized models can be cached.
+ */
+public class VertexCacheOptimizer
+{
+
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+    /**
+     * Average cache miss ratio (transformed vertices per triangle) of a model before and after optimization
+     */
+    public static class Result
+    {
+
+        public final float acmrBefore;
+        public final float acmrAfter;
+        public final int triangleCount;
+
+        public Result(float acmrBefore, float acmrAfter, int triangleCount)
+        {
+            this.acmrBefore = acmrBefore;
+            this.acmrAfter = acmrAfter;
+            this.triangleCount = triangleCount;
+        }
+    }
+
+    /**
+     * Optimizes the model in place for a vertex cache of the given size
+     */
+    public static Result optimize(IndexedModel model, int cacheSize)
+    {
+        int[] indices = model.getIndexData();
+        int indexCount = model.getIndexCount() / 3 * 3;
+        int vertexCount = model.getVertexCount();
+        float before = computeACMR(indices, indexCount, vertexCount, cacheSize);
+        if(indexCount == 0)
+            return new Result(before, before, 0);
+
+        int[] ordered = tipsify(indices, indexCount, vertexCount, cacheSize);
+        System.arraycopy(ordered, 0, indices, 0, indexCount);
+
+        // fetch order: vertices are numbered by first use, unused ones keep their relative order at the end
+        int[] newIndices = new int[vertexCount];
+        Arrays.fill(newIndices, -1);
+        int next = 0;
+        for(int i = 0; i < indexCount; i++ )
+        {
+            int vertex = indices[i];
+            if(newIndices[vertex] == -1)
+                newIndices[vertex] = next++;
+            indices[i] = newIndices[vertex];
+        }
+        for(int i = 0; i < vertexCount; i++ )
+        {
+            if(newIndices[i] == -1)
+                newIndices[i] = next++;
+        }
+        model.permuteVertices(newIndices);
+
+        float after = computeACMR(indices, indexCount, vertexCount, cacheSize);
+        return new Result(before, after, indexCount / 3);
+    }
+
+    /**
+     * Simulates a FIFO vertex cache of the given size
+     * @return number of cache misses per triangle
+     */
+    public static float computeACMR(int[] indices, int indexCount, int vertexCount, int cacheSize)
+    {
+        if(indexCount < 3)
+            return 0;
+        // time of the miss that put each vertex in the cache
+        int[] insertedAt = new int[vertexCount];
+        Arrays.fill(insertedAt, -cacheSize - 1);
+        int misses = 0;
+        for(int i = 0; i < indexCount; i++ )
+        {
+            int vertex = indices[i];
+            if(misses - insertedAt[vertex] > cacheSize)
+            {
+                insertedAt[vertex] = misses;
+                misses++;
+            }
+        }
+        return misses / (float)(indexCount / 3);
+    }
+
+    /**
+     * @return the triangles in Tipsify order
+     */
+    private static int[] tipsify(int[] indices, int indexCount, int vertexCount, int cacheSize)
+    {
+        int triangleCount = indexCount / 3;
+
+        // triangles around each vertex, in compressed rows
+        int[] adjacencyStart = new int[vertexCount + 1];
+        for(int i = 0; i < indexCount; i++ )
+            adjacencyStart[indices[i] + 1]++;
+        for(int i = 0; i < vertexCount; i++ )
+            adjacencyStart[i + 1] += adjacencyStart[i];
+        int[] adjacency = new int[indexCount];
+        int[] fill = Arrays.copyOf(adjacencyStart, vertexCount);
+        for(int i = 0; i < indexCount; i++ )
+            adjacency[fill[indices[i]]++] = i / 3;
+
+        int[] live = new int[vertexCount];
+        for(int i = 0; i < vertexCount; i++ )
+            live[i] = adjacencyStart[i + 1] - adjacencyStart[i];
+        int[] cacheTime = new int[vertexCount];
+        boolean[] emitted = new boolean[triangleCount];
+        int[] deadEnd = new int[indexCount];
+        int deadEndSize = 0;
+        int[] candidates = new int[indexCount];
+
+        int[] result = new int[indexCount];
+        int written = 0;
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int fanning = 0;
+        while(fanning >= 0)
+        {
+            int candidateCount = 0;
+            for(int a = adjacencyStart[fanning]; a < adjacencyStart[fanning + 1]; a++ )
+            {
+                int triangle = adjacency[a];
+                if(emitted[triangle])
+                    continue;
+                emitted[triangle] = true;
+                for(int k = 0; k < 3; k++ )
+                {
+                    int vertex = indices[triangle * 3 + k];
+                    result[written++] = vertex;
+                    deadEnd[deadEndSize++] = vertex;
+                    candidates[candidateCount++] = vertex;
+                    live[vertex]--;
+                    if(time - cacheTime[vertex] > cacheSize)
+                        cacheTime[vertex] = time++;
+                }
+            }
+
+            // next fanning vertex: the candidate that stays in the cache longest while still having triangles left
+            int best = -1;
+            int bestPriority = -1;
+            for(int c = 0; c < candidateCount; c++ )
+            {
+                int vertex = candidates[c];
+                if(live[vertex] <= 0)
+                    continue;
+                int priority = 0;
+                if(time - cacheTime[vertex] + 2 * live[vertex] <= cacheSize)
+                    priority = time - cacheTime[vertex];
+                if(priority > bestPriority)
+                {
+                    best = vertex;
+                    bestPriority = priority;
+                }
+            }
+            if(best == -1)
+            {
+                // dead end: go back to recently used vertices, then to any vertex with triangles left
+                while(deadEndSize > 0 && best == -1)
+                {
+                    int vertex = deadEnd[--deadEndSize];
+                    if(live[vertex] > 0)
+                        best = vertex;
+                }
+                while(best == -1 && cursor < vertexCount)
+                {
+                    if(live[cursor] > 0)
+                        best = cursor;
+                    else
+                        cursor++;
+                }
+            }
+            fanning = best;
+        }
+        return result;
+    }
+}
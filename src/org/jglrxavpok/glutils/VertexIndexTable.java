@@ -0,0 +1,121 @@
+package org.jglrxavpok.glutils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from a (position, texture coordinates, normal) index triple to a vertex index.
+ * <br/>
+ * Keys are stored in a flat <code>int[]</code> and values in a parallel one, with linear probing, so lookups and
+ * insertions never allocate.
+ */
+public class VertexIndexTable
+{
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public VertexIndexTable(int expectedSize)
+    {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Looks up the triple, inserting it with the given value when absent.
+     * @return the value already associated with the triple, or -1 if it was just inserted
+     */
+    public int putIfAbsent(int position, int texCoords, int normal, int value)
+    {
+        int slot = hash(position, texCoords, normal) & mask;
+        while(true)
+        {
+            int existing = values[slot];
+            if(existing == EMPTY)
+                break;
+            int k = slot * 3;
+            if(keys[k] == position && keys[k + 1] == texCoords && keys[k + 2] == normal)
+                return existing;
+            slot = (slot + 1) & mask;
+        }
+        int k = slot * 3;
+        keys[k] = position;
+        keys[k + 1] = texCoords;
+        keys[k + 2] = normal;
+        values[slot] = value;
+        if(++size * 2 > values.length)
+            rehash();
+        return -1;
+    }
+
+    /**
+     * @return the value associated with the triple, or -1
+     */
+    public int get(int position, int texCoords, int normal)
+    {
+        int slot = hash(position, texCoords, normal) & mask;
+        while(true)
+        {
+            int existing = values[slot];
+            if(existing == EMPTY)
+                return -1;
+            int k = slot * 3;
+            if(keys[k] == position && keys[k + 1] == texCoords && keys[k + 2] == normal)
+                return existing;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(values, EMPTY);
+        size = 0;
+    }
+
+    private void rehash()
+    {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldValues.length * 2);
+        for(int slot = 0; slot < oldValues.length; slot++)
+        {
+            int value = oldValues[slot];
+            if(value == EMPTY)
+                continue;
+            int k = slot * 3;
+            int position = oldKeys[k];
+            int texCoords = oldKeys[k + 1];
+            int normal = oldKeys[k + 2];
+            int newSlot = hash(position, texCoords, normal) & mask;
+            while(values[newSlot] != EMPTY)
+                newSlot = (newSlot + 1) & mask;
+            int newK = newSlot * 3;
+            keys[newK] = position;
+            keys[newK + 1] = texCoords;
+            keys[newK + 2] = normal;
+            values[newSlot] = value;
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new int[capacity * 3];
+        values = new int[capacity];
+        Arrays.fill(values, EMPTY);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int position, int texCoords, int normal)
+    {
+        int h = position * 0x9E3779B1 + texCoords * 0x85EBCA77 + normal * 0xC2B2AE3D;
+        return h ^ (h >>> 16);
+    }
+}
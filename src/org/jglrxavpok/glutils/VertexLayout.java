@@ -0,0 +1,51 @@
+package org.jglrxavpok.glutils;
+
+/**
+ * Describes how vertices are interleaved in {@link Mesh#data}: every vertex takes {@link #stride} floats, with each
+ * attribute starting at its offset inside the vertex. An offset of -1 means the attribute is absent.
+ */
+public class VertexLayout
+{
+
+    /**
+     * pos.xyz, uv, normal.xyz
+     */
+    public static final VertexLayout POSITION_TEX_NORMAL = new VertexLayout(8, 0, 3, 5, -1);
+
+    /**
+     * pos.xyz, uv, normal.xyz, tangent.xyz
+     */
+    public static final VertexLayout POSITION_TEX_NORMAL_TANGENT = new VertexLayout(11, 0, 3, 5, 8);
+
+    public final int stride;
+    public final int positionOffset;
+    public final int texCoordsOffset;
+    public final int normalOffset;
+    public final int tangentOffset;
+
+    public VertexLayout(int stride, int positionOffset, int texCoordsOffset, int normalOffset, int tangentOffset)
+    {
+        this.stride = stride;
+        this.positionOffset = positionOffset;
+        this.texCoordsOffset = texCoordsOffset;
+        this.normalOffset = normalOffset;
+        this.tangentOffset = tangentOffset;
+    }
+
+    public boolean hasTangent()
+    {
+        return tangentOffset >= 0;
+    }
+
+    /**
+     * @return the layout matching the given stride among the predefined ones, or null
+     */
+    public static VertexLayout forStride(int stride)
+    {
+        if(stride == POSITION_TEX_NORMAL.stride)
+            return POSITION_TEX_NORMAL;
+        if(stride == POSITION_TEX_NORMAL_TANGENT.stride)
+            return POSITION_TEX_NORMAL_TANGENT;
+        return null;
+    }
+}
@@ -0,0 +1,42 @@
+package org.jglrxavpok.glutils.mc;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.entity.Entity;
+
+/**
+ * Gives the position models are viewed from, used by {@link TessellatorModel} to order transparent groups and pick
+ * levels of detail. The position has to be in the space of the model, where its bounds are.
+ */
+public interface CameraSource
+{
+
+    /**
+     * Eye position in the space of the model being rendered, from the GL modelview matrix
+     */
+    CameraSource MODELVIEW = new ModelviewCameraSource();
+
+    /**
+     * Position of the entity the game is rendered from, in world coordinates. Only right for models rendered without
+     * any transform of their own, with their vertices in world coordinates.
+     */
+    CameraSource RENDER_VIEW_ENTITY = new CameraSource()
+    {
+        @Override
+        public boolean getPosition(double[] dest)
+        {
+            Entity entity = Minecraft.getMinecraft().getRenderViewEntity();
+            if(entity == null)
+                return false;
+            dest[0] = entity.posX;
+            dest[1] = entity.posY;
+            dest[2] = entity.posZ;
+            return true;
+        }
+    };
+
+    /**
+     * Stores the x, y and z of the camera, in the space of the model, in <code>dest</code>
+     * @return false if there is no camera at the moment
+     */
+    boolean getPosition(double[] dest);
+}
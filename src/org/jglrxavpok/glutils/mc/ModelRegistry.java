@@ -0,0 +1,206 @@
+package org.jglrxavpok.glutils.mc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import org.jglrxavpok.glutils.BakedModelCache;
+
+/**
+ * Shares {@link TessellatorModel} instances by classpath location, so a model is only loaded once.
+ * <br/>
+ * The registry keeps track of the approximate memory held by its models (meshes, baked vertex data and textures).
+ * When it goes over the memory budget (checked after each load completes and on {@link #trim()}), the models that
+ * were rendered the least recently are released and forgotten: asking for them again reloads them. Models that were
+ * not rendered yet count as rendered when they finished loading. Callers should therefore not hold on to models across
+ * frames but ask the registry each time, which is a cheap lookup.
+ * <br/>
+ * Methods that may evict models have to be called on the thread owning the GL context, as evicting deletes textures.
+ */
+public class ModelRegistry
+{
+
+    private final LinkedHashMap<String, TessellatorModel> models;
+    private final BakedModelCache cache;
+    private long memoryBudget;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param memoryBudget number of bytes above which models start being evicted
+     */
+    public ModelRegistry(long memoryBudget)
+    {
+        this(memoryBudget, null);
+    }
+
+    /**
+     * @param memoryBudget number of bytes above which models start being evicted
+     * @param cache baked model cache used when loading, or null
+     */
+    public ModelRegistry(long memoryBudget, BakedModelCache cache)
+    {
+        this.models = new LinkedHashMap<String, TessellatorModel>();
+        this.memoryBudget = memoryBudget;
+        this.cache = cache;
+    }
+
+    /**
+     * @return the shared model for the given classpath location, loaded synchronously if needed
+     */
+    public synchronized TessellatorModel get(String path)
+    {
+        TessellatorModel model = models.get(path);
+        if(model != null)
+        {
+            hits++;
+            return model;
+        }
+        misses++;
+        model = new TessellatorModel(path, cache);
+        models.put(path, model);
+        trim(model);
+        return model;
+    }
+
+    /**
+     * @return the shared model for the given classpath location, loaded in the background with
+     * {@link TessellatorModel#loadAsync(String, BakedModelCache, Executor, Executor)} if needed. The budget is checked
+     * on the client thread once the load completes.
+     */
+    public synchronized TessellatorModel getAsync(String path, Executor executor)
+    {
+        TessellatorModel model = models.get(path);
+        if(model != null)
+        {
+            hits++;
+            return model;
+        }
+        misses++;
+        model = TessellatorModel.loadAsync(path, cache, executor, TessellatorModel.CLIENT_THREAD);
+        models.put(path, model);
+        model.getLoadFuture().thenAcceptAsync(new Consumer<TessellatorModel>()
+        {
+            @Override
+            public void accept(TessellatorModel loaded)
+            {
+                synchronized(ModelRegistry.this)
+                {
+                    trim(loaded);
+                }
+            }
+        }, TessellatorModel.CLIENT_THREAD);
+        return model;
+    }
+
+    /**
+     * Shares a model that was not loaded by the registry, such as one built with
+     * {@link TessellatorModel#fromObjects(String, java.util.List)}, under the given location. The model previously
+     * registered there, if any, is released.
+     */
+    public synchronized void put(String path, TessellatorModel model)
+    {
+        TessellatorModel previous = models.put(path, model);
+        if(previous != null && previous != model)
+            previous.release();
+        trim(model);
+    }
+
+    /**
+     * Evicts models until the retained memory fits in the budget
+     */
+    public synchronized void trim()
+    {
+        trim(null);
+    }
+
+    private void trim(TessellatorModel keep)
+    {
+        long total = getRetainedBytes();
+        while(total > memoryBudget)
+        {
+            String victimPath = null;
+            TessellatorModel victim = null;
+            for(Map.Entry<String, TessellatorModel> entry : models.entrySet())
+            {
+                TessellatorModel model = entry.getValue();
+                // models still loading have nothing to release yet
+                if(model == keep || !model.isReady())
+                    continue;
+                if(victim == null || model.getLastRenderTime() < victim.getLastRenderTime())
+                {
+                    victim = model;
+                    victimPath = entry.getKey();
+                }
+            }
+            if(victim == null)
+                return;
+            total -= victim.retainedBytes();
+            models.remove(victimPath);
+            victim.release();
+            evictions++;
+        }
+    }
+
+    /**
+     * Releases the model at the given location, if loaded
+     */
+    public synchronized void release(String path)
+    {
+        TessellatorModel model = models.remove(path);
+        if(model != null)
+            model.release();
+    }
+
+    public synchronized void clear()
+    {
+        Iterator<TessellatorModel> it = models.values().iterator();
+        while(it.hasNext())
+        {
+            it.next().release();
+            it.remove();
+        }
+    }
+
+    public synchronized long getRetainedBytes()
+    {
+        long total = 0;
+        for(TessellatorModel model : models.values())
+            total += model.retainedBytes();
+        return total;
+    }
+
+    public synchronized void setMemoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+        trim();
+    }
+
+    public synchronized long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    public synchronized int size()
+    {
+        return models.size();
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+}
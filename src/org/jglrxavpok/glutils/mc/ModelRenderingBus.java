@@ -0,0 +1,123 @@
+package org.jglrxavpok.glutils.mc;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.minecraftforge.fml.common.eventhandler.Event;
+import net.minecraftforge.fml.common.eventhandler.EventBus;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+/**
+ * Bus of {@link TessellatorModel#MODEL_RENDERING_BUS}. It remembers the event classes taken by the handlers registered
+ * on it, so that models do not build events no handler would receive.
+ */
+class ModelRenderingBus extends EventBus
+{
+
+    private static final Class<?>[] NO_TYPES = new Class<?>[0];
+
+    /**
+     * Event classes of the handlers of each registered object or class
+     */
+    private final Map<Object, List<Class<?>>> handlers = new IdentityHashMap<Object, List<Class<?>>>();
+    /**
+     * Every class in {@link #handlers}, replaced on change so that rendering can iterate it without copying
+     */
+    private volatile Class<?>[] eventTypes = NO_TYPES;
+
+    @Override
+    public void register(Object target)
+    {
+        super.register(target);
+        synchronized(this)
+        {
+            if(!handlers.containsKey(target))
+            {
+                handlers.put(target, findEventTypes(target));
+                updateEventTypes();
+            }
+        }
+    }
+
+    @Override
+    public void unregister(Object target)
+    {
+        super.unregister(target);
+        synchronized(this)
+        {
+            if(handlers.remove(target) != null)
+                updateEventTypes();
+        }
+    }
+
+    /**
+     * @return true if a registered handler may receive events of the given class
+     */
+    boolean hasHandlers(Class<? extends Event> type)
+    {
+        for(Class<?> eventType : eventTypes)
+        {
+            if(eventType.isAssignableFrom(type))
+                return true;
+        }
+        return false;
+    }
+
+    private void updateEventTypes()
+    {
+        Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+        for(List<Class<?>> list : handlers.values())
+            types.addAll(list);
+        eventTypes = types.toArray(new Class<?>[types.size()]);
+    }
+
+    /**
+     * Finds the handlers the way {@link EventBus#register(Object)} does: public methods with a single event parameter,
+     * annotated with {@link SubscribeEvent} in the class of the target or in one of its supertypes. A class registers
+     * its static methods.
+     */
+    private static List<Class<?>> findEventTypes(Object target)
+    {
+        Class<?> type = target instanceof Class ? (Class<?>)target : target.getClass();
+        List<Class<?>> supertypes = new ArrayList<Class<?>>();
+        addSupertypes(type, supertypes);
+        List<Class<?>> eventTypes = new ArrayList<Class<?>>();
+        for(Method method : type.getMethods())
+        {
+            Class<?>[] parameters = method.getParameterTypes();
+            if(parameters.length != 1 || !Event.class.isAssignableFrom(parameters[0]))
+                continue;
+            for(Class<?> supertype : supertypes)
+            {
+                try
+                {
+                    if(supertype.getDeclaredMethod(method.getName(), parameters).isAnnotationPresent(SubscribeEvent.class))
+                    {
+                        eventTypes.add(parameters[0]);
+                        break;
+                    }
+                }
+                catch(NoSuchMethodException e)
+                {
+                    // declared in another supertype
+                }
+            }
+        }
+        return eventTypes;
+    }
+
+    private static void addSupertypes(Class<?> type, List<Class<?>> supertypes)
+    {
+        if(type == null || supertypes.contains(type))
+            return;
+        supertypes.add(type);
+        addSupertypes(type.getSuperclass(), supertypes);
+        for(Class<?> implemented : type.getInterfaces())
+            addSupertypes(implemented, supertypes);
+    }
+}
@@ -0,0 +1,51 @@
+package org.jglrxavpok.glutils.mc;
+
+import java.nio.FloatBuffer;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL11;
+
+/**
+ * Gives the eye position in the space of the model being rendered, by inverting the current GL modelview matrix. This
+ * follows any translation, rotation or scale applied to place the model. Has to be used on the thread owning the GL
+ * context.
+ */
+public class ModelviewCameraSource implements CameraSource
+{
+
+    private final FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
+    private final float[] modelview = new float[16];
+
+    @Override
+    public boolean getPosition(double[] dest)
+    {
+        matrixBuffer.clear();
+        GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, matrixBuffer);
+        matrixBuffer.get(modelview);
+        return eyePosition(modelview, dest);
+    }
+
+    /**
+     * Stores in <code>dest</code> the point that an affine modelview matrix moves to the eye, the origin
+     * @param modelview column-major, as returned by GL
+     * @return false if the matrix cannot be inverted
+     */
+    public static boolean eyePosition(float[] modelview, double[] dest)
+    {
+        double a00 = modelview[0], a10 = modelview[1], a20 = modelview[2];
+        double a01 = modelview[4], a11 = modelview[5], a21 = modelview[6];
+        double a02 = modelview[8], a12 = modelview[9], a22 = modelview[10];
+        double c00 = a11 * a22 - a12 * a21, c01 = a02 * a21 - a01 * a22, c02 = a01 * a12 - a02 * a11;
+        double c10 = a12 * a20 - a10 * a22, c11 = a00 * a22 - a02 * a20, c12 = a02 * a10 - a00 * a12;
+        double c20 = a10 * a21 - a11 * a20, c21 = a01 * a20 - a00 * a21, c22 = a00 * a11 - a01 * a10;
+        double determinant = a00 * c00 + a01 * c10 + a02 * c20;
+        if(determinant == 0 || Double.isNaN(determinant))
+            return false;
+        // eye = -A^-1 t, where A^-1 is the adjugate divided by the determinant
+        double tx = modelview[12], ty = modelview[13], tz = modelview[14];
+        dest[0] = -(c00 * tx + c01 * ty + c02 * tz) / determinant;
+        dest[1] = -(c10 * tx + c11 * ty + c12 * tz) / determinant;
+        dest[2] = -(c20 * tx + c21 * ty + c22 * tz) / determinant;
+        return true;
+    }
+}
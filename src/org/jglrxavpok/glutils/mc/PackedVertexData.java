@@ -0,0 +1,144 @@
+package org.jglrxavpok.glutils.mc;
+
+import java.nio.ByteOrder;
+
+import org.jglrxavpok.glutils.Mesh;
+import org.jglrxavpok.glutils.VertexLayout;
+
+import net.minecraft.client.renderer.VertexBuffer;
+import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
+
+/**
+ * Bakes meshes into the exact int layout {@link VertexBuffer} uses for {@link DefaultVertexFormats#POSITION_TEX_NORMAL}:
+ * 3 floats of position, 2 floats of texture coordinates (with v already flipped) and 3 signed bytes of normal plus one
+ * byte of padding, in native byte order. Triangles are de-indexed, so the result can be copied as-is with
+ * {@link VertexBuffer#addVertexData(int[])}.
+ */
+public class PackedVertexData
+{
+
+    public static final int INTS_PER_VERTEX = 6;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    public static int[] bake(Mesh mesh)
+    {
+        int[] indices = mesh.indices;
+        float[] data = mesh.data;
+        VertexLayout layout = mesh.layout;
+        int stride = layout.stride;
+        int pos = layout.positionOffset;
+        int tex = layout.texCoordsOffset;
+        int normal = layout.normalOffset;
+        int[] packed = new int[indices.length * INTS_PER_VERTEX];
+        int out = 0;
+        for(int i = 0; i < indices.length; i++)
+        {
+            int o = indices[i] * stride;
+            packed[out++] = Float.floatToRawIntBits(data[o + pos]);
+            packed[out++] = Float.floatToRawIntBits(data[o + pos + 1]);
+            packed[out++] = Float.floatToRawIntBits(data[o + pos + 2]);
+            packed[out++] = Float.floatToRawIntBits(data[o + tex]);
+            packed[out++] = Float.floatToRawIntBits(1f - data[o + tex + 1]);
+            packed[out++] = packNormal(data[o + normal], data[o + normal + 1], data[o + normal + 2]);
+        }
+        return packed;
+    }
+
+    /**
+     * Writes the vertices of <code>source</code>, moved by an affine transform, to <code>dest</code>. Texture coordinates
+     * are copied; normals are transformed by the inverse transpose, so that they stay perpendicular to the surface under
+     * non-uniform scales, and keep their length.
+     * @param matrix holds the transform at <code>offset</code>, column-major, see {@link TessellatorModel#MATRIX_4X4} and
+     * {@link TessellatorModel#MATRIX_4X3}. The last row of a 4x4 matrix is ignored.
+     * @param matrixSize 16 or 12
+     */
+    public static void transform(int[] source, int[] dest, float[] matrix, int offset, int matrixSize)
+    {
+        transform(source, 0, source.length, dest, matrix, offset, matrixSize);
+    }
+
+    /**
+     * Transforms <code>length</code> ints of <code>source</code> from <code>start</code>, a whole number of vertices, to
+     * the start of <code>dest</code>, see {@link #transform(int[], int[], float[], int, int)}
+     */
+    public static void transform(int[] source, int start, int length, int[] dest, float[] matrix, int offset, int matrixSize)
+    {
+        int column = matrixSize == TessellatorModel.MATRIX_4X4 ? 4 : 3;
+        float m00 = matrix[offset], m10 = matrix[offset + 1], m20 = matrix[offset + 2];
+        float m01 = matrix[offset + column], m11 = matrix[offset + column + 1], m21 = matrix[offset + column + 2];
+        float m02 = matrix[offset + column * 2], m12 = matrix[offset + column * 2 + 1], m22 = matrix[offset + column * 2 + 2];
+        float m03 = matrix[offset + column * 3], m13 = matrix[offset + column * 3 + 1], m23 = matrix[offset + column * 3 + 2];
+
+        // the cofactor matrix is the inverse transpose times the determinant, whose sign must be kept
+        float n00 = m11 * m22 - m21 * m12, n10 = m21 * m02 - m01 * m22, n20 = m01 * m12 - m11 * m02;
+        float n01 = m12 * m20 - m22 * m10, n11 = m22 * m00 - m02 * m20, n21 = m02 * m10 - m12 * m00;
+        float n02 = m10 * m21 - m20 * m11, n12 = m20 * m01 - m00 * m21, n22 = m00 * m11 - m10 * m01;
+        float determinant = m00 * n00 + m10 * n10 + m20 * n20;
+
+        // rotations with a uniform scale s multiply every normal length by s^2, others need each normal renormalized
+        float scaleX = m00 * m00 + m10 * m10 + m20 * m20;
+        float scaleY = m01 * m01 + m11 * m11 + m21 * m21;
+        float scaleZ = m02 * m02 + m12 * m12 + m22 * m22;
+        float tolerance = 1e-4f * scaleX;
+        boolean similarity = Math.abs(scaleX - scaleY) <= tolerance && Math.abs(scaleX - scaleZ) <= tolerance
+                && Math.abs(m00 * m01 + m10 * m11 + m20 * m21) <= tolerance && Math.abs(m00 * m02 + m10 * m12 + m20 * m22) <= tolerance
+                && Math.abs(m01 * m02 + m11 * m12 + m21 * m22) <= tolerance;
+        float normalScale = similarity && determinant != 0 ? Math.signum(determinant) / scaleX : 0;
+
+        for(int i = 0, s = start; i < length; i += INTS_PER_VERTEX, s += INTS_PER_VERTEX)
+        {
+            float x = Float.intBitsToFloat(source[s]);
+            float y = Float.intBitsToFloat(source[s + 1]);
+            float z = Float.intBitsToFloat(source[s + 2]);
+            dest[i] = Float.floatToRawIntBits(m00 * x + m01 * y + m02 * z + m03);
+            dest[i + 1] = Float.floatToRawIntBits(m10 * x + m11 * y + m12 * z + m13);
+            dest[i + 2] = Float.floatToRawIntBits(m20 * x + m21 * y + m22 * z + m23);
+            dest[i + 3] = source[s + 3];
+            dest[i + 4] = source[s + 4];
+
+            int normal = source[s + 5];
+            float nx, ny, nz;
+            if(LITTLE_ENDIAN)
+            {
+                nx = (byte)normal;
+                ny = (byte)(normal >> 8);
+                nz = (byte)(normal >> 16);
+            }
+            else
+            {
+                nx = (byte)(normal >> 24);
+                ny = (byte)(normal >> 16);
+                nz = (byte)(normal >> 8);
+            }
+            float tx = n00 * nx + n01 * ny + n02 * nz;
+            float ty = n10 * nx + n11 * ny + n12 * nz;
+            float tz = n20 * nx + n21 * ny + n22 * nz;
+            float scale = normalScale;
+            if(scale == 0)
+            {
+                // back to the length of the packed normal, 127 for unit normals
+                scale = (float)Math.sqrt((nx * nx + ny * ny + nz * nz) / (tx * tx + ty * ty + tz * tz));
+                if(determinant < 0)
+                    scale = -scale;
+            }
+            int px = (int)(tx * scale) & 255;
+            int py = (int)(ty * scale) & 255;
+            int pz = (int)(tz * scale) & 255;
+            dest[i + 5] = LITTLE_ENDIAN ? px | (py << 8) | (pz << 16) : (px << 24) | (py << 16) | (pz << 8);
+        }
+    }
+
+    /**
+     * Same conversion as {@link VertexBuffer#normal(float, float, float)} for byte normals
+     */
+    public static int packNormal(float x, float y, float z)
+    {
+        int nx = (int)(x * 127f) & 255;
+        int ny = (int)(y * 127f) & 255;
+        int nz = (int)(z * 127f) & 255;
+        if(LITTLE_ENDIAN)
+            return nx | (ny << 8) | (nz << 16);
+        return (nx << 24) | (ny << 16) | (nz << 8);
+    }
+}
@@ -2,31 +2,43 @@ package org.jglrxavpok.glutils.mc;
 
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.util.vector.Vector3f;
 
+import org.jglrxavpok.glutils.BakedModelCache;
+import org.jglrxavpok.glutils.Frustum;
 import org.jglrxavpok.glutils.IndexedModel;
+import org.jglrxavpok.glutils.LoadMetrics;
 import org.jglrxavpok.glutils.Mesh;
 import org.jglrxavpok.glutils.Model;
+import org.jglrxavpok.glutils.ModelMetrics;
 import org.jglrxavpok.glutils.OBJLoader;
 import org.jglrxavpok.glutils.ObjEvent;
 import org.jglrxavpok.glutils.ObjEvent.EventType;
 import org.jglrxavpok.glutils.ObjModel;
 import org.jglrxavpok.glutils.ObjObject;
 import org.jglrxavpok.glutils.TessellatorModelEvent;
-import org.jglrxavpok.glutils.Vertex;
+import org.jglrxavpok.glutils.TextureAtlas;
+import org.jglrxavpok.glutils.VertexLayout;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.renderer.Tessellator;
 import net.minecraft.client.renderer.VertexBuffer;
 import net.minecraft.client.renderer.vertex.DefaultVertexFormats;
-import net.minecraft.util.math.Vec3d;
 import net.minecraftforge.fml.common.eventhandler.Event;
 import net.minecraftforge.fml.common.eventhandler.EventBus;
 
@@ -36,102 +48,1118 @@ import net.minecraftforge.fml.common.eventhandler.EventBus;
 public class TessellatorModel extends ObjModel
 {
 
-    public static final EventBus MODEL_RENDERING_BUS = new EventBus();
+    /**
+     * Receives a {@link TessellatorModelEvent} around each model and group render. Events are only built for the classes
+     * that handlers registered on this bus take.
+     */
+    public static final EventBus MODEL_RENDERING_BUS = new ModelRenderingBus();
+    /**
+     * Size of the 4x4 transforms given to {@link #renderInstances(float[], int, int)}: 16 floats, column-major as in GL
+     */
+    public static final int MATRIX_4X4 = 16;
+    /**
+     * Size of the affine 4x3 transforms given to {@link #renderInstances(float[], int, int)}: 12 floats, the three
+     * columns of the linear part followed by the translation
+     */
+    public static final int MATRIX_4X3 = 12;
+    /**
+     * Instanced renders transform groups by chunks of this many vertices
+     */
+    private static final int INSTANCE_CHUNK_VERTICES = 256;
+
+    /**
+     * How a model is built once its OBJ data is read. A new instance starts from the defaults set with the static
+     * setters of {@link TessellatorModel}, which apply to every model loaded without options.
+     */
+    public static class LoadOptions
+    {
+
+        private boolean textureAtlas;
+        private boolean optimizeVertexCache;
+        private float[] lodRatios;
+        private boolean releaseGeometry;
+
+        public LoadOptions()
+        {
+            textureAtlas = useTextureAtlas;
+            optimizeVertexCache = TessellatorModel.optimizeVertexCache;
+            lodRatios = TessellatorModel.lodRatios;
+            releaseGeometry = TessellatorModel.releaseGeometry;
+        }
+
+        private LoadOptions(LoadOptions other)
+        {
+            textureAtlas = other.textureAtlas;
+            optimizeVertexCache = other.optimizeVertexCache;
+            lodRatios = other.lodRatios;
+            releaseGeometry = other.releaseGeometry;
+        }
+
+        /**
+         * Packs the diffuse textures of the materials in a single {@link TextureAtlas}, so that groups render with the
+         * same texture bound and can be drawn together, see {@link TessellatorModel#renderImpl()}
+         */
+        public LoadOptions setTextureAtlas(boolean textureAtlas)
+        {
+            this.textureAtlas = textureAtlas;
+            return this;
+        }
+
+        public boolean isTextureAtlas()
+        {
+            return textureAtlas;
+        }
+
+        /**
+         * See {@link OBJLoader#setOptimizeVertexCache(boolean)}
+         */
+        public LoadOptions setOptimizeVertexCache(boolean optimizeVertexCache)
+        {
+            this.optimizeVertexCache = optimizeVertexCache;
+            return this;
+        }
+
+        public boolean isOptimizeVertexCache()
+        {
+            return optimizeVertexCache;
+        }
+
+        /**
+         * See {@link TessellatorModel#setLodRatios(float...)}
+         */
+        public LoadOptions setLodRatios(float... ratios)
+        {
+            this.lodRatios = ratios == null || ratios.length == 0 ? null : ratios.clone();
+            return this;
+        }
+
+        public float[] getLodRatios()
+        {
+            return lodRatios == null ? null : lodRatios.clone();
+        }
+
+        /**
+         * Bakes the model as soon as it is built, then drops its CPU-side geometry, see
+         * {@link TessellatorModel#releaseGeometry()}. The model then always renders baked, ignoring
+         * {@link VertexBuffer#setTranslation(double, double, double)}.
+         */
+        public LoadOptions setReleaseGeometry(boolean releaseGeometry)
+        {
+            this.releaseGeometry = releaseGeometry;
+            return this;
+        }
+
+        public boolean isReleaseGeometry()
+        {
+            return releaseGeometry;
+        }
+    }
+
+    private static volatile boolean useTextureAtlas;
+    private static volatile boolean optimizeVertexCache;
+    private static volatile float[] lodRatios;
+    private static volatile boolean postForgeEvents = true;
+    private static volatile boolean releaseGeometry;
+
+    private boolean bakedRendering;
+    /**
+     * Set during {@link #renderImpl()}, where groups sharing a texture (e.g. through an atlas) only bind it once
+     */
+    private boolean sharingBinds;
+    private int boundTexture;
+
+    /**
+     * Draw order used by {@link #renderImpl()}: opaque groups in load order, then transparent groups back to front.
+     * Checked against {@link #objObjects} and the transparency of the materials on each render.
+     */
+    private boolean drawOrderValid;
+    private ObjObject[] opaqueGroups;
+    private ObjObject[] transparentGroups;
+    /**
+     * Sorted squared distance and index of each transparent group
+     */
+    private long[] depthKeys;
+    private boolean depthSorted;
+    private final double[] camera = new double[3];
+    private final double[] sortedCamera = new double[3];
+    private double depthSortThreshold = 0.25;
+    private CameraSource cameraSource = CameraSource.MODELVIEW;
+    private final double[] lodCamera = new double[3];
+    /**
+     * Set during whole-model renders, where the camera used for levels of detail is only read once
+     */
+    private boolean lodCameraShared;
+    private boolean lodCameraRead;
+    private boolean lodCameraValid;
+    private float[] lodScreenSizes = { 0.25f, 0.1f, 0.04f };
+
+    private boolean frustumCulling;
+    private Frustum frustum;
+    private final Frustum glFrustum = new Frustum();
+    private final FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
+    private final float[] projection = new float[16];
+    private final float[] modelview = new float[16];
+    private int culledGroups;
+    private int drawnGroups;
+    private int drawCalls;
+    private int culledInstances;
+    private int drawnInstances;
+    /**
+     * Scratch arrays instanced renders transform vertices into, by number of vertices: they are passed whole to the
+     * buffer, so each chunk length needs its own
+     */
+    private final int[][] instanceScratch = new int[INSTANCE_CHUNK_VERTICES + 1][];
+
+    /**
+     * Runs tasks on the Minecraft client thread, which owns the GL context
+     */
+    public static final Executor CLIENT_THREAD = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            Minecraft.getMinecraft().addScheduledTask(command);
+        }
+    };
+
+    private volatile boolean ready;
+    private volatile long lastRenderTime;
+    private CompletableFuture<TessellatorModel> loadFuture;
 
     public TessellatorModel(String string)
+    {
+        this(string, null);
+    }
+
+    /**
+     * @param cache where baked copies of the model are read from and written to, or null to always parse the OBJ file
+     */
+    public TessellatorModel(String string, BakedModelCache cache)
+    {
+        this(string, cache, new LoadOptions());
+    }
+
+    /**
+     * @param cache where baked copies of the model are read from and written to, or null to always parse the OBJ file
+     */
+    public TessellatorModel(String string, BakedModelCache cache, LoadOptions options)
     {
         super(string);
         try
         {
-            String content = new String(read(Model.class.getResourceAsStream(string)), "UTF-8");
-            String startPath = string.substring(0, string.lastIndexOf('/') + 1);
-            HashMap<ObjObject, IndexedModel> map = new OBJLoader().loadModel(startPath, content);
             objObjects.clear();
-            Set<ObjObject> keys = map.keySet();
-            Iterator<ObjObject> it = keys.iterator();
-            while(it.hasNext())
-            {
-                ObjObject object = it.next();
-                Mesh mesh = new Mesh();
-                object.mesh = mesh;
-                objObjects.add(object);
-                map.get(object).toMesh(mesh);
-            }
+            objObjects.addAll(loadObjects(string, cache, options, false));
+            indexGroups();
         }
         catch(Exception e)
         {
             e.printStackTrace();
         }
+        lastRenderTime = System.nanoTime();
+        ready = true;
+        loadFuture = CompletableFuture.completedFuture(this);
     }
 
-    @Override
-    public void renderImpl()
+    private TessellatorModel(String string, boolean ready)
     {
-        Collections.sort(objObjects, new Comparator<ObjObject>()
-        {
+        super(string);
+        this.ready = ready;
+    }
 
+    /**
+     * Wraps objects that were already loaded, e.g. with {@link OBJLoader#toObjects(HashMap)}
+     */
+    public static TessellatorModel fromObjects(String name, List<ObjObject> objects)
+    {
+        TessellatorModel model = new TessellatorModel(name, true);
+        model.lastRenderTime = System.nanoTime();
+        model.objObjects.addAll(objects);
+        model.indexGroups();
+        model.loadFuture = CompletableFuture.completedFuture(model);
+        return model;
+    }
+
+    /**
+     * Loads the model at the given classpath location on the given executor, see
+     * {@link #loadAsync(String, BakedModelCache, Executor, Executor)}
+     */
+    public static TessellatorModel loadAsync(String path, Executor executor)
+    {
+        return loadAsync(path, null, executor, CLIENT_THREAD);
+    }
+
+    /**
+     * Loads a model in the background with the default {@link LoadOptions}, see
+     * {@link #loadAsync(String, BakedModelCache, LoadOptions, Executor, Executor)}
+     */
+    public static TessellatorModel loadAsync(String path, BakedModelCache cache, Executor executor, Executor glExecutor)
+    {
+        return loadAsync(path, cache, new LoadOptions(), executor, glExecutor);
+    }
+
+    /**
+     * Starts loading a model in the background and returns it right away. Reading, parsing, mesh building and texture
+     * decoding run on <code>executor</code>; texture upload then runs on <code>glExecutor</code>, after which the model
+     * becomes {@link #isReady() ready}. Rendering the model before that does nothing.
+     * @param options copied right away, changing them afterwards does not affect this load
+     * @see #getLoadFuture()
+     */
+    public static TessellatorModel loadAsync(final String path, final BakedModelCache cache, LoadOptions options, Executor executor, Executor glExecutor)
+    {
+        final LoadOptions loadOptions = new LoadOptions(options);
+        final TessellatorModel model = new TessellatorModel(path, false);
+        model.loadFuture = CompletableFuture.supplyAsync(new Supplier<List<ObjObject>>()
+        {
             @Override
-            public int compare(ObjObject a, ObjObject b)
+            public List<ObjObject> get()
             {
-                Vec3d v = Minecraft.getMinecraft().getRenderViewEntity().getPositionVector();
-                double aDist = v.distanceTo(new Vec3d(a.center.x, a.center.y, a.center.z));
-                double bDist = v.distanceTo(new Vec3d(b.center.x, b.center.y, b.center.z));
-                return Double.compare(aDist, bDist);
+                try
+                {
+                    return loadObjects(path, cache, loadOptions, true);
+                }
+                catch(Exception e)
+                {
+                    throw new CompletionException(e);
+                }
             }
-        });
-        for(ObjObject object : objObjects)
+        }, executor).thenApplyAsync(new Function<List<ObjObject>, TessellatorModel>()
+        {
+            @Override
+            public TessellatorModel apply(List<ObjObject> objects)
+            {
+                for(ObjObject object : objects)
+                {
+                    if(object.material != null)
+                        object.material.uploadPendingTextures();
+                }
+                model.objObjects.clear();
+                model.objObjects.addAll(objects);
+                model.indexGroups();
+                model.lastRenderTime = System.nanoTime();
+                model.ready = true;
+                return model;
+            }
+        }, glExecutor);
+        return model;
+    }
+
+    private static List<ObjObject> loadObjects(String path, BakedModelCache cache, LoadOptions options, boolean deferTextureUpload) throws Exception
+    {
+        boolean atlas = options.textureAtlas;
+        boolean optimize = options.optimizeVertexCache;
+        boolean release = options.releaseGeometry;
+        // the atlas is built from decoded pixels, textures are only uploaded once it is done
+        boolean defer = deferTextureUpload || atlas;
+        LoadMetrics metrics = new LoadMetrics(path);
+        List<ObjObject> objects;
+        if(cache != null)
+        {
+            // cached meshes skip parsing and deduplication, reading them is all there is
+            long start = System.nanoTime();
+            objects = cache.load(path, defer, optimize);
+            metrics.parseNanos = System.nanoTime() - start;
+        }
+        else
+        {
+            URL resource = Model.class.getResource(path);
+            if(resource == null)
+                throw new IOException("Model not found: " + path);
+            String startPath = path.substring(0, path.lastIndexOf('/') + 1);
+            // large models are read whole and parsed in parallel
+            HashMap<ObjObject, IndexedModel> map = new OBJLoader().setDeferTextureUpload(defer).setOptimizeVertexCache(optimize).setLoadMetrics(metrics).loadModel(startPath, resource);
+            objects = OBJLoader.toObjects(map, metrics);
+        }
+        long meshStart = System.nanoTime();
+        float[] ratios = options.lodRatios;
+        if(atlas)
         {
-            renderGroup(object);
+            TextureAtlas.build(objects, path + "#atlas", TextureAtlas.DEFAULT_PADDING, TextureAtlas.DEFAULT_MAX_SIZE);
+            if(!deferTextureUpload)
+            {
+                for(ObjObject object : objects)
+                {
+                    if(object.material != null)
+                        object.material.uploadPendingTextures();
+                }
+            }
+        }
+        if(ratios != null)
+        {
+            // after the atlas so that every level shares its texture coordinates
+            for(ObjObject object : objects)
+                object.generateLods(ratios);
+        }
+        if(release)
+        {
+            for(ObjObject object : objects)
+            {
+                bake(object);
+                object.releaseGeometry();
+            }
         }
+        metrics.meshBuildNanos += System.nanoTime() - meshStart;
+        metrics.retainedBytes = 0;
+        for(ObjObject object : objects)
+            metrics.retainedBytes += object.retainedBytes();
+        ModelMetrics.getInstance().recordLoad(metrics);
+        return objects;
+    }
+
+    /**
+     * When set, models loaded afterwards without {@link LoadOptions} pack the diffuse textures of their materials in a
+     * single {@link TextureAtlas}, see {@link LoadOptions#setTextureAtlas(boolean)}. Off by default.
+     */
+    public static void setUseTextureAtlas(boolean useTextureAtlas)
+    {
+        TessellatorModel.useTextureAtlas = useTextureAtlas;
+    }
+
+    public static boolean isUsingTextureAtlas()
+    {
+        return useTextureAtlas;
+    }
+
+    /**
+     * When set, models loaded afterwards without {@link LoadOptions} have their meshes reordered for the vertex cache,
+     * see {@link OBJLoader#setOptimizeVertexCache(boolean)}. Off by default.
+     */
+    public static void setOptimizeVertexCache(boolean optimizeVertexCache)
+    {
+        TessellatorModel.optimizeVertexCache = optimizeVertexCache;
+    }
+
+    public static boolean isOptimizingVertexCache()
+    {
+        return optimizeVertexCache;
+    }
+
+    /**
+     * When set, models loaded afterwards without {@link LoadOptions} are baked as soon as they are built and then drop
+     * their CPU-side geometry, see {@link #releaseGeometry()}. Off by default.
+     */
+    public static void setReleaseGeometry(boolean releaseGeometry)
+    {
+        TessellatorModel.releaseGeometry = releaseGeometry;
+    }
+
+    public static boolean isReleasingGeometry()
+    {
+        return releaseGeometry;
+    }
+
+    /**
+     * Makes models loaded afterwards without {@link LoadOptions} generate simplified levels of detail for each group,
+     * see {@link ObjObject#generateLods(float...)}. Levels are picked with {@link #setLodScreenSizes(float...)}.
+     * @param ratios fraction of the triangles kept at each level, decreasing; null or empty to generate none (default)
+     */
+    public static void setLodRatios(float... ratios)
+    {
+        lodRatios = ratios == null || ratios.length == 0 ? null : ratios.clone();
+    }
+
+    /**
+     * Sets when simplified levels of detail are used: level <code>i + 1</code> is used for groups whose bounding sphere
+     * radius divided by its distance to the camera is below <code>sizes[i]</code>. Defaults to 0.25, 0.1 and 0.04.
+     * @param sizes decreasing thresholds, levels past the last one generated fall back to the least detailed one
+     */
+    public void setLodScreenSizes(float... sizes)
+    {
+        this.lodScreenSizes = sizes.clone();
+    }
+
+    /**
+     * @return the level of detail to render the group with, 0 being its full mesh
+     */
+    public int selectLod(ObjObject obj)
+    {
+        if(obj.lods == null || obj.lods.length == 0 || !readLodCamera())
+            return 0;
+        if(obj.sphereCenter == null)
+            obj.computeBounds();
+        return selectLod(obj, obj.sphereCenter.x, obj.sphereCenter.y, obj.sphereCenter.z, obj.sphereRadius);
+    }
+
+    /**
+     * Reads the camera into {@link #lodCamera}, only once per render while {@link #lodCameraShared} is set
+     * @return false if there is no camera
+     */
+    private boolean readLodCamera()
+    {
+        if(lodCameraShared && lodCameraRead)
+            return lodCameraValid;
+        lodCameraValid = cameraSource.getPosition(lodCamera);
+        lodCameraRead = true;
+        return lodCameraValid;
+    }
+
+    /**
+     * Picks the level for a bounding sphere of the group, the camera must be in {@link #lodCamera}
+     */
+    private int selectLod(ObjObject obj, float sphereX, float sphereY, float sphereZ, float sphereRadius)
+    {
+        double x = sphereX - lodCamera[0];
+        double y = sphereY - lodCamera[1];
+        double z = sphereZ - lodCamera[2];
+        double distance = Math.sqrt(x * x + y * y + z * z);
+        double screenSize = distance == 0 ? Double.POSITIVE_INFINITY : sphereRadius / distance;
+        int level = 0;
+        while(level < lodScreenSizes.length && screenSize < lodScreenSizes[level])
+            level++;
+        return Math.min(level, obj.lods.length);
     }
 
     @Override
-    public void renderGroupsImpl(String group)
+    public boolean isReady()
+    {
+        return ready;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last time a group of this model was rendered, or of the time it
+     *         finished loading if it was not rendered since
+     */
+    public long getLastRenderTime()
+    {
+        return lastRenderTime;
+    }
+
+    /**
+     * Deletes the textures of this model and drops its geometry, it will not render anymore.
+     * Has to be called on the thread owning the GL context.
+     */
+    public void release()
+    {
+        ready = false;
+        for(ObjObject object : objObjects)
+        {
+            if(object.material != null)
+                object.material.releaseTextures();
+        }
+        objObjects.clear();
+        releaseInstanceData();
+        indexGroups();
+    }
+
+    /**
+     * Bakes every group and level of detail that is not baked yet, then drops their CPU-side geometry with
+     * {@link ObjObject#releaseGeometry()}. The model keeps rendering, always from its baked data as with
+     * {@link #setBakedRendering(boolean)}, so the translation of the buffer is ignored. Ray and box queries do not find
+     * it anymore.
+     */
+    public void releaseGeometry()
     {
         for(ObjObject object : objObjects)
         {
-            if(object.getName().equals(group))
+            bake(object);
+            object.releaseGeometry();
+        }
+    }
+
+    private static void bake(ObjObject object)
+    {
+        if(object.vertexData == null && object.mesh != null)
+            object.vertexData = PackedVertexData.bake(object.mesh);
+        if(object.lods != null)
+        {
+            for(int i = 0; i < object.lods.length; i++ )
             {
-                renderGroup(object);
+                if(object.lodVertexData[i] == null && object.lods[i] != null)
+                    object.lodVertexData[i] = PackedVertexData.bake(object.lods[i]);
             }
         }
     }
 
+    /**
+     * @return a future completed with this model once it is ready, or exceptionally if loading failed
+     */
+    public CompletableFuture<TessellatorModel> getLoadFuture()
+    {
+        return loadFuture;
+    }
+
+    /**
+     * Splits the groups between opaque and transparent ones, then sorts the transparent ones by distance to the camera
+     * unless it moved less than the threshold since they were last sorted. The split is done again when groups were
+     * added, removed or reordered, or a material became transparent or opaque.
+     */
+    private void updateDrawOrder()
+    {
+        if(!drawOrderValid || !drawOrderMatches())
+        {
+            List<ObjObject> opaque = new ArrayList<ObjObject>();
+            List<ObjObject> transparent = new ArrayList<ObjObject>();
+            for(ObjObject object : objObjects)
+            {
+                if(object.material != null && object.material.transparency < 1f)
+                    transparent.add(object);
+                else
+                    opaque.add(object);
+            }
+            opaqueGroups = opaque.toArray(new ObjObject[opaque.size()]);
+            transparentGroups = transparent.toArray(new ObjObject[transparent.size()]);
+            depthKeys = new long[transparentGroups.length];
+            for(int i = 0; i < depthKeys.length; i++)
+                depthKeys[i] = i;
+            drawOrderValid = true;
+            depthSorted = false;
+        }
+        if(transparentGroups.length < 2 || !readLodCamera())
+            return;
+        System.arraycopy(lodCamera, 0, camera, 0, 3);
+        double dx = camera[0] - sortedCamera[0];
+        double dy = camera[1] - sortedCamera[1];
+        double dz = camera[2] - sortedCamera[2];
+        if(depthSorted && dx * dx + dy * dy + dz * dz <= depthSortThreshold * depthSortThreshold)
+            return;
+        for(int i = 0; i < depthKeys.length; i++)
+        {
+            // squared distance in the high bits, group index in the low ones: sorting the keys sorts the groups
+            int index = (int)depthKeys[i];
+            Vector3f center = transparentGroups[index].center;
+            double x = center.x - camera[0];
+            double y = center.y - camera[1];
+            double z = center.z - camera[2];
+            long distance = Float.floatToIntBits((float)(x * x + y * y + z * z));
+            depthKeys[i] = distance << 32 | index;
+        }
+        Arrays.sort(depthKeys);
+        System.arraycopy(camera, 0, sortedCamera, 0, 3);
+        depthSorted = true;
+    }
+
+    /**
+     * @return true if the opaque and transparent groups are still those of {@link #objObjects}, in the same order
+     */
+    private boolean drawOrderMatches()
+    {
+        int opaque = 0;
+        int transparent = 0;
+        // indexed loop, an iterator would allocate on every render
+        for(int i = 0; i < objObjects.size(); i++ )
+        {
+            ObjObject object = objObjects.get(i);
+            if(object.material != null && object.material.transparency < 1f)
+            {
+                if(transparent == transparentGroups.length || transparentGroups[transparent++] != object)
+                    return false;
+            }
+            else if(opaque == opaqueGroups.length || opaqueGroups[opaque++] != object)
+            {
+                return false;
+            }
+        }
+        return opaque == opaqueGroups.length && transparent == transparentGroups.length;
+    }
+
+    /**
+     * Sets where the camera position used to order transparent groups and pick levels of detail comes from, defaults to
+     * {@link CameraSource#MODELVIEW}
+     */
+    public void setCameraSource(CameraSource cameraSource)
+    {
+        this.cameraSource = cameraSource;
+        depthSorted = false;
+    }
+
+    /**
+     * Transparent groups are sorted again once the camera moved farther than this distance, 0 to sort them on every
+     * render
+     */
+    public void setDepthSortThreshold(double depthSortThreshold)
+    {
+        this.depthSortThreshold = depthSortThreshold;
+    }
+
+    public double getDepthSortThreshold()
+    {
+        return depthSortThreshold;
+    }
+
+    @Override
+    public void indexGroups()
+    {
+        super.indexGroups();
+        drawOrderValid = false;
+    }
+
+    /**
+     * Renders every group of the model, see {@link #renderImpl()}. Once warmed up this does not allocate, unless a
+     * handler registered on {@link #MODEL_RENDERING_BUS} takes the render events: a Forge event is then built for each
+     * of them, since they cannot be reused.
+     */
+    @Override
+    public void render()
+    {
+        super.render();
+    }
+
+    /**
+     * Renders opaque groups in load order, then transparent groups back to front. Consecutive opaque groups with the same
+     * texture (all of them with a {@link LoadOptions#setTextureAtlas(boolean) texture atlas}) share a single
+     * begin/draw, unless group render events have a receiver: a listener for {@link EventType#PRE_RENDER_GROUP} or
+     * {@link EventType#POST_RENDER_GROUP}, or a handler of {@link #MODEL_RENDERING_BUS} taking
+     * {@link TessellatorModelEvent.RenderGroupEvent}s. Such receivers expect each group to be drawn between its events,
+     * so every group then goes through {@link #renderGroup(ObjObject)} on its own.
+     */
+    @Override
+    public void renderImpl()
+    {
+        sharingBinds = true;
+        boundTexture = -1;
+        lodCameraShared = true;
+        lodCameraRead = false;
+        updateDrawOrder();
+        Frustum cullingFrustum = currentFrustum();
+        culledGroups = 0;
+        drawnGroups = 0;
+        drawCalls = 0;
+        try
+        {
+            if(hasEventReceivers(EventType.PRE_RENDER_GROUP) || hasEventReceivers(EventType.POST_RENDER_GROUP))
+            {
+                for(ObjObject object : opaqueGroups)
+                {
+                    renderVisibleGroup(object, cullingFrustum);
+                }
+            }
+            else
+            {
+                renderOpaqueBatches(cullingFrustum);
+            }
+            // back to front
+            for(int i = depthKeys.length - 1; i >= 0; i--)
+            {
+                renderVisibleGroup(transparentGroups[(int)depthKeys[i]], cullingFrustum);
+            }
+        }
+        finally
+        {
+            sharingBinds = false;
+            lodCameraShared = false;
+        }
+    }
+
+    /**
+     * Renders the opaque groups without events, each run of groups with the same texture in a single begin/draw. Group
+     * renders are still counted by {@link ModelMetrics}.
+     */
+    private void renderOpaqueBatches(Frustum cullingFrustum)
+    {
+        ModelMetrics metrics = ModelMetrics.getInstance();
+        boolean measure = metrics.isEnabled();
+        Tessellator tess = Tessellator.getInstance();
+        VertexBuffer renderer = tess.getBuffer();
+        boolean begun = false;
+        lastRenderTime = System.nanoTime();
+        for(ObjObject object : opaqueGroups)
+        {
+            if(cullingFrustum != null && !cullingFrustum.intersects(object))
+            {
+                culledGroups++;
+                continue;
+            }
+            drawnGroups++;
+            long start = measure ? System.nanoTime() : 0;
+            // empty groups, e.g. the main group of files starting with a group statement, must not break a batch
+            if((object.mesh == null || object.mesh.indices.length == 0) && (object.vertexData == null || object.vertexData.length == 0))
+            {
+                if(measure)
+                    metrics.recordGroupRender(this, object, 0, System.nanoTime() - start);
+                continue;
+            }
+            if(object.material != null && object.material.diffuseTexture != boundTexture)
+            {
+                if(begun)
+                {
+                    tess.draw();
+                    drawCalls++;
+                    begun = false;
+                }
+                GL11.glBindTexture(GL11.GL_TEXTURE_2D, object.material.diffuseTexture);
+                boundTexture = object.material.diffuseTexture;
+            }
+            if(!begun)
+            {
+                renderer.begin(GL11.GL_TRIANGLES, DefaultVertexFormats.POSITION_TEX_NORMAL);
+                begun = true;
+            }
+            int vertices = emitGroup(renderer, object);
+            if(measure)
+                metrics.recordGroupRender(this, object, vertices, System.nanoTime() - start);
+        }
+        if(begun)
+        {
+            tess.draw();
+            drawCalls++;
+        }
+    }
+
+    private void renderVisibleGroup(ObjObject object, Frustum cullingFrustum)
+    {
+        if(cullingFrustum != null && !cullingFrustum.intersects(object))
+        {
+            culledGroups++;
+            return;
+        }
+        drawnGroups++;
+        renderGroup(object);
+    }
+
+    /**
+     * @return the frustum to cull groups against during this render, null when culling is disabled
+     */
+    private Frustum currentFrustum()
+    {
+        if(!frustumCulling)
+            return null;
+        if(frustum != null)
+            return frustum;
+        // the modelview matrix includes the transform of the model, the frustum is then in model space like the bounds
+        matrixBuffer.clear();
+        GL11.glGetFloat(GL11.GL_PROJECTION_MATRIX, matrixBuffer);
+        matrixBuffer.get(projection);
+        matrixBuffer.clear();
+        GL11.glGetFloat(GL11.GL_MODELVIEW_MATRIX, matrixBuffer);
+        matrixBuffer.get(modelview);
+        return glFrustum.set(projection, modelview);
+    }
+
+    /**
+     * Enables skipping the groups of {@link #render()} whose bounds are outside of the view frustum. Unless one is given
+     * with {@link #setFrustum(Frustum)}, the frustum is extracted from the current GL projection and modelview matrices.
+     * Off by default.
+     */
+    public void setFrustumCulling(boolean frustumCulling)
+    {
+        this.frustumCulling = frustumCulling;
+    }
+
+    public boolean isFrustumCulling()
+    {
+        return frustumCulling;
+    }
+
+    /**
+     * Sets the frustum used for culling, in the space of the model, or null to extract it from the GL matrices
+     */
+    public void setFrustum(Frustum frustum)
+    {
+        this.frustum = frustum;
+    }
+
+    /**
+     * @return number of groups skipped by frustum culling during the last {@link #render()}
+     */
+    public int getCulledGroups()
+    {
+        return culledGroups;
+    }
+
+    /**
+     * @return number of groups that passed frustum culling during the last {@link #render()}
+     */
+    public int getDrawnGroups()
+    {
+        return drawnGroups;
+    }
+
+    /**
+     * @return number of begin/draw pairs issued during the last {@link #render()}, lower than the number of groups drawn
+     *         when some are batched together
+     */
+    public int getDrawCalls()
+    {
+        return drawCalls;
+    }
+
+    /**
+     * Renders <code>count</code> copies of the model at once, each moved by its own transform: every group is begun and
+     * drawn once for all copies, in the same order as {@link #render()}. Copies whose transformed bounding sphere is
+     * outside of the frustum are skipped when {@link #setFrustumCulling(boolean) frustum culling} is on, and each copy
+     * picks its own level of detail. Transforms apply on top of the current modelview, so the frustum and the camera
+     * source are in the space they map the copies to.
+     * <br/>
+     * No render events are fired. Groups are always rendered from their baked vertex data, transformed on the CPU; see
+     * {@link #emitInstances(VertexBuffer, ObjObject, float[], int, int, Frustum)}.
+     * @param transforms <code>count</code> consecutive matrices of <code>matrixSize</code> floats
+     * @param matrixSize {@link #MATRIX_4X4} or {@link #MATRIX_4X3}
+     */
+    public void renderInstances(float[] transforms, int count, int matrixSize)
+    {
+        checkInstances(transforms, count, matrixSize);
+        if(!isReady() || count == 0)
+            return;
+        ModelMetrics metrics = ModelMetrics.getInstance();
+        boolean measure = metrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        lastRenderTime = System.nanoTime();
+        lodCameraShared = true;
+        lodCameraRead = false;
+        long vertices = 0;
+        try
+        {
+            updateDrawOrder();
+            Frustum cullingFrustum = currentFrustum();
+            culledInstances = 0;
+            drawnInstances = 0;
+            Tessellator tess = Tessellator.getInstance();
+            VertexBuffer renderer = tess.getBuffer();
+            boundTexture = -1;
+            for(ObjObject object : opaqueGroups)
+                vertices += renderInstancedGroup(tess, renderer, object, transforms, count, matrixSize, cullingFrustum);
+            // back to front
+            for(int i = depthKeys.length - 1; i >= 0; i--)
+                vertices += renderInstancedGroup(tess, renderer, transparentGroups[(int)depthKeys[i]], transforms, count, matrixSize, cullingFrustum);
+        }
+        finally
+        {
+            lodCameraShared = false;
+        }
+        if(measure)
+            metrics.recordModelRender(this, vertices, System.nanoTime() - start);
+    }
+
+    private long renderInstancedGroup(Tessellator tess, VertexBuffer renderer, ObjObject obj, float[] transforms, int count, int matrixSize, Frustum cullingFrustum)
+    {
+        if(obj.mesh == null && obj.vertexData == null)
+            return 0;
+        if(obj.material != null && obj.material.diffuseTexture != boundTexture)
+        {
+            GL11.glBindTexture(GL11.GL_TEXTURE_2D, obj.material.diffuseTexture);
+            boundTexture = obj.material.diffuseTexture;
+        }
+        renderer.begin(GL11.GL_TRIANGLES, DefaultVertexFormats.POSITION_TEX_NORMAL);
+        long vertices = emitInstances(renderer, obj, transforms, count, matrixSize, cullingFrustum);
+        tess.draw();
+        return vertices;
+    }
+
+    /**
+     * Emits the triangles of <code>count</code> transformed copies of the given group in a buffer that was begun with
+     * {@link DefaultVertexFormats#POSITION_TEX_NORMAL}, see {@link #renderInstances(float[], int, int)}.
+     * <br/>
+     * The baked data is transformed by chunks of 256 vertices into scratch arrays shared by all the groups of the model:
+     * one per chunk length met, which is less than 800 KB at worst. {@link #releaseInstanceData()} frees them.
+     * @param frustum the copies outside of it are skipped, null to emit all of them
+     * @return number of vertices emitted
+     */
+    public long emitInstances(VertexBuffer renderer, ObjObject obj, float[] transforms, int count, int matrixSize, Frustum frustum)
+    {
+        checkInstances(transforms, count, matrixSize);
+        if(obj.mesh == null && obj.vertexData == null || bakedData(obj, 0).length == 0)
+            return 0;
+        if(obj.sphereCenter == null)
+            obj.computeBounds();
+        boolean lod = obj.lods != null && obj.lods.length > 0 && readLodCamera();
+        int column = matrixSize == MATRIX_4X4 ? 4 : 3;
+        float cx = obj.sphereCenter.x;
+        float cy = obj.sphereCenter.y;
+        float cz = obj.sphereCenter.z;
+        long vertices = 0;
+        for(int i = 0, m = 0; i < count; i++, m += matrixSize)
+        {
+            // bounding sphere of the copy, its radius grown by the largest scale
+            float x = transforms[m] * cx + transforms[m + column] * cy + transforms[m + column * 2] * cz + transforms[m + column * 3];
+            float y = transforms[m + 1] * cx + transforms[m + column + 1] * cy + transforms[m + column * 2 + 1] * cz + transforms[m + column * 3 + 1];
+            float z = transforms[m + 2] * cx + transforms[m + column + 2] * cy + transforms[m + column * 2 + 2] * cz + transforms[m + column * 3 + 2];
+            float scale = Math.max(lengthSquared(transforms, m), Math.max(lengthSquared(transforms, m + column), lengthSquared(transforms, m + column * 2)));
+            float radius = obj.sphereRadius * (float)Math.sqrt(scale);
+            if(frustum != null && !frustum.intersectsSphere(x, y, z, radius))
+            {
+                culledInstances++;
+                continue;
+            }
+            drawnInstances++;
+            int level = lod ? selectLod(obj, x, y, z, radius) : 0;
+            int[] source = bakedData(obj, level);
+            for(int start = 0; start < source.length; start += INSTANCE_CHUNK_VERTICES * PackedVertexData.INTS_PER_VERTEX)
+            {
+                int length = Math.min(INSTANCE_CHUNK_VERTICES * PackedVertexData.INTS_PER_VERTEX, source.length - start);
+                int[] scratch = instanceScratch[length / PackedVertexData.INTS_PER_VERTEX];
+                if(scratch == null)
+                {
+                    scratch = new int[length];
+                    instanceScratch[length / PackedVertexData.INTS_PER_VERTEX] = scratch;
+                }
+                PackedVertexData.transform(source, start, length, scratch, transforms, m, matrixSize);
+                renderer.addVertexData(scratch);
+            }
+            vertices += source.length / PackedVertexData.INTS_PER_VERTEX;
+        }
+        countEmittedVertices((int)vertices);
+        return vertices;
+    }
+
+    private static void checkInstances(float[] transforms, int count, int matrixSize)
+    {
+        if(matrixSize != MATRIX_4X4 && matrixSize != MATRIX_4X3)
+            throw new IllegalArgumentException("Matrices must have " + MATRIX_4X4 + " or " + MATRIX_4X3 + " floats, not " + matrixSize);
+        if(count < 0 || (long)count * matrixSize > transforms.length)
+            throw new IllegalArgumentException(count + " transforms do not fit in " + transforms.length + " floats");
+    }
+
+    private static float lengthSquared(float[] matrix, int offset)
+    {
+        return matrix[offset] * matrix[offset] + matrix[offset + 1] * matrix[offset + 1] + matrix[offset + 2] * matrix[offset + 2];
+    }
+
+    /**
+     * @return the baked vertex data of the given level, baked on first use
+     */
+    private static int[] bakedData(ObjObject obj, int level)
+    {
+        int[] vertexData = level == 0 ? obj.vertexData : obj.lodVertexData[level - 1];
+        if(vertexData == null)
+        {
+            vertexData = PackedVertexData.bake(level == 0 ? obj.mesh : obj.lods[level - 1]);
+            if(level == 0)
+                obj.vertexData = vertexData;
+            else
+                obj.lodVertexData[level - 1] = vertexData;
+        }
+        return vertexData;
+    }
+
+    /**
+     * Drops the scratch arrays kept by instanced renders, they are created again by the next one
+     */
+    public void releaseInstanceData()
+    {
+        Arrays.fill(instanceScratch, null);
+    }
+
+    /**
+     * @return number of copies of groups skipped by frustum culling during the last
+     * {@link #renderInstances(float[], int, int)}
+     */
+    public int getCulledInstances()
+    {
+        return culledInstances;
+    }
+
+    /**
+     * @return number of copies of groups drawn during the last {@link #renderInstances(float[], int, int)}
+     */
+    public int getDrawnInstances()
+    {
+        return drawnInstances;
+    }
+
+    @Override
+    public void renderGroupsImpl(String group)
+    {
+        renderGroupsImpl(getGroups(group));
+    }
+
     @Override
     public void renderGroupImpl(ObjObject obj)
     {
+        lastRenderTime = System.nanoTime();
         Tessellator tess = Tessellator.getInstance();
        // WorldRenderer renderer = tess.getWorldRenderer();
         VertexBuffer renderer = tess.getBuffer();
-        if(obj.mesh == null)
+        if(obj.mesh == null && obj.vertexData == null)
             return;
-        Vector3f color = new Vector3f(1, 1, 1);
-        float alpha = 1f;
-        if(obj.material != null)
+        if(obj.material != null && (!sharingBinds || obj.material.diffuseTexture != boundTexture))
         {
             GL11.glBindTexture(GL11.GL_TEXTURE_2D, obj.material.diffuseTexture);
-            // color = new Vector3f(obj.material.diffuseColor.x*obj.material.ambientColor.x,
-            // obj.material.diffuseColor.y*obj.material.ambientColor.y,
-            // obj.material.diffuseColor.z*obj.material.ambientColor.z);
-            // alpha = obj.material.transparency;
+            boundTexture = obj.material.diffuseTexture;
         }
-        int[] indices = obj.mesh.indices;
-        Vertex[] vertices = obj.mesh.vertices;
         renderer.begin(GL11.GL_TRIANGLES, DefaultVertexFormats.POSITION_TEX_NORMAL);
-        for(int i = 0; i < indices.length; i += 3)
-        {
-            int i0 = indices[i];
-            int i1 = indices[i + 1];
-            int i2 = indices[i + 2];
-            Vertex v0 = vertices[i0];
-            Vertex v1 = vertices[i1];
-            Vertex v2 = vertices[i2];
-            
-            renderer.pos(v0.getPos().x, v0.getPos().y, v0.getPos().z).tex(v0.getTexCoords().x, 1f - v0.getTexCoords().y).normal(v0.getNormal().x, v0.getNormal().y, v0.getNormal().z).endVertex();
-            renderer.pos(v1.getPos().x, v1.getPos().y, v1.getPos().z).tex(v1.getTexCoords().x, 1f - v1.getTexCoords().y).normal(v1.getNormal().x, v1.getNormal().y, v1.getNormal().z).endVertex();
-            renderer.pos(v2.getPos().x, v2.getPos().y, v2.getPos().z).tex(v2.getTexCoords().x, 1f - v2.getTexCoords().y).normal(v2.getNormal().x, v2.getNormal().y, v2.getNormal().z).endVertex();
-        }
+        emitGroup(renderer, obj);
         tess.draw();
+        if(sharingBinds)
+            drawCalls++;
+    }
+
+    /**
+     * Emits the triangles of the given group, at the level of detail picked by {@link #selectLod(ObjObject)}, in a buffer
+     * that was begun with
+     * {@link DefaultVertexFormats#POSITION_TEX_NORMAL}.
+     * <br/>
+     * With {@link #setBakedRendering(boolean) baked rendering} the vertex data is baked once per group and bulk copied,
+     * otherwise every vertex goes through the buffer. Groups whose geometry was released always render baked.
+     * @return number of vertices emitted
+     */
+    public int emitGroup(VertexBuffer renderer, ObjObject obj)
+    {
+        if(obj.mesh == null && obj.vertexData == null)
+            return 0;
+        int level = selectLod(obj);
+        Mesh mesh = level == 0 ? obj.mesh : obj.lods[level - 1];
+        if(bakedRendering || mesh == null)
+        {
+            int[] vertexData = bakedData(obj, level);
+            renderer.addVertexData(vertexData);
+            countEmittedVertices(vertexData.length / PackedVertexData.INTS_PER_VERTEX);
+            return vertexData.length / PackedVertexData.INTS_PER_VERTEX;
+        }
+        int[] indices = mesh.indices;
+        float[] data = mesh.data;
+        VertexLayout layout = mesh.layout;
+        int stride = layout.stride;
+        int pos = layout.positionOffset;
+        int tex = layout.texCoordsOffset;
+        int normal = layout.normalOffset;
+        for(int i = 0; i < indices.length; i++)
+        {
+            int o = indices[i] * stride;
+            renderer.pos(data[o + pos], data[o + pos + 1], data[o + pos + 2]).tex(data[o + tex], 1f - data[o + tex + 1]).normal(data[o + normal], data[o + normal + 1], data[o + normal + 2]).endVertex();
+        }
+        countEmittedVertices(indices.length);
+        return indices.length;
+    }
+
+    /**
+     * Renders groups by bulk copying vertex data baked once per group, instead of emitting each vertex. Off by default:
+     * the copy bypasses the translation set with {@link VertexBuffer#setTranslation(double, double, double)}, so only
+     * turn it on for models positioned through the GL matrices.
+     */
+    public void setBakedRendering(boolean bakedRendering)
+    {
+        this.bakedRendering = bakedRendering;
+    }
+
+    public boolean isBakedRendering()
+    {
+        return bakedRendering;
+    }
+
+    /**
+     * Sets whether render events are posted on {@link #MODEL_RENDERING_BUS} (the default). Only the events some handler
+     * of the bus takes are built; turning this off also skips those, once listeners registered with
+     * {@link #addListener(EventType, org.jglrxavpok.glutils.ObjEventListener)} replace the handlers.
+     */
+    public static void setPostForgeEvents(boolean postForgeEvents)
+    {
+        TessellatorModel.postForgeEvents = postForgeEvents;
+    }
+
+    public static boolean isPostingForgeEvents()
+    {
+        return postForgeEvents;
+    }
+
+    @Override
+    protected boolean forwardsEvents(EventType type)
+    {
+        if(!postForgeEvents)
+            return false;
+        ModelRenderingBus bus = (ModelRenderingBus)MODEL_RENDERING_BUS;
+        switch(type)
+        {
+            case PRE_RENDER_ALL:
+                return bus.hasHandlers(TessellatorModelEvent.RenderPre.class);
+            case POST_RENDER_ALL:
+                return bus.hasHandlers(TessellatorModelEvent.RenderPost.class);
+            case PRE_RENDER_GROUP:
+                return bus.hasHandlers(TessellatorModelEvent.RenderGroupEvent.Pre.class);
+            case POST_RENDER_GROUP:
+                return bus.hasHandlers(TessellatorModelEvent.RenderGroupEvent.Post.class);
+            default:
+                // groups events have no Forge counterpart
+                return false;
+        }
     }
 
     @Override